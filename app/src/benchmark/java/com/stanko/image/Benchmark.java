@@ -0,0 +1,98 @@
+package com.stanko.image;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Minimal JVM benchmark harness for pure-Java pixel code of com.stanko.image, JMH is not used
+ * since the module has no JVM build. Each case is warmed up first, then run repeatedly for a
+ * fixed time and its best and average time per operation are printed.
+ * <p>
+ * Benchmarks are not a part of the library build, compile and run them from the project root
+ * against android.jar (only its constants are used, they are inlined at compile time):
+ * <pre>
+ * javac -cp $ANDROID_HOME/platforms/android-23/android.jar -d build/benchmark \
+ *     app/src/main/java/com/stanko/tools/BackgroundThreadFactory.java \
+ *     app/src/main/java/com/stanko/image/StripeExecutor.java \
+ *     app/src/main/java/com/stanko/image/StackBlur.java \
+ *     app/src/main/java/com/stanko/image/PixelKernels.java \
+ *     app/src/benchmark/java/com/stanko/image/*.java
+ * java -Xmx1g -cp build/benchmark com.stanko.image.StackBlurBenchmark
+ * java -Xmx1g -cp build/benchmark com.stanko.image.PixelKernelsBenchmark
+ * </pre>
+ * Numbers of a desktop JVM are only good for comparing implementations with each other, run
+ * the same cases on a device before drawing conclusions about ART.
+ */
+final class Benchmark {
+
+    private static final long WARMUP_TIME = 1000; // ms
+    private static final long MEASURE_TIME = 2000; // ms
+    private static final int MIN_WARMUP_ITERATIONS = 5;
+    private static final int MIN_MEASURE_ITERATIONS = 5;
+
+    // keeps results reachable so JIT could not drop the measured work
+    static volatile int sBlackHole;
+
+    /**
+     * Measured operation
+     */
+    interface ICase {
+        void run();
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Warms up and measures given case, prints a line of results
+     *
+     * @param name          - case description
+     * @param pixelsCount   - pixels processed by a single run, for throughput
+     * @param benchmarkCase - operation to measure
+     * @return average time of a single run in nanoseconds
+     */
+    static double measure(final String name, final long pixelsCount, final ICase benchmarkCase) {
+        long deadline = System.currentTimeMillis() + WARMUP_TIME;
+        for (int i = 0; i < MIN_WARMUP_ITERATIONS || System.currentTimeMillis() < deadline; i++)
+            benchmarkCase.run();
+
+        long bestTime = Long.MAX_VALUE;
+        long totalTime = 0;
+        int iterations = 0;
+        deadline = System.currentTimeMillis() + MEASURE_TIME;
+        while (iterations < MIN_MEASURE_ITERATIONS || System.currentTimeMillis() < deadline) {
+            final long startTime = System.nanoTime();
+            benchmarkCase.run();
+            final long time = System.nanoTime() - startTime;
+            bestTime = Math.min(bestTime, time);
+            totalTime += time;
+            iterations++;
+        }
+        final double averageTime = (double) totalTime / iterations;
+        System.out.println(String.format(Locale.US, "%-44s %10.3f ms/op (best %10.3f) %9.1f Mpx/s",
+                name, averageTime / 1e6, bestTime / 1e6, pixelsCount * 1e3 / averageTime));
+        return averageTime;
+    }
+
+    /**
+     * Returns opaque ARGB pixels of a noisy gradient, the same for the same seed
+     */
+    static int[] createPixels(final int width, final int height, final long seed) {
+        final Random random = new Random(seed);
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                final int r = (x * 255 / width + random.nextInt(32)) & 0xff;
+                final int g = (y * 255 / height + random.nextInt(32)) & 0xff;
+                final int b = random.nextInt(256);
+                pixels[y * width + x] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        return pixels;
+    }
+
+    static void printHeader(final String title) {
+        System.out.println();
+        System.out.println(title + ", " + Runtime.getRuntime().availableProcessors() + " CPUs, "
+                + System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+    }
+}
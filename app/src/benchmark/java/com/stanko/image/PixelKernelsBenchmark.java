@@ -0,0 +1,93 @@
+package com.stanko.image;
+
+import java.util.Locale;
+
+/**
+ * Measures PixelKernels and StackBlur operations behind ImageUtils transformations across image
+ * sizes, see Benchmark for how to run it. Their Canvas and ColorMatrix predecessors could not be
+ * run off-device, so throughput is printed to compare sizes and to track changes of kernels.
+ * In-place operations are run over the same pixels again, their cost does not depend on content.
+ */
+public class PixelKernelsBenchmark {
+
+    private static final int[][] SIZES = {
+            {320, 320},     // avatar
+            {1080, 1920},   // FullHD screen
+            {3024, 4032}    // 12MP photo
+    };
+    private static final int THUMBNAIL_SIZE = 256;
+
+    public static void main(final String[] args) {
+        Benchmark.printHeader("PixelKernels");
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final String name = String.format(Locale.US, "%dx%d ", width, height);
+            final int[] pixels = Benchmark.createPixels(width, height, 42);
+            final int[] otherPixels = Benchmark.createPixels(width, height, 7);
+
+            for (final int radius : new int[]{8, 25}) {
+                Benchmark.measure(name + "blur r=" + radius, pixels.length, new Benchmark.ICase() {
+                    @Override
+                    public void run() {
+                        StackBlur.blur(pixels, width, height, radius);
+                        Benchmark.sBlackHole += pixels[pixels.length / 2];
+                    }
+                });
+            }
+
+            Benchmark.measure(name + "grayscale", pixels.length, new Benchmark.ICase() {
+                @Override
+                public void run() {
+                    PixelKernels.grayscale(pixels, 0, width, width, height);
+                    Benchmark.sBlackHole += pixels[pixels.length / 2];
+                }
+            });
+
+            final int[] joined = new int[pixels.length * 2];
+            Benchmark.measure(name + "joinHorizontally", joined.length, new Benchmark.ICase() {
+                @Override
+                public void run() {
+                    PixelKernels.joinHorizontally(pixels, width, height, otherPixels, width, height, joined);
+                    Benchmark.sBlackHole += joined[joined.length / 2];
+                }
+            });
+            Benchmark.measure(name + "joinVertically", joined.length, new Benchmark.ICase() {
+                @Override
+                public void run() {
+                    PixelKernels.joinVertically(pixels, width, height, otherPixels, width, height, joined);
+                    Benchmark.sBlackHole += joined[joined.length / 2];
+                }
+            });
+
+            final int diameter = Math.min(width, height);
+            final int offset = (height - diameter) / 2 * width + (width - diameter) / 2;
+            Benchmark.measure(name + "circleMask " + diameter, (long) diameter * diameter, new Benchmark.ICase() {
+                @Override
+                public void run() {
+                    PixelKernels.circleMask(pixels, offset, width, diameter);
+                    Benchmark.sBlackHole += pixels[offset + diameter / 2 * width + diameter / 2];
+                }
+            });
+
+            final int[] thumbnail = new int[THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+            Benchmark.measure(name + "scaleCenterCrop to " + THUMBNAIL_SIZE, thumbnail.length, new Benchmark.ICase() {
+                @Override
+                public void run() {
+                    PixelKernels.scaleCenterCrop(otherPixels, width, height, thumbnail, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+                    Benchmark.sBlackHole += thumbnail[thumbnail.length / 2];
+                }
+            });
+            final int halfWidth = width / 2;
+            final int halfHeight = height / 2;
+            final int[] half = new int[halfWidth * halfHeight];
+            Benchmark.measure(name + "scaleCenterCrop to half", half.length, new Benchmark.ICase() {
+                @Override
+                public void run() {
+                    PixelKernels.scaleCenterCrop(otherPixels, width, height, half, halfWidth, halfHeight);
+                    Benchmark.sBlackHole += half[half.length / 2];
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.stanko.image;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares StackBlur with LegacyStackBlur (ImageUtils.blurBitmap() before StackBlur) across
+ * radii and image sizes, see Benchmark for how to run it. Results of both are checked to be
+ * bit-identical before measuring. Each run blurs a fresh copy of the same source pixels, the copy
+ * is included in the time of both implementations.
+ */
+public class StackBlurBenchmark {
+
+    private static final int[][] SIZES = {
+            {320, 320},     // avatar
+            {1080, 1920},   // FullHD screen
+            {3024, 4032}    // 12MP photo
+    };
+    private static final int[] RADII = {2, 8, 25, 100};
+
+    public static void main(final String[] args) {
+        Benchmark.printHeader("StackBlur vs legacy blur");
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final int[] source = Benchmark.createPixels(width, height, 42);
+            final int[] pixels = new int[source.length];
+            for (final int radius : RADII) {
+                checkIdentical(source, width, height, radius);
+                final String name = String.format(Locale.US, "%dx%d r=%d", width, height, radius);
+                final double legacyTime = Benchmark.measure(name + " legacy", source.length, new Benchmark.ICase() {
+                    @Override
+                    public void run() {
+                        System.arraycopy(source, 0, pixels, 0, source.length);
+                        LegacyStackBlur.blur(pixels, width, height, radius);
+                        Benchmark.sBlackHole += pixels[pixels.length / 2];
+                    }
+                });
+                final double time = Benchmark.measure(name + " StackBlur", source.length, new Benchmark.ICase() {
+                    @Override
+                    public void run() {
+                        System.arraycopy(source, 0, pixels, 0, source.length);
+                        StackBlur.blur(pixels, width, height, radius);
+                        Benchmark.sBlackHole += pixels[pixels.length / 2];
+                    }
+                });
+                System.out.println(String.format(Locale.US, "%-44s %10.2fx", name + " speedup", legacyTime / time));
+            }
+        }
+    }
+
+    private static void checkIdentical(final int[] source, final int width, final int height, final int radius) {
+        final int[] expected = source.clone();
+        LegacyStackBlur.blur(expected, width, height, radius);
+        final int[] actual = source.clone();
+        StackBlur.blur(actual, width, height, radius);
+        if (!Arrays.equals(expected, actual))
+            throw new IllegalStateException("StackBlur differs from legacy blur at " + width + "x" + height + " r=" + radius);
+    }
+}
@@ -0,0 +1,268 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.ImageUtils;
+import com.stanko.tools.Log;
+import com.stanko.tools.SharedPrefsHelper;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Avatar saved by SharedPrefsHelper.setAvatar() kept in several pre-scaled variants, so showing
+ * it in lists neither reads nor decodes the full image.
+ * <p>
+ * Variants (48, 96 and 256px by default, longest side) are written next to the avatar on
+ * a background thread whenever a new avatar is saved, each decoded variant is kept in memory.
+ * getBitmap(size) returns the smallest variant not smaller than requested size: from memory or
+ * from its file, while variants are not written yet it returns null.
+ */
+public class AvatarStore {
+
+    private static final String LOG_TAG = AvatarStore.class.getSimpleName();
+
+    public static final int[] DEFAULT_SIZES = {48, 96, 256};
+    public static final int VARIANT_QUALITY = 90;
+
+    private static final String VARIANTS_DIR_NAME = "avatars";
+    private static final String STAGING_DIR_NAME = ".staging";
+
+    private static AvatarStore sInstance;
+    private static ThreadPoolExecutor sExecutor;
+
+    private final File mAvatarFile;
+    private final File mVariantsDir;
+    private final int[] mSizes;
+    // variant size -> decoded variant, guarded by this
+    private final HashMap<Integer, Bitmap> mBitmaps = new HashMap<>();
+    // changed by each update() and remove() so stale work is never published
+    private int mVersion;
+    // version variants are being written for, -1 when writing is not in progress, guarded by this
+    private int mScheduledVersion = -1;
+
+    /**
+     * Returns the store of SharedPrefsHelper avatar
+     *
+     * @return AvatarStore or null if SharedPrefsHelper is not initialized
+     */
+    public static synchronized AvatarStore getInstance() {
+        if (sInstance == null) {
+            final File avatarFile = SharedPrefsHelper.getAvatarFile();
+            if (avatarFile == null)
+                return null;
+            sInstance = new AvatarStore(avatarFile, DEFAULT_SIZES);
+        }
+        return sInstance;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * @param avatarFile - full size avatar
+     * @param sizes      - variant sizes in px (longest side)
+     */
+    public AvatarStore(final File avatarFile, final int[] sizes) {
+        if (avatarFile == null || sizes == null || sizes.length == 0)
+            throw new IllegalArgumentException("Avatar file and sizes must not be null or empty");
+        mAvatarFile = avatarFile;
+        mVariantsDir = new File(avatarFile.getAbsoluteFile().getParentFile(), VARIANTS_DIR_NAME);
+        mSizes = sizes.clone();
+        Arrays.sort(mSizes);
+    }
+
+    public File getAvatarFile() {
+        return mAvatarFile;
+    }
+
+    /**
+     * @return smallest variant size not smaller than given one, or the biggest variant size
+     */
+    public int getVariantSize(final int size) {
+        for (int variantSize : mSizes)
+            if (variantSize >= size)
+                return variantSize;
+        return mSizes[mSizes.length - 1];
+    }
+
+    public File getVariantFile(final int size) {
+        return new File(mVariantsDir, "avatar_" + getVariantSize(size) + ".jpg");
+    }
+
+    //
+    // Reading
+    //
+
+    /**
+     * Returns avatar scaled to the smallest variant not smaller than given size. Returned
+     * bitmap is shared and must not be recycled or modified.
+     * <p>
+     * The full size avatar is never decoded on the calling thread: while variants are not
+     * written yet null is returned and they are written in background, so call it again later.
+     *
+     * @param size - size in px the avatar is shown at
+     * @return Bitmap or null if there is no avatar or its variant is not ready yet
+     */
+    public Bitmap getBitmap(final int size) {
+        final int variantSize = getVariantSize(size);
+        final int version;
+        synchronized (this) {
+            final Bitmap bitmap = mBitmaps.get(variantSize);
+            if (bitmap != null && !bitmap.isRecycled())
+                return bitmap;
+            version = mVersion;
+        }
+
+        if (!mAvatarFile.exists())
+            return null;
+        Bitmap bitmap = null;
+        final File variantFile = getVariantFile(variantSize);
+        if (variantFile.exists() && variantFile.lastModified() >= mAvatarFile.lastModified())
+            bitmap = BitmapFactory.decodeFile(variantFile.getAbsolutePath());
+        if (bitmap == null) {
+            // variants are not written yet or are stale
+            scheduleVariants(version);
+            return null;
+        }
+        return putBitmap(version, variantSize, bitmap);
+    }
+
+    /**
+     * Keeps decoded variant unless the avatar was changed meanwhile
+     *
+     * @return bitmap to use: given one or the one cached before
+     */
+    private synchronized Bitmap putBitmap(final int version, final int variantSize, final Bitmap bitmap) {
+        if (version != mVersion)
+            return bitmap;
+        final Bitmap cachedBitmap = mBitmaps.get(variantSize);
+        if (cachedBitmap != null && !cachedBitmap.isRecycled())
+            return cachedBitmap;
+        mBitmaps.put(variantSize, bitmap);
+        return bitmap;
+    }
+
+    //
+    // Updating
+    //
+
+    /**
+     * Drops variants and writes new ones in background, to be called after the avatar file
+     * was changed
+     */
+    public void update() {
+        final int version;
+        synchronized (this) {
+            version = ++mVersion;
+            mBitmaps.clear();
+        }
+        // modification times could not tell variants of an avatar saved within the same second
+        deleteVariants();
+        scheduleVariants(version);
+    }
+
+    /**
+     * Drops variants, to be called after the avatar file was deleted
+     */
+    public void remove() {
+        synchronized (this) {
+            ++mVersion;
+            mBitmaps.clear();
+        }
+        deleteVariants();
+    }
+
+    private void deleteVariants() {
+        for (int size : mSizes) {
+            final File variantFile = getVariantFile(size);
+            if (variantFile.exists() && !variantFile.delete())
+                Log.w(LOG_TAG, "Could not delete " + variantFile);
+        }
+    }
+
+    private synchronized boolean isStale(final int version) {
+        return version != mVersion;
+    }
+
+    private void scheduleVariants(final int version) {
+        synchronized (this) {
+            // getBitmap() calls while variants are written must not queue them again
+            if (mScheduledVersion == version)
+                return;
+            mScheduledVersion = version;
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeVariants(version);
+                } finally {
+                    // a variant failed, deleted later or dropped by trimMemory() is scheduled again
+                    // by the next getBitmap()
+                    synchronized (AvatarStore.this) {
+                        if (mScheduledVersion == version)
+                            mScheduledVersion = -1;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes missing or stale variants through a staging dir so a variant file is always complete
+     */
+    private void writeVariants(final int version) {
+        final File stagingDir = new File(mVariantsDir, STAGING_DIR_NAME);
+        for (int size : mSizes) {
+            if (isStale(version) || !mAvatarFile.exists())
+                return;
+            final File variantFile = getVariantFile(size);
+            final long avatarTime = mAvatarFile.lastModified();
+            if (variantFile.exists() && variantFile.lastModified() >= avatarTime)
+                continue;
+            final ImageBatchProcessor.Spec spec = new ImageBatchProcessor.Spec(size, CompressFormat.JPEG,
+                    VARIANT_QUALITY, new File(stagingDir, String.valueOf(size)));
+            final File stagedFile = ImageBatchProcessor.getInstance().processFile(mAvatarFile, spec);
+            if (stagedFile == null) {
+                Log.w(LOG_TAG, "Could not write " + size + "px avatar variant");
+                // keep it in memory at least, rotated by EXIF the same way variants are
+                final Bitmap bitmap = ImageUtils.getRotatedBitmapByExif(mAvatarFile, size);
+                if (bitmap != null)
+                    putBitmap(version, size, bitmap);
+                continue;
+            }
+            if (isStale(version) || !FileUtils.isWritable(variantFile, true) || !stagedFile.renameTo(variantFile)) {
+                if (!isStale(version))
+                    Log.e(LOG_TAG, "Could not move " + stagedFile + " to " + variantFile);
+                if (!stagedFile.delete())
+                    Log.w(LOG_TAG, "Could not delete " + stagedFile);
+                continue;
+            }
+            // avatar was saved again while this variant was written
+            if ((isStale(version) || mAvatarFile.lastModified() != avatarTime) && !variantFile.delete())
+                Log.w(LOG_TAG, "Could not delete stale " + variantFile);
+        }
+    }
+
+    /**
+     * Drops decoded variants, they are read from files again when needed
+     */
+    public synchronized void trimMemory() {
+        mBitmaps.clear();
+    }
+}
@@ -0,0 +1,425 @@
+package com.stanko.image;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.LruCache;
+
+import com.stanko.tools.Hash;
+import com.stanko.tools.ImageUtils;
+import com.stanko.tools.Log;
+import com.stanko.tools.SDCardHelper;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier (memory + disk) bitmap cache.
+ * <p>
+ * Memory tier is a LRU cache of decoded Bitmaps bounded by the sum of
+ * ImageUtils.getBitmapSizeInBytes() of its entries. Disk tier is a {@link DiskLruCache} bounded by
+ * a byte budget which keeps encoded images named by MD5(url), exactly like
+ * SDCardHelper.getFileForImageCaching() does, so images saved by SDCardHelper.saveImage() are
+ * picked up by the cache too.
+ * <p>
+ * Hit/miss/eviction counters of both tiers are available through {@link #getStats()} to tune
+ * budgets per device class.
+ */
+public class BitmapCache {
+
+    private static final String LOG_TAG = BitmapCache.class.getSimpleName();
+
+    public static final long DEFAULT_DISK_CACHE_SIZE = 50 * 1024 * 1024; // 50Mb
+    // part of the app heap memory tier may take by default
+    public static final int DEFAULT_MEMORY_CACHE_DIVIDER = 8;
+
+    private static BitmapCache sInstance;
+
+    private static final boolean IS_JELLY_BEAN_MR1 = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDiskCacheDir;
+    private final long mDiskCacheSize;
+    private DiskLruCache mDiskCache;
+    private final int mMaxSideSize;
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mMemoryMisses = new AtomicLong();
+    private final AtomicLong mMemoryEvictions = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mDiskMisses = new AtomicLong();
+
+    /**
+     * Returns default cache instance: memory tier takes 1/8 of app heap, disk tier keeps up to
+     * 50Mb in SDCardHelper.getCacheDir(). SDCardHelper or Initializer must be initialized first.
+     *
+     * @return BitmapCache
+     */
+    public static synchronized BitmapCache getInstance() {
+        if (sInstance == null)
+            sInstance = new BitmapCache(getDefaultMemoryCacheSize(), SDCardHelper.getCacheDir(), DEFAULT_DISK_CACHE_SIZE, 0);
+        return sInstance;
+    }
+
+    /**
+     * @return default memory tier size in bytes, 1/8 of max heap size
+     */
+    public static int getDefaultMemoryCacheSize() {
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_CACHE_DIVIDER);
+    }
+
+    /**
+     * @param memoryCacheSize - memory tier budget in bytes
+     * @param diskCacheDir    - disk tier directory, disk tier is disabled if null
+     * @param diskCacheSize   - disk tier budget in bytes
+     * @param maxSideSize     - max side size of bitmaps decoded from disk tier. Uses
+     *                        DeviceInfo.getDeviceMaxSideSizeByDensity() if 0 passed.
+     */
+    public BitmapCache(final int memoryCacheSize, final File diskCacheDir, final long diskCacheSize, final int maxSideSize) {
+        mMemoryCache = new LruCache<String, Bitmap>(Math.max(1, memoryCacheSize)) {
+            @Override
+            protected int sizeOf(final String key, final Bitmap bitmap) {
+                return Math.max(1, ImageUtils.getBitmapSizeInBytes(bitmap));
+            }
+
+            @Override
+            protected void entryRemoved(final boolean evicted, final String key, final Bitmap oldValue, final Bitmap newValue) {
+                if (evicted)
+                    mMemoryEvictions.incrementAndGet();
+            }
+        };
+        mDiskCacheDir = diskCacheDir;
+        mDiskCacheSize = diskCacheSize;
+        mMaxSideSize = maxSideSize;
+    }
+
+    /**
+     * Opens disk tier on demand since reading its journal is a file system operation which
+     * should not be done on a main thread while creating an instance.
+     */
+    private synchronized DiskLruCache getDiskCache() {
+        if (mDiskCache == null && mDiskCacheDir != null && mDiskCacheSize > 0)
+            mDiskCache = DiskLruCache.open(mDiskCacheDir, mDiskCacheSize);
+        return mDiskCache;
+    }
+
+    /**
+     * Returns a cache key for given url, same as SDCardHelper uses as a file name
+     *
+     * @param url
+     * @return MD5 of url
+     */
+    public static String getKey(final String url) {
+        return Hash.getMD5(url);
+    }
+
+    //
+    // Reading
+    //
+
+    /**
+     * Returns Bitmap from memory tier or decodes it from disk tier putting it to memory tier.
+     * Decoding is a file system operation so it must not be called on main thread, use
+     * {@link #getFromMemory(String)} there.
+     *
+     * @param url of an image
+     * @return Bitmap or null if there is no such image in cache
+     */
+    public Bitmap get(final String url) {
+        if (url == null)
+            return null;
+        final String key = getKey(url);
+        Bitmap bitmap = getFromMemoryByKey(key);
+        if (bitmap != null)
+            return bitmap;
+
+        final File file = getFileFromDiskByKey(key);
+        if (file == null)
+            return null;
+
+        bitmap = ImageUtils.getBitmapFromFileWithMaxSideSize(file, mMaxSideSize);
+        if (bitmap == null) {
+            // not an image or broken file
+            getDiskCache().remove(key);
+            return null;
+        }
+        mMemoryCache.put(key, bitmap);
+        return bitmap;
+    }
+
+    public Bitmap get(final URL url) {
+        return url == null ? null : get(url.toString());
+    }
+
+    /**
+     * Returns Bitmap from memory tier only, safe to be called on main thread
+     *
+     * @param url of an image
+     * @return Bitmap or null
+     */
+    public Bitmap getFromMemory(final String url) {
+        if (url == null)
+            return null;
+        return getFromMemoryByKey(getKey(url));
+    }
+
+    private Bitmap getFromMemoryByKey(final String key) {
+        final Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null && bitmap.isRecycled()) {
+            // somebody recycled a cached bitmap
+            mMemoryCache.remove(key);
+            mMemoryMisses.incrementAndGet();
+            return null;
+        }
+        if (bitmap == null)
+            mMemoryMisses.incrementAndGet();
+        else
+            mMemoryHits.incrementAndGet();
+        return bitmap;
+    }
+
+    /**
+     * Returns File of cached encoded image from disk tier
+     *
+     * @param url of an image
+     * @return File or null if there is no such image cached
+     */
+    public File getFromDisk(final String url) {
+        if (url == null)
+            return null;
+        return getFileFromDiskByKey(getKey(url));
+    }
+
+    private File getFileFromDiskByKey(final String key) {
+        final DiskLruCache diskCache = getDiskCache();
+        final File file = diskCache == null ? null : diskCache.get(key);
+        if (file == null)
+            mDiskMisses.incrementAndGet();
+        else
+            mDiskHits.incrementAndGet();
+        return file;
+    }
+
+    /**
+     * @param url of an image
+     * @return true if image is cached in any tier. Does not change LRU order.
+     */
+    public boolean contains(final String url) {
+        if (url == null)
+            return false;
+        final String key = getKey(url);
+        if (mMemoryCache.snapshot().containsKey(key))
+            return true;
+        final DiskLruCache diskCache = getDiskCache();
+        return diskCache != null && diskCache.contains(key);
+    }
+
+    //
+    // Writing
+    //
+
+    /**
+     * Puts given Bitmap to memory tier only
+     *
+     * @param url    of an image
+     * @param bitmap
+     */
+    public void put(final String url, final Bitmap bitmap) {
+        if (url == null || bitmap == null || bitmap.isRecycled())
+            return;
+        mMemoryCache.put(getKey(url), bitmap);
+    }
+
+    /**
+     * Puts encoded image (as downloaded) to disk tier. Must not be called on main thread.
+     *
+     * @param url   of an image
+     * @param image encoded image bytes
+     * @return true if succeed
+     */
+    public boolean put(final String url, final byte[] image) {
+        if (url == null || image == null)
+            return false;
+        final DiskLruCache diskCache = getDiskCache();
+        return diskCache != null && diskCache.put(getKey(url), image);
+    }
+
+    /**
+     * Puts encoded image stream (as being downloaded) to disk tier. Given stream will not be
+     * closed. Must not be called on main thread.
+     *
+     * @param url         of an image
+     * @param inputStream of encoded image
+     * @return true if succeed
+     */
+    public boolean put(final String url, final InputStream inputStream) {
+        if (url == null || inputStream == null)
+            return false;
+        final DiskLruCache diskCache = getDiskCache();
+        return diskCache != null && diskCache.put(getKey(url), inputStream);
+    }
+
+    /**
+     * Puts decoded Bitmap to memory tier and its encoded image to disk tier
+     *
+     * @param url    of an image
+     * @param bitmap decoded image
+     * @param image  encoded image bytes
+     * @return true if disk tier write succeed
+     */
+    public boolean put(final String url, final Bitmap bitmap, final byte[] image) {
+        put(url, bitmap);
+        return put(url, image);
+    }
+
+    /**
+     * Removes an image from both tiers
+     *
+     * @param url of an image
+     */
+    public void remove(final String url) {
+        if (url == null)
+            return;
+        final String key = getKey(url);
+        mMemoryCache.remove(key);
+        final DiskLruCache diskCache = getDiskCache();
+        if (diskCache != null)
+            diskCache.remove(key);
+    }
+
+    public void clearMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * Clears both tiers. Must not be called on main thread.
+     */
+    public void clear() {
+        mMemoryCache.evictAll();
+        final DiskLruCache diskCache = getDiskCache();
+        if (diskCache != null)
+            diskCache.clear();
+    }
+
+    /**
+     * Trims memory tier according to ComponentCallbacks2.onTrimMemory() level, should be called
+     * from Application.onTrimMemory()
+     *
+     * @param level
+     */
+    public void trimMemory(final int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            mMemoryCache.evictAll();
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+            trimMemoryCache(mMemoryCache.maxSize() / 2);
+    }
+
+    /**
+     * LruCache.trimToSize() is public since API 17 only
+     */
+    private void trimMemoryCache(final int maxSize) {
+        if (IS_JELLY_BEAN_MR1) {
+            mMemoryCache.trimToSize(maxSize);
+            return;
+        }
+        // snapshot is ordered from least to most recently used
+        for (String key : mMemoryCache.snapshot().keySet()) {
+            if (mMemoryCache.size() <= maxSize)
+                return;
+            mMemoryCache.remove(key);
+        }
+    }
+
+    /**
+     * Flushes disk tier journal, could be called from Activity.onPause()
+     */
+    public void flush() {
+        final DiskLruCache diskCache = mDiskCache;
+        if (diskCache != null)
+            diskCache.flush();
+    }
+
+    //
+    // Statistics
+    //
+
+    public Stats getStats() {
+        final DiskLruCache diskCache = mDiskCache;
+        return new Stats(mMemoryCache.size(),
+                mMemoryCache.maxSize(),
+                mMemoryHits.get(),
+                mMemoryMisses.get(),
+                mMemoryEvictions.get(),
+                diskCache == null ? 0 : diskCache.getSize(),
+                diskCache == null ? mDiskCacheSize : diskCache.getMaxSize(),
+                mDiskHits.get(),
+                mDiskMisses.get(),
+                diskCache == null ? 0 : diskCache.getEvictionCount());
+    }
+
+    public void resetStats() {
+        mMemoryHits.set(0);
+        mMemoryMisses.set(0);
+        mMemoryEvictions.set(0);
+        mDiskHits.set(0);
+        mDiskMisses.set(0);
+    }
+
+    /**
+     * Snapshot of cache counters. Since all fields are final and public no getters need.
+     */
+    public static class Stats {
+
+        public final long memorySize;
+        public final long memoryMaxSize;
+        public final long memoryHits;
+        public final long memoryMisses;
+        public final long memoryEvictions;
+        public final long diskSize;
+        public final long diskMaxSize;
+        public final long diskHits;
+        public final long diskMisses;
+        public final long diskEvictions;
+
+        public Stats(final long memorySize, final long memoryMaxSize, final long memoryHits, final long memoryMisses, final long memoryEvictions,
+                     final long diskSize, final long diskMaxSize, final long diskHits, final long diskMisses, final long diskEvictions) {
+            this.memorySize = memorySize;
+            this.memoryMaxSize = memoryMaxSize;
+            this.memoryHits = memoryHits;
+            this.memoryMisses = memoryMisses;
+            this.memoryEvictions = memoryEvictions;
+            this.diskSize = diskSize;
+            this.diskMaxSize = diskMaxSize;
+            this.diskHits = diskHits;
+            this.diskMisses = diskMisses;
+            this.diskEvictions = diskEvictions;
+        }
+
+        public float getMemoryHitRate() {
+            final long requests = memoryHits + memoryMisses;
+            return requests == 0 ? 0 : (float) memoryHits / requests;
+        }
+
+        public float getDiskHitRate() {
+            final long requests = diskHits + diskMisses;
+            return requests == 0 ? 0 : (float) diskHits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "memory: %d/%d bytes hits: %d misses: %d (%.1f%%) evictions: %d; disk: %d/%d bytes hits: %d misses: %d (%.1f%%) evictions: %d",
+                    memorySize, memoryMaxSize, memoryHits, memoryMisses, getMemoryHitRate() * 100, memoryEvictions,
+                    diskSize, diskMaxSize, diskHits, diskMisses, getDiskHitRate() * 100, diskEvictions);
+        }
+    }
+
+    /**
+     * Logs current stats, handy while tuning budgets
+     */
+    public void logStats() {
+        Log.i(LOG_TAG, getStats().toString());
+    }
+}
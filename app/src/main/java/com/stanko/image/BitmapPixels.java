@@ -0,0 +1,84 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.SoftReference;
+
+/**
+ * Adapters moving pixels between Bitmap and packed ARGB buffers processed by PixelKernels and
+ * StackBlur. Keeps the biggest released buffer (softly referenced) to be reused by next call.
+ */
+public class BitmapPixels {
+
+    private static SoftReference<int[]> sPixelsBuffer;
+
+    /**
+     * Returns a buffer of at least given size, reused one if possible. Content is undefined.
+     *
+     * @param size - number of pixels
+     * @return int[]
+     */
+    public static synchronized int[] obtainBuffer(final int size) {
+        final int[] pixels = sPixelsBuffer == null ? null : sPixelsBuffer.get();
+        if (pixels != null && pixels.length >= size) {
+            sPixelsBuffer = null;
+            return pixels;
+        }
+        return new int[size];
+    }
+
+    /**
+     * Gives the buffer back to be reused, it must not be used after this call
+     *
+     * @param pixels
+     */
+    public static synchronized void releaseBuffer(final int[] pixels) {
+        if (pixels == null)
+            return;
+        final int[] pooledPixels = sPixelsBuffer == null ? null : sPixelsBuffer.get();
+        if (pooledPixels == null || pooledPixels.length < pixels.length)
+            sPixelsBuffer = new SoftReference<>(pixels);
+    }
+
+    /**
+     * Reads pixels of given bitmap row by row (stride is bitmap width) into a reused buffer
+     * which should be given back by releaseBuffer()
+     *
+     * @param bitmap
+     * @return int[] of at least width * height length
+     */
+    public static int[] obtainPixels(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] pixels = obtainBuffer(width * height);
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        return pixels;
+    }
+
+    /**
+     * Writes pixels (stride is bitmap width) to given mutable bitmap
+     *
+     * @param bitmap
+     * @param pixels
+     */
+    public static void setPixels(final Bitmap bitmap, final int[] pixels) {
+        final int width = bitmap.getWidth();
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, bitmap.getHeight());
+    }
+
+    /**
+     * Returns mutable (pooled if possible) bitmap of given dimensions and config filled with
+     * given pixels
+     *
+     * @param pixels - pixels row by row, stride is width
+     * @param width
+     * @param height
+     * @param config - ARGB_8888 if null
+     * @return Bitmap
+     */
+    public static Bitmap createBitmap(final int[] pixels, final int width, final int height, final Bitmap.Config config) {
+        final Bitmap bitmap = BitmapPool.getInstance().get(width, height, config);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+}
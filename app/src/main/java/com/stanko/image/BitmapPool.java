@@ -0,0 +1,300 @@
+package com.stanko.image;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+
+import com.stanko.tools.ImageUtils;
+import com.stanko.tools.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable Bitmaps to be reused by decoding (BitmapFactory.Options.inBitmap) and by
+ * ImageUtils transformations instead of allocating a new Bitmap every time.
+ * <p>
+ * Bitmaps are grouped by Config and keyed by their allocation size on KitKat+ (where any bitmap
+ * which is big enough could be reused) or by exact width and height before KitKat (where only
+ * equal sized bitmaps could be reused). The pool is bounded by a byte budget, least recently
+ * released bitmaps are recycled first.
+ * <p>
+ * Only release bitmaps to the pool which are not used (displayed) anymore.
+ */
+public class BitmapPool {
+
+    private static final String LOG_TAG = BitmapPool.class.getSimpleName();
+
+    // part of the app heap the pool may take by default
+    public static final int DEFAULT_POOL_SIZE_DIVIDER = 16;
+    // do not reuse a bitmap for a decode which needs less than 1/MAX_SIZE_MULTIPLE of its memory
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static final boolean IS_KITKAT = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private static BitmapPool sInstance;
+
+    private final HashMap<Bitmap.Config, TreeMap<Long, ArrayDeque<Bitmap>>> mGroups = new HashMap<>();
+    // release order for LRU eviction
+    private final LinkedHashMap<Bitmap, Long> mBitmaps = new LinkedHashMap<>();
+    private long mMaxSize;
+    private long mSize;
+
+    private long mHits;
+    private long mMisses;
+    private long mPuts;
+    private long mRejects;
+    private long mEvictions;
+
+    /**
+     * @return default pool instance which takes up to 1/16 of app heap
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null)
+            sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / DEFAULT_POOL_SIZE_DIVIDER);
+        return sInstance;
+    }
+
+    /**
+     * @param maxSize - byte budget of the pool
+     */
+    public BitmapPool(final long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    private static long getKey(final int width, final int height, final Bitmap.Config config) {
+        if (IS_KITKAT)
+            return (long) width * height * getBytesPerPixel(config);
+        return ((long) width << 32) | height;
+    }
+
+    private static long getKey(final Bitmap bitmap) {
+        if (IS_KITKAT)
+            return ImageUtils.getBitmapSizeInBytes(bitmap);
+        return ((long) bitmap.getWidth() << 32) | bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(final Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8)
+            return 1;
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+            return 2;
+        return 4;
+    }
+
+    /**
+     * Releases given bitmap to the pool. Bitmap which could not be pooled (immutable, too big or
+     * having unsupported config) gets recycled.
+     *
+     * @param bitmap - bitmap which is not used anymore
+     * @return true if pooled, false if recycled or null
+     */
+    public synchronized boolean put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return false;
+        final long size = ImageUtils.getBitmapSizeInBytes(bitmap);
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || size > mMaxSize / 2 || mBitmaps.containsKey(bitmap)) {
+            if (!mBitmaps.containsKey(bitmap)) {
+                mRejects++;
+                bitmap.recycle();
+            }
+            return false;
+        }
+        final long key = getKey(bitmap);
+        TreeMap<Long, ArrayDeque<Bitmap>> group = mGroups.get(bitmap.getConfig());
+        if (group == null) {
+            group = new TreeMap<>();
+            mGroups.put(bitmap.getConfig(), group);
+        }
+        ArrayDeque<Bitmap> bitmaps = group.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            group.put(key, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        mBitmaps.put(bitmap, key);
+        mSize += size;
+        mPuts++;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Returns a pooled bitmap which could be decoded into (inBitmap) for decoding of an image of
+     * given dimensions. Content of the bitmap is undefined.
+     *
+     * @param width  - width of decoded image
+     * @param height - height of decoded image
+     * @param config - config of decoded image
+     * @return Bitmap or null if nothing suitable is pooled
+     */
+    private synchronized Bitmap getForDecode(final int width, final int height, final Bitmap.Config config) {
+        final TreeMap<Long, ArrayDeque<Bitmap>> group = mGroups.get(config);
+        if (group == null || width <= 0 || height <= 0) {
+            mMisses++;
+            return null;
+        }
+        final long key = getKey(width, height, config);
+        final Long foundKey = IS_KITKAT ? group.ceilingKey(key) : (group.containsKey(key) ? key : null);
+        if (foundKey == null || IS_KITKAT && foundKey > key * MAX_SIZE_MULTIPLE) {
+            mMisses++;
+            return null;
+        }
+        final ArrayDeque<Bitmap> bitmaps = group.get(foundKey);
+        final Bitmap bitmap = bitmaps.pollLast();
+        if (bitmaps.isEmpty())
+            group.remove(foundKey);
+        mBitmaps.remove(bitmap);
+        mSize -= ImageUtils.getBitmapSizeInBytes(bitmap);
+        mHits++;
+        return bitmap;
+    }
+
+    /**
+     * Returns a transparent mutable bitmap of exact given dimensions, taken from the pool if
+     * possible or newly allocated otherwise.
+     *
+     * @param width
+     * @param height
+     * @param config
+     * @return Bitmap
+     */
+    public Bitmap get(final int width, final int height, Bitmap.Config config) {
+        if (config == null)
+            config = Bitmap.Config.ARGB_8888;
+        final Bitmap bitmap = getForDecode(width, height, config);
+        if (bitmap != null) {
+            if (IS_KITKAT && (bitmap.getWidth() != width || bitmap.getHeight() != height))
+                bitmap.reconfigure(width, height, config);
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Sets inBitmap of given options to a pooled bitmap if there is a suitable one.
+     * Options must contain bounds (outWidth, outHeight, outMimeType) and final inSampleSize.
+     *
+     * @param bmfOptions - options decoded with inJustDecodeBounds
+     * @return true if inBitmap was set
+     */
+    public boolean setInBitmap(final BitmapFactory.Options bmfOptions) {
+        bmfOptions.inBitmap = null;
+        if (bmfOptions.outWidth <= 0 || bmfOptions.outHeight <= 0)
+            return false;
+        // decoder rounds inSampleSize down to the nearest power of 2
+        final int sampleSize = Math.max(1, Integer.highestOneBit(Math.max(1, bmfOptions.inSampleSize)));
+        if (!IS_KITKAT && (sampleSize != 1
+                || !"image/jpeg".equals(bmfOptions.outMimeType) && !"image/png".equals(bmfOptions.outMimeType)))
+            return false;
+        final int width = (bmfOptions.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (bmfOptions.outHeight + sampleSize - 1) / sampleSize;
+        final Bitmap.Config config = bmfOptions.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : bmfOptions.inPreferredConfig;
+        final Bitmap bitmap = getForDecode(width, height, config);
+        if (bitmap == null)
+            return false;
+        bmfOptions.inBitmap = bitmap;
+        bmfOptions.inMutable = true;
+        return true;
+    }
+
+    private void trimToSize(final long maxSize) {
+        final Iterator<java.util.Map.Entry<Bitmap, Long>> iterator = mBitmaps.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final java.util.Map.Entry<Bitmap, Long> entry = iterator.next();
+            final Bitmap bitmap = entry.getKey();
+            iterator.remove();
+            final TreeMap<Long, ArrayDeque<Bitmap>> group = mGroups.get(bitmap.getConfig());
+            if (group != null) {
+                final ArrayDeque<Bitmap> bitmaps = group.get(entry.getValue());
+                if (bitmaps != null) {
+                    bitmaps.remove(bitmap);
+                    if (bitmaps.isEmpty())
+                        group.remove(entry.getValue());
+                }
+            }
+            mSize -= ImageUtils.getBitmapSizeInBytes(bitmap);
+            mEvictions++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Changes the byte budget evicting bitmaps if needed
+     *
+     * @param maxSize
+     */
+    public synchronized void setMaxSize(final long maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Recycles all pooled bitmaps
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Trims the pool according to ComponentCallbacks2.onTrimMemory() level, should be called
+     * from Application.onTrimMemory()
+     *
+     * @param level
+     */
+    public synchronized void trimMemory(final int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            trimToSize(0);
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            trimToSize(mMaxSize / 2);
+    }
+
+    //
+    // Statistics
+    //
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * @return part of requests which were served by reusing a pooled bitmap, 0..1
+     */
+    public synchronized float getReuseRate() {
+        final long requests = mHits + mMisses;
+        return requests == 0 ? 0 : (float) mHits / requests;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "size: %d/%d bytes, pooled: %d, hits: %d, misses: %d, reuse rate: %.1f%%, puts: %d, rejects: %d, evictions: %d",
+                mSize, mMaxSize, mBitmaps.size(), mHits, mMisses, getReuseRate() * 100, mPuts, mRejects, mEvictions);
+    }
+
+    public void logStats() {
+        Log.i(LOG_TAG, toString());
+    }
+}
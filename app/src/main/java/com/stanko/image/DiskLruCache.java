@@ -0,0 +1,516 @@
+package com.stanko.image;
+
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-size-bounded LRU cache of files stored in a single directory. Every entry is a plain
+ * file named by its key (MD5 of an image url for BitmapCache, the same naming SDCardHelper uses)
+ * so entries stay readable by any code which knows the key.
+ * <p>
+ * The state of the cache is kept in a journal file: each PUT/READ/REMOVE operation is appended
+ * as a single line, so opening the cache replays the journal instead of listing and stat'ing the
+ * whole directory. The journal is compacted once it grows twice bigger than the live entries.
+ * <p>
+ * Keys must not contain whitespaces or line breaks. All methods are thread safe.
+ */
+public class DiskLruCache {
+
+    private static final String LOG_TAG = DiskLruCache.class.getSimpleName();
+
+    static final String JOURNAL_FILE = "bitmap_cache.journal";
+    static final String JOURNAL_FILE_TMP = "bitmap_cache.journal.tmp";
+    static final String MAGIC = "com.stanko.image.DiskLruCache";
+    static final String VERSION = "1";
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+    private long mMaxSize;
+    private long mSize;
+    private int mRedundantOpCount;
+    private long mEvictionCount;
+    private Writer mJournalWriter;
+    private final AtomicLong mTmpFilesCount = new AtomicLong();
+
+    // key -> entry size in bytes, access ordered so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+
+    /**
+     * Opens the cache in given directory creating it if necessary.
+     *
+     * @param directory - a directory to keep cached files and the journal in
+     * @param maxSize   - max size of all cached files in bytes
+     * @return DiskLruCache or null if directory is not writable
+     */
+    public static DiskLruCache open(final File directory, final long maxSize) {
+        if (directory == null || maxSize <= 0) {
+            Log.e(LOG_TAG, "open(): invalid directory or maxSize: " + directory + " " + maxSize);
+            return null;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(LOG_TAG, "open(): can't create directory: " + directory);
+            return null;
+        }
+        final DiskLruCache cache = new DiskLruCache(directory, maxSize);
+        cache.deleteTmpFiles();
+        if (cache.mJournalFile.exists()) {
+            try {
+                cache.readJournal();
+                cache.mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cache.mJournalFile, true), UTF_8));
+                return cache;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "open(): journal is corrupted, rebuilding", e);
+                cache.mEntries.clear();
+                cache.mSize = 0;
+            }
+        }
+        try {
+            cache.rebuildJournal();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "open(): can't write journal", e);
+            return null;
+        }
+        return cache;
+    }
+
+    private DiskLruCache(final File directory, final long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+    }
+
+    /**
+     * Deletes entries left unfinished by the previous process
+     */
+    private void deleteTmpFiles() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files)
+            if (file.getName().endsWith(TMP_SUFFIX) && !file.getName().equals(JOURNAL_FILE_TMP) && !file.delete())
+                Log.w(LOG_TAG, "open(): can't delete " + file);
+    }
+
+    private void readJournal() throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), UTF_8), BUFFER_SIZE);
+        try {
+            final String magic = reader.readLine();
+            final String version = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version))
+                throw new IOException("unexpected journal header: " + magic + " " + version);
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                final String[] parts = line.split(" ");
+                if (parts.length < 2)
+                    continue; // a line truncated by crash
+                final String key = parts[1];
+                if (PUT.equals(parts[0]) && parts.length == 3) {
+                    final long length = Long.parseLong(parts[2]);
+                    final Long previous = mEntries.put(key, length);
+                    if (previous != null)
+                        mSize -= previous;
+                    mSize += length;
+                } else if (READ.equals(parts[0])) {
+                    mEntries.get(key);
+                } else if (REMOVE.equals(parts[0])) {
+                    final Long previous = mEntries.remove(key);
+                    if (previous != null)
+                        mSize -= previous;
+                }
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected journal line", e);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Writes a new journal containing only live entries, replacing the current one atomically.
+     */
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException ignored) {
+            }
+        }
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFileTmp), UTF_8), BUFFER_SIZE);
+        try {
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!mJournalFileTmp.renameTo(mJournalFile))
+            throw new IOException("can't rename journal: " + mJournalFileTmp);
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true), UTF_8));
+        mRedundantOpCount = 0;
+    }
+
+    private void journal(final String operation, final String key, final boolean doFlush) {
+        if (mJournalWriter == null)
+            return;
+        try {
+            mJournalWriter.write(operation);
+            mJournalWriter.write(' ');
+            mJournalWriter.write(key);
+            mJournalWriter.write('\n');
+            if (doFlush)
+                mJournalWriter.flush();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "journal(): can't write " + operation + " " + key, e);
+        }
+    }
+
+    private void journalPut(final String key, final long length) {
+        journal(PUT, key + ' ' + length, true);
+    }
+
+    private void compactJournalIfNeeded() {
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size()) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "compactJournalIfNeeded(): can't rebuild journal", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the file of a cached entry marking it as recently used.
+     * A file which exists in cache directory but was never journaled (was saved by
+     * SDCardHelper.saveImage() for example) gets adopted by the cache.
+     *
+     * @param key
+     * @return File or null if there is no such entry
+     */
+    public synchronized File get(final String key) {
+        if (key == null)
+            return null;
+        final File file = getFileForKey(key);
+        final Long length = mEntries.get(key);
+        if (length == null) {
+            if (!file.isFile())
+                return null;
+            // adopting a file which was stored bypassing the journal
+            mEntries.put(key, file.length());
+            mSize += file.length();
+            journalPut(key, file.length());
+            trimToSize();
+            return mEntries.containsKey(key) ? file : null;
+        }
+        if (!file.exists()) {
+            // deleted outside of the cache, like SDCardHelper.clearImagesCache()
+            mEntries.remove(key);
+            mSize -= length;
+            mRedundantOpCount++;
+            journal(REMOVE, key, false);
+            return null;
+        }
+        mRedundantOpCount++;
+        journal(READ, key, false);
+        compactJournalIfNeeded();
+        return file;
+    }
+
+    /**
+     * @param key
+     * @return true if the cache has an entry for given key. Does not change LRU order.
+     */
+    public synchronized boolean contains(final String key) {
+        return key != null && mEntries.containsKey(key);
+    }
+
+    /**
+     * Stores given bytes as an entry for given key replacing existing entry if any.
+     *
+     * @param key
+     * @param data
+     * @return true if stored
+     */
+    public boolean put(final String key, final byte[] data) {
+        if (key == null || data == null || data.length == 0)
+            return false;
+        final File tmpFile = getTmpFileForKey(key);
+        FileOutputStream outputStream = null;
+        boolean isSucceed = false;
+        try {
+            outputStream = new FileOutputStream(tmpFile);
+            outputStream.write(data);
+            outputStream.flush();
+            isSucceed = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "put(): can't write " + key, e);
+        } finally {
+            if (outputStream != null)
+                try {
+                    outputStream.close();
+                } catch (IOException ignored) {
+                }
+        }
+        return isSucceed ? commit(key, tmpFile) : abort(tmpFile);
+    }
+
+    /**
+     * Stores given stream as an entry for given key replacing existing entry if any.
+     * Given stream will not be closed.
+     *
+     * @param key
+     * @param inputStream
+     * @return true if stored
+     */
+    public boolean put(final String key, final InputStream inputStream) {
+        if (key == null || inputStream == null)
+            return false;
+        final File tmpFile = getTmpFileForKey(key);
+        OutputStream outputStream = null;
+        boolean isSucceed = false;
+        try {
+            outputStream = new FileOutputStream(tmpFile);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1)
+                outputStream.write(buffer, 0, count);
+            outputStream.flush();
+            isSucceed = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "put(): can't write " + key, e);
+        } finally {
+            if (outputStream != null)
+                try {
+                    outputStream.close();
+                } catch (IOException ignored) {
+                }
+        }
+        return isSucceed ? commit(key, tmpFile) : abort(tmpFile);
+    }
+
+    /**
+     * Returns a new temporary file to write an entry to, unique for each call so concurrent puts
+     * of the same key never write to the same file. Call {@link #commit(String, File)} when
+     * writing is done or {@link #abort(File)} if it failed.
+     *
+     * @param key
+     * @return File to write an entry to
+     */
+    public File getTmpFileForKey(final String key) {
+        return new File(mDirectory, key + "." + mTmpFilesCount.incrementAndGet() + TMP_SUFFIX);
+    }
+
+    /**
+     * Publishes a temporary file written for given key as a cache entry
+     *
+     * @param key
+     * @param tmpFile - file obtained using {@link #getTmpFileForKey(String)}
+     * @return true if published
+     */
+    public synchronized boolean commit(final String key, final File tmpFile) {
+        final File file = getFileForKey(key);
+        if (tmpFile == null || !tmpFile.isFile() || tmpFile.length() == 0)
+            return abort(tmpFile);
+        if (file.exists() && !file.delete())
+            return abort(tmpFile);
+        if (!tmpFile.renameTo(file))
+            return abort(tmpFile);
+
+        final long length = file.length();
+        final Long previous = mEntries.put(key, length);
+        if (previous != null) {
+            mSize -= previous;
+            mRedundantOpCount++;
+        }
+        mSize += length;
+        journalPut(key, length);
+        trimToSize();
+        compactJournalIfNeeded();
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Drops a temporary file of a failed write
+     *
+     * @param tmpFile
+     * @return always false
+     */
+    public boolean abort(final File tmpFile) {
+        if (tmpFile != null && tmpFile.exists() && !tmpFile.delete())
+            tmpFile.deleteOnExit();
+        return false;
+    }
+
+    /**
+     * Removes an entry and its file
+     *
+     * @param key
+     * @return true if an entry was removed
+     */
+    public synchronized boolean remove(final String key) {
+        if (key == null)
+            return false;
+        final Long length = mEntries.remove(key);
+        if (length == null)
+            return false;
+        mSize -= length;
+        mRedundantOpCount++;
+        final File file = getFileForKey(key);
+        if (file.exists() && !file.delete())
+            Log.w(LOG_TAG, "remove(): can't delete " + file);
+        journal(REMOVE, key, true);
+        compactJournalIfNeeded();
+        return true;
+    }
+
+    /**
+     * Evicts least recently used entries until the cache fits its max size
+     */
+    public synchronized void trimToSize() {
+        trimToSize(mMaxSize);
+    }
+
+    private void trimToSize(final long maxSize) {
+        if (mSize <= maxSize)
+            return;
+        final ArrayList<String> evicted = new ArrayList<>();
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            mSize -= entry.getValue();
+            evicted.add(entry.getKey());
+            iterator.remove();
+        }
+        for (String key : evicted) {
+            final File file = getFileForKey(key);
+            if (file.exists() && !file.delete())
+                Log.w(LOG_TAG, "trimToSize(): can't delete " + file);
+            mRedundantOpCount++;
+            journal(REMOVE, key, false);
+        }
+        mEvictionCount += evicted.size();
+        flush();
+    }
+
+    /**
+     * Changes max size of the cache evicting entries if needed
+     *
+     * @param maxSize in bytes
+     */
+    public synchronized void setMaxSize(final long maxSize) {
+        if (maxSize <= 0)
+            return;
+        mMaxSize = maxSize;
+        trimToSize();
+    }
+
+    /**
+     * Removes all entries and their files
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+        try {
+            rebuildJournal();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "clear(): can't rebuild journal", e);
+        }
+    }
+
+    /**
+     * Flushes the journal to file system
+     */
+    public synchronized void flush() {
+        if (mJournalWriter == null)
+            return;
+        try {
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "flush(): can't flush journal", e);
+        }
+    }
+
+    /**
+     * Flushes and closes the journal. The cache must not be used after closing.
+     */
+    public synchronized void close() {
+        if (mJournalWriter == null)
+            return;
+        try {
+            mJournalWriter.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "close(): can't close journal", e);
+        }
+        mJournalWriter = null;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public File getFileForKey(final String key) {
+        return new File(mDirectory, key);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized int getEntriesCount() {
+        return mEntries.size();
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return true if the cache directory is writable
+     */
+    public boolean isWritable() {
+        return FileUtils.isWritable(mJournalFile);
+    }
+}
@@ -0,0 +1,526 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.stanko.image.ImageHeaderParser.ImageHeader;
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.ImageUtils;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prepares batches of photos (for uploading etc.) running decode with sampling, EXIF rotation,
+ * scaling and encoding as a single pass per image instead of chaining
+ * ImageUtils.rotateBitmapByExifAndSave(), getBitmapFromFileWithMaxSideSize() and
+ * saveBitmapToJPEGFile() which decode full resolution image at least twice.
+ * <p>
+ * Images are processed on a bounded pool of background threads. Memory governor limits the
+ * amount of pixel memory in flight: a worker waits before decoding until estimated memory of its
+ * image fits into the budget (a single image is always let through). A failure of one image never
+ * breaks the batch, it is reported and the next image is processed.
+ */
+public class ImageBatchProcessor {
+
+    private static final String LOG_TAG = ImageBatchProcessor.class.getSimpleName();
+
+    public static final int DEFAULT_THREADS_COUNT = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors()));
+    public static final int DEFAULT_MEMORY_BUDGET_DIVIDER = 4;
+
+    private static final boolean IS_KITKAT = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static ImageBatchProcessor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // memory governor state, guarded by mMemoryLock
+    private final Object mMemoryLock = new Object();
+    private final long mMemoryBudget;
+    private long mMemoryInFlight;
+
+    /**
+     * Target of processing. Since all fields are final and public no getters need.
+     */
+    public static class Spec {
+
+        // longest side of resulting image in px, 0 to keep original size
+        public final int maxSideSize;
+        public final CompressFormat format;
+        public final int quality;
+        // directory to write results to, null to replace source files
+        public final File outputDir;
+
+        /**
+         * @param maxSideSize - longest side of resulting image in px, 0 to keep original size
+         * @param format      - JPEG, PNG or WEBP, JPEG if null
+         * @param quality     - 0..100, ignored by PNG
+         * @param outputDir   - directory to write results to, null to replace source files
+         */
+        public Spec(final int maxSideSize, final CompressFormat format, final int quality, final File outputDir) {
+            this.maxSideSize = Math.max(0, maxSideSize);
+            this.format = format == null ? CompressFormat.JPEG : format;
+            this.quality = Math.max(0, Math.min(100, quality));
+            this.outputDir = outputDir;
+        }
+
+        /**
+         * Returns file the result of processing of given source is written to. Source name is
+         * kept if it already has extension of the format, otherwise the extension is appended to
+         * it, so a.jpg and a.png of the same dir are written to a.jpg and a.png.jpg.
+         *
+         * @param sourceFile
+         * @return File
+         */
+        public File getTargetFile(final File sourceFile) {
+            if (outputDir == null)
+                return sourceFile;
+            final String name = sourceFile.getName();
+            final String extension = getExtension(format);
+            if (name.length() > extension.length() && name.toLowerCase(Locale.US).endsWith(extension))
+                return new File(outputDir, name);
+            return new File(outputDir, name + extension);
+        }
+
+        @Override
+        public String toString() {
+            return format + " quality: " + quality + " maxSideSize: " + maxSideSize + " outputDir: " + outputDir;
+        }
+    }
+
+    /**
+     * Interface to deliver processing progress, its methods are called on main thread
+     */
+    public interface IImageBatchCallback {
+        /**
+         * @param sourceFile - processed image
+         * @param targetFile - resulting image
+         * @param processed  - count of images processed so far (succeed and failed)
+         * @param total      - count of images in the batch
+         */
+        void onItemProcessed(File sourceFile, File targetFile, int processed, int total);
+
+        /**
+         * @param sourceFile - image which failed, its result is not written
+         * @param error      - cause of the failure, could be OutOfMemoryError
+         * @param processed  - count of images processed so far (succeed and failed)
+         * @param total      - count of images in the batch
+         */
+        void onItemFailed(File sourceFile, Throwable error, int processed, int total);
+
+        /**
+         * @param succeed - count of succeed images
+         * @param failed  - count of failed images
+         * @param isCancelled - true if the batch was cancelled, not processed images are not reported
+         */
+        void onBatchFinished(int succeed, int failed, boolean isCancelled);
+    }
+
+    /**
+     * Returns default instance using DEFAULT_THREADS_COUNT threads and 1/4 of app heap as memory
+     * budget
+     *
+     * @return ImageBatchProcessor
+     */
+    public static synchronized ImageBatchProcessor getInstance() {
+        if (sInstance == null)
+            sInstance = new ImageBatchProcessor(DEFAULT_THREADS_COUNT, Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_BUDGET_DIVIDER);
+        return sInstance;
+    }
+
+    /**
+     * @param threadsCount - max count of images processed simultaneously
+     * @param memoryBudget - max bytes of pixel memory used by images processed simultaneously
+     */
+    public ImageBatchProcessor(final int threadsCount, final long memoryBudget) {
+        mMemoryBudget = Math.max(1, memoryBudget);
+        final int poolSize = Math.max(1, threadsCount);
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new BackgroundThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    //
+    // Processing
+    //
+
+    /**
+     * Processes given images asynchronously
+     *
+     * @param sourceFiles - images to process
+     * @param spec        - target of processing
+     * @param callback    - progress listener, could be null
+     * @return Batch to track or cancel processing
+     */
+    public Batch process(final List<File> sourceFiles, final Spec spec, final IImageBatchCallback callback) {
+        if (spec == null)
+            throw new IllegalArgumentException("Spec is null");
+        final ArrayList<File> files = new ArrayList<>();
+        if (sourceFiles != null)
+            for (File file : sourceFiles)
+                if (file != null)
+                    files.add(file);
+
+        final Batch batch = new Batch(files.size(), callback);
+        if (files.isEmpty()) {
+            batch.finish();
+            return batch;
+        }
+        // a target already taken by another image of the batch fails instead of being overwritten
+        // (e.g. "a" and "a.jpg", or names differing by case only on case insensitive storage)
+        final HashSet<String> targetPaths = new HashSet<>();
+        for (final File sourceFile : files) {
+            final boolean isDuplicate = !targetPaths.add(spec.getTargetFile(sourceFile).getAbsolutePath().toLowerCase(Locale.US));
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (batch.isCancelled) {
+                        batch.onItemSkipped();
+                        return;
+                    }
+                    File targetFile = null;
+                    Throwable error;
+                    try {
+                        targetFile = isDuplicate ? null : processFile(sourceFile, spec);
+                        if (targetFile != null)
+                            error = null;
+                        else if (isDuplicate)
+                            error = new IllegalStateException("Target file of " + sourceFile + " is used by another image of the batch");
+                        else
+                            error = new IllegalStateException("Could not process " + sourceFile);
+                    } catch (Throwable e) {
+                        // most probably OOM, does not affect other images
+                        error = e;
+                    }
+                    if (error != null)
+                        Log.e(LOG_TAG, "Could not process " + sourceFile, error);
+                    batch.onItemProcessed(sourceFile, targetFile, error);
+                }
+            });
+        }
+        return batch;
+    }
+
+    /**
+     * Processes given image synchronously on calling thread: decodes it with the biggest sample
+     * size still giving at least spec.maxSideSize, rotates it by its EXIF orientation, scales it
+     * to spec.maxSideSize and compresses it to spec target file. Memory governor is respected.
+     *
+     * @param sourceFile - image to process
+     * @param spec       - target of processing
+     * @return target file or null if failed
+     */
+    public File processFile(final File sourceFile, final Spec spec) {
+        if (sourceFile == null || spec == null || !FileUtils.isReadable(sourceFile))
+            return null;
+        final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
+        final int rotateAngle;
+        final ImageHeader imageHeader = ImageHeaderParser.parse(sourceFile);
+        if (imageHeader != null) {
+            imageHeader.applyTo(bmfOptions);
+            rotateAngle = imageHeader.rotateAngle;
+        } else {
+            // header parser gave up (EXIF bigger than its limit, BMP, HEIC etc.), let BitmapFactory decode image size
+            bmfOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(sourceFile.getAbsolutePath(), bmfOptions);
+            bmfOptions.inJustDecodeBounds = false;
+            rotateAngle = ImageUtils.getExifRotateAngle(sourceFile);
+        }
+        final int width = bmfOptions.outWidth;
+        final int height = bmfOptions.outHeight;
+        if (width <= 0 || height <= 0) {
+            Log.w(LOG_TAG, "Unsupported image: " + sourceFile);
+            return null;
+        }
+
+        bmfOptions.inSampleSize = getSampleSize(width, height, spec.maxSideSize);
+        final int sampledWidth = (width + bmfOptions.inSampleSize - 1) / bmfOptions.inSampleSize;
+        final int sampledHeight = (height + bmfOptions.inSampleSize - 1) / bmfOptions.inSampleSize;
+        final float scale = getScale(sampledWidth, sampledHeight, spec.maxSideSize);
+
+        // decoded bitmap and transformed one exist at the same time
+        long memoryEstimate = (long) sampledWidth * sampledHeight * 4;
+        if (scale != 1f || rotateAngle != 0)
+            memoryEstimate += (long) Math.ceil(sampledWidth * scale) * (long) Math.ceil(sampledHeight * scale) * 4;
+
+        acquireMemory(memoryEstimate);
+        try {
+            final Bitmap decodedBitmap = decode(sourceFile, bmfOptions);
+            if (decodedBitmap == null) {
+                Log.w(LOG_TAG, "Could not decode " + sourceFile);
+                return null;
+            }
+            final Bitmap bitmap = transform(decodedBitmap, scale, rotateAngle);
+            if (bitmap != decodedBitmap)
+                BitmapPool.getInstance().put(decodedBitmap);
+            try {
+                return write(bitmap, sourceFile, spec);
+            } finally {
+                BitmapPool.getInstance().put(bitmap);
+            }
+        } finally {
+            releaseMemory(memoryEstimate);
+        }
+    }
+
+    /**
+     * Returns the biggest power of 2 sample size keeping longest side not less than maxSideSize
+     */
+    private static int getSampleSize(final int width, final int height, final int maxSideSize) {
+        if (maxSideSize <= 0)
+            return 1;
+        final int sideSize = Math.max(width, height);
+        int sampleSize = 1;
+        while (sideSize / (sampleSize * 2) >= maxSideSize)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private static float getScale(final int width, final int height, final int maxSideSize) {
+        final int sideSize = Math.max(width, height);
+        if (maxSideSize <= 0 || sideSize <= maxSideSize)
+            return 1f;
+        return (float) maxSideSize / sideSize;
+    }
+
+    private static Bitmap decode(final File sourceFile, final BitmapFactory.Options bmfOptions) {
+        // before KitKat pooled bitmap must match sampled size exactly, not worth a retry
+        if (IS_KITKAT)
+            BitmapPool.getInstance().setInBitmap(bmfOptions);
+        else
+            bmfOptions.inPurgeable = true;
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(sourceFile.getAbsolutePath(), bmfOptions);
+        } catch (IllegalArgumentException e) {
+            if (bmfOptions.inBitmap == null)
+                throw e;
+            Log.w(LOG_TAG, "Could not decode into pooled bitmap: " + e.getMessage());
+            bmfOptions.inBitmap.recycle();
+            bmfOptions.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(sourceFile.getAbsolutePath(), bmfOptions);
+        }
+        if (bitmap == null && bmfOptions.inBitmap != null) {
+            BitmapPool.getInstance().put(bmfOptions.inBitmap);
+            bmfOptions.inBitmap = null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Scales and rotates given bitmap in a single drawing
+     *
+     * @return new bitmap or given one if there is nothing to do
+     */
+    private static Bitmap transform(final Bitmap bitmap, final float scale, final int rotateAngle) {
+        if (scale == 1f && rotateAngle == 0)
+            return bitmap;
+        final Matrix matrix = new Matrix();
+        if (scale != 1f)
+            matrix.postScale(scale, scale);
+        if (rotateAngle != 0)
+            matrix.postRotate(rotateAngle);
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    }
+
+    /**
+     * Compresses bitmap to spec target file. Source file gets replaced through a temp file,
+     * so it is never left partially written.
+     */
+    private static File write(final Bitmap bitmap, final File sourceFile, final Spec spec) {
+        final File targetFile = spec.getTargetFile(sourceFile);
+        final boolean isReplacing = targetFile.getAbsolutePath().equals(sourceFile.getAbsolutePath());
+        final File writtenFile = isReplacing
+                ? new File(targetFile.getParentFile(), targetFile.getName() + TEMP_FILE_SUFFIX)
+                : targetFile;
+        if (!ImageEncoder.compress(bitmap, spec.format, spec.quality, writtenFile))
+            return null;
+        if (isReplacing && !writtenFile.renameTo(targetFile)) {
+            Log.e(LOG_TAG, "Could not replace " + targetFile);
+            if (!writtenFile.delete())
+                Log.w(LOG_TAG, "Could not delete " + writtenFile);
+            return null;
+        }
+        ImageHeaderParser.invalidate(targetFile);
+        return targetFile;
+    }
+
+    private static String getExtension(final CompressFormat format) {
+        if (format == CompressFormat.PNG)
+            return ".png";
+        if (format == CompressFormat.WEBP)
+            return ".webp";
+        return ".jpg";
+    }
+
+    //
+    // Memory governor
+    //
+
+    /**
+     * Waits until given amount of pixel memory fits into the budget. If nothing is in flight it
+     * is granted immediately even if bigger than the budget.
+     */
+    private void acquireMemory(final long bytes) {
+        boolean isInterrupted = false;
+        synchronized (mMemoryLock) {
+            while (mMemoryInFlight > 0 && mMemoryInFlight + bytes > mMemoryBudget) {
+                try {
+                    mMemoryLock.wait();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            mMemoryInFlight += bytes;
+        }
+        if (isInterrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void releaseMemory(final long bytes) {
+        synchronized (mMemoryLock) {
+            mMemoryInFlight -= bytes;
+            mMemoryLock.notifyAll();
+        }
+    }
+
+    public long getMemoryInFlight() {
+        synchronized (mMemoryLock) {
+            return mMemoryInFlight;
+        }
+    }
+
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    //
+    // Batch
+    //
+
+    /**
+     * A handle of a single batch
+     */
+    public final class Batch {
+
+        private final int total;
+        private final IImageBatchCallback callback;
+        private final AtomicInteger processedCount = new AtomicInteger();
+        private final AtomicInteger succeedCount = new AtomicInteger();
+        private final AtomicInteger failedCount = new AtomicInteger();
+        private final CountDownLatch finishLatch = new CountDownLatch(1);
+        private volatile boolean isCancelled;
+
+        private Batch(final int total, final IImageBatchCallback callback) {
+            this.total = total;
+            this.callback = callback;
+        }
+
+        private void onItemProcessed(final File sourceFile, final File targetFile, final Throwable error) {
+            final int processed = processedCount.incrementAndGet();
+            if (error == null)
+                succeedCount.incrementAndGet();
+            else
+                failedCount.incrementAndGet();
+            if (callback != null && !isCancelled)
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isCancelled)
+                            return;
+                        if (error == null)
+                            callback.onItemProcessed(sourceFile, targetFile, processed, total);
+                        else
+                            callback.onItemFailed(sourceFile, error, processed, total);
+                    }
+                });
+            if (processed == total)
+                finish();
+        }
+
+        private void onItemSkipped() {
+            if (processedCount.incrementAndGet() == total)
+                finish();
+        }
+
+        private void finish() {
+            finishLatch.countDown();
+            if (callback != null)
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBatchFinished(succeedCount.get(), failedCount.get(), isCancelled);
+                    }
+                });
+        }
+
+        /**
+         * Cancels the batch: images not started yet are skipped, images in progress are finished.
+         * No item callbacks are called after this method returns if called on main thread.
+         */
+        public void cancel() {
+            isCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+
+        /**
+         * @return true if all images are processed or skipped
+         */
+        public boolean isFinished() {
+            return finishLatch.getCount() == 0;
+        }
+
+        /**
+         * Blocks until the batch is finished, must not be called on main thread
+         *
+         * @param timeout - max time to wait in milliseconds
+         * @return true if finished, false on timeout or interruption
+         */
+        public boolean await(final long timeout) {
+            try {
+                return finishLatch.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        public int getTotalCount() {
+            return total;
+        }
+
+        public int getProcessedCount() {
+            return processedCount.get();
+        }
+
+        public int getSucceedCount() {
+            return succeedCount.get();
+        }
+
+        public int getFailedCount() {
+            return failedCount.get();
+        }
+    }
+}
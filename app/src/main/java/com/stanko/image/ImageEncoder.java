@@ -0,0 +1,422 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Streaming export of Bitmaps: compresses directly into an OutputStream, WritableByteChannel,
+ * File or a streaming Base64 encoder through a pooled write buffer, so no intermediate byte[]
+ * copies of the compressed image are made. Target size mode finds the best JPEG quality which
+ * fits given size by compressing into a counting sink which keeps no bytes.
+ */
+public class ImageEncoder {
+
+    private static final String LOG_TAG = ImageEncoder.class.getSimpleName();
+
+    // Bitmap.compress() writes by 4KB chunks, the buffer joins them into bigger writes
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final int MAX_BASE64_SIZE_ESTIMATE = 4 * 1024 * 1024;
+
+    public static final int MIN_JPEG_QUALITY = 1;
+    public static final int MAX_JPEG_QUALITY = 100;
+
+    private static final ArrayDeque<byte[]> sBuffers = new ArrayDeque<>();
+
+    private static byte[] obtainBuffer() {
+        synchronized (sBuffers) {
+            final byte[] buffer = sBuffers.pollLast();
+            if (buffer != null)
+                return buffer;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void releaseBuffer(final byte[] buffer) {
+        synchronized (sBuffers) {
+            if (sBuffers.size() < MAX_POOLED_BUFFERS)
+                sBuffers.addLast(buffer);
+        }
+    }
+
+    //
+    // Streams
+    //
+
+    /**
+     * Compresses given bitmap into the stream. The stream is flushed but not closed.
+     *
+     * @param bitmap       - bitmap to compress
+     * @param format       - JPEG, PNG or WEBP
+     * @param quality      - 0..100, ignored by PNG
+     * @param outputStream - target stream
+     * @return true if succeed
+     */
+    public static boolean compress(final Bitmap bitmap,
+                                   final CompressFormat format,
+                                   final int quality,
+                                   final OutputStream outputStream) {
+        if (bitmap == null || bitmap.isRecycled() || format == null || outputStream == null)
+            return false;
+        // in-memory sinks gain nothing from buffering
+        if (outputStream instanceof CountingOutputStream || outputStream instanceof ByteArrayOutputStream)
+            return bitmap.compress(format, quality, outputStream);
+        final PooledBufferedOutputStream bufferedStream = new PooledBufferedOutputStream(outputStream);
+        try {
+            final boolean isSucceed = bitmap.compress(format, quality, bufferedStream);
+            bufferedStream.flush();
+            return isSucceed;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return false;
+        } finally {
+            bufferedStream.release();
+        }
+    }
+
+    /**
+     * Compresses given bitmap into the channel (socket, file etc.). The channel is not closed.
+     *
+     * @param bitmap  - bitmap to compress
+     * @param format  - JPEG, PNG or WEBP
+     * @param quality - 0..100, ignored by PNG
+     * @param channel - target channel
+     * @return true if succeed
+     */
+    public static boolean compress(final Bitmap bitmap,
+                                   final CompressFormat format,
+                                   final int quality,
+                                   final WritableByteChannel channel) {
+        if (channel == null)
+            return false;
+        return compress(bitmap, format, quality, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Compresses given bitmap into the file (overwriting it) and syncs it to disk. Partially
+     * written file is deleted on failure.
+     *
+     * @param bitmap     - bitmap to compress
+     * @param format     - JPEG, PNG or WEBP
+     * @param quality    - 0..100, ignored by PNG
+     * @param targetFile - file to write to, its dirs are created if needed
+     * @return true if succeed
+     */
+    public static boolean compress(final Bitmap bitmap,
+                                   final CompressFormat format,
+                                   final int quality,
+                                   final File targetFile) {
+        if (bitmap == null || targetFile == null || !FileUtils.isWritable(targetFile, true))
+            return false;
+        boolean isSucceed = false;
+        FileOutputStream fileOutputStream = null;
+        try {
+            fileOutputStream = new FileOutputStream(targetFile);
+            isSucceed = compress(bitmap, format, quality, fileOutputStream);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            if (fileOutputStream != null) {
+                FileUtils.sync(fileOutputStream);
+                try {
+                    fileOutputStream.close();
+                } catch (IOException e) {
+                    isSucceed = false;
+                }
+            }
+        }
+        if (!isSucceed && targetFile.exists() && !targetFile.delete())
+            Log.e(LOG_TAG, "Could not delete partially written " + targetFile);
+        return isSucceed;
+    }
+
+    //
+    // Base64
+    //
+
+    /**
+     * Compresses given bitmap and writes it Base64 encoded into the stream (request body, file
+     * etc.) without keeping compressed or encoded bytes in memory. The stream is not closed.
+     *
+     * @param bitmap       - bitmap to compress
+     * @param format       - JPEG, PNG or WEBP
+     * @param quality      - 0..100, ignored by PNG
+     * @param base64Flags  - android.util.Base64 flags, like Base64.DEFAULT or Base64.NO_WRAP
+     * @param outputStream - target stream
+     * @return true if succeed
+     */
+    public static boolean compressToBase64(final Bitmap bitmap,
+                                           final CompressFormat format,
+                                           final int quality,
+                                           final int base64Flags,
+                                           final OutputStream outputStream) {
+        if (outputStream == null)
+            return false;
+        // Base64OutputStream.close() writes the tail but must not close the target stream
+        final Base64OutputStream base64Stream = new Base64OutputStream(new NonClosingOutputStream(outputStream), base64Flags);
+        boolean isSucceed = compress(bitmap, format, quality, base64Stream);
+        try {
+            base64Stream.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            isSucceed = false;
+        }
+        return isSucceed;
+    }
+
+    /**
+     * Returns Base64 encoded compressed bitmap, encoding goes along with compression so only
+     * encoded text is kept in memory
+     *
+     * @param bitmap      - bitmap to compress
+     * @param format      - JPEG, PNG or WEBP
+     * @param quality     - 0..100, ignored by PNG
+     * @param base64Flags - android.util.Base64 flags
+     * @return String or null if failed
+     */
+    public static String getBase64Encoded(final Bitmap bitmap,
+                                          final CompressFormat format,
+                                          final int quality,
+                                          final int base64Flags) {
+        if (bitmap == null)
+            return null;
+        final ByteArrayOutputStream base64Bytes = new ByteArrayOutputStream(estimateBase64Size(bitmap, format));
+        if (!compressToBase64(bitmap, format, quality, base64Flags, base64Bytes))
+            return null;
+        try {
+            return base64Bytes.toString("US-ASCII");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return null;
+        }
+    }
+
+    public static String getBase64Encoded(final Bitmap bitmap, final CompressFormat format, final int quality) {
+        return getBase64Encoded(bitmap, format, quality, Base64.DEFAULT);
+    }
+
+    private static int estimateBase64Size(final Bitmap bitmap, final CompressFormat format) {
+        // rough compression ratio guess to avoid most of array growing, it is better to grow
+        // a few times than to over-allocate for a big photo
+        final long rawSize = (long) bitmap.getWidth() * bitmap.getHeight() * 4;
+        final long compressedSize = format == CompressFormat.PNG ? rawSize / 4 : rawSize / 16;
+        return (int) Math.min(MAX_BASE64_SIZE_ESTIMATE, Math.max(BUFFER_SIZE, compressedSize * 4 / 3));
+    }
+
+    //
+    // Target size
+    //
+
+    /**
+     * Returns compressed size of the bitmap without keeping compressed bytes
+     *
+     * @param bitmap
+     * @param format
+     * @param quality
+     * @return size in bytes or -1 if compression failed
+     */
+    public static long getCompressedSize(final Bitmap bitmap, final CompressFormat format, final int quality) {
+        final CountingOutputStream countingStream = new CountingOutputStream();
+        if (!compress(bitmap, format, quality, countingStream))
+            return -1;
+        return countingStream.getCount();
+    }
+
+    /**
+     * Binary searches the best JPEG quality within minQuality..maxQuality at which compressed
+     * bitmap fits into maxSize bytes
+     *
+     * @param bitmap
+     * @param maxSize    - max compressed size in bytes
+     * @param minQuality - lowest acceptable quality
+     * @param maxQuality - highest quality to try
+     * @return quality or -1 if even minQuality does not fit
+     */
+    public static int findJpegQualityForSize(final Bitmap bitmap, final long maxSize, int minQuality, int maxQuality) {
+        minQuality = Math.max(MIN_JPEG_QUALITY, minQuality);
+        maxQuality = Math.min(MAX_JPEG_QUALITY, maxQuality);
+        if (bitmap == null || maxSize <= 0 || minQuality > maxQuality)
+            return -1;
+        // images often fit at once
+        final long maxQualitySize = getCompressedSize(bitmap, CompressFormat.JPEG, maxQuality);
+        if (maxQualitySize < 0)
+            return -1;
+        if (maxQualitySize <= maxSize)
+            return maxQuality;
+
+        int bestQuality = -1;
+        int low = minQuality;
+        int high = maxQuality - 1;
+        while (low <= high) {
+            final int quality = (low + high) >>> 1;
+            final long size = getCompressedSize(bitmap, CompressFormat.JPEG, quality);
+            if (size < 0)
+                return -1;
+            if (size <= maxSize) {
+                bestQuality = quality;
+                low = quality + 1;
+            } else
+                high = quality - 1;
+        }
+        return bestQuality;
+    }
+
+    /**
+     * Compresses the bitmap into the stream as JPEG of the best quality which fits maxSize bytes
+     *
+     * @param bitmap
+     * @param maxSize      - max compressed size in bytes
+     * @param minQuality   - lowest acceptable quality
+     * @param outputStream - target stream, it is not closed
+     * @return used quality or -1 if bitmap does not fit at minQuality or compression failed
+     */
+    public static int compressJpegToSize(final Bitmap bitmap, final long maxSize, final int minQuality, final OutputStream outputStream) {
+        final int quality = findJpegQualityForSize(bitmap, maxSize, minQuality, MAX_JPEG_QUALITY);
+        if (quality < 0 || !compress(bitmap, CompressFormat.JPEG, quality, outputStream))
+            return -1;
+        return quality;
+    }
+
+    //
+    // Streams
+    //
+
+    /**
+     * ByteArrayOutputStream giving access to its buffer so its content could be decoded or
+     * written without toByteArray() copy
+     */
+    public static class DirectByteArrayOutputStream extends ByteArrayOutputStream {
+
+        public DirectByteArrayOutputStream(final int size) {
+            super(size);
+        }
+
+        /**
+         * @return internal buffer, valid bytes are 0..size()-1
+         */
+        public byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Sink which only counts written bytes
+     */
+    public static class CountingOutputStream extends OutputStream {
+
+        private long mCount;
+
+        @Override
+        public void write(final int oneByte) {
+            mCount++;
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int count) {
+            mCount += count;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+    }
+
+    private static class NonClosingOutputStream extends OutputStream {
+
+        private final OutputStream mOutputStream;
+
+        NonClosingOutputStream(final OutputStream outputStream) {
+            mOutputStream = outputStream;
+        }
+
+        @Override
+        public void write(final int oneByte) throws IOException {
+            mOutputStream.write(oneByte);
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int count) throws IOException {
+            mOutputStream.write(buffer, offset, count);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOutputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOutputStream.flush();
+        }
+    }
+
+    /**
+     * BufferedOutputStream-like stream which takes its buffer from the pool, release() gives
+     * it back
+     */
+    private static class PooledBufferedOutputStream extends OutputStream {
+
+        private final OutputStream mOutputStream;
+        private byte[] mBuffer;
+        private int mCount;
+
+        PooledBufferedOutputStream(final OutputStream outputStream) {
+            mOutputStream = outputStream;
+            mBuffer = obtainBuffer();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (mCount > 0) {
+                mOutputStream.write(mBuffer, 0, mCount);
+                mCount = 0;
+            }
+        }
+
+        @Override
+        public void write(final int oneByte) throws IOException {
+            if (mCount == mBuffer.length)
+                flushBuffer();
+            mBuffer[mCount++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int count) throws IOException {
+            if (count >= mBuffer.length) {
+                flushBuffer();
+                mOutputStream.write(buffer, offset, count);
+                return;
+            }
+            if (count > mBuffer.length - mCount)
+                flushBuffer();
+            System.arraycopy(buffer, offset, mBuffer, mCount, count);
+            mCount += count;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            mOutputStream.flush();
+        }
+
+        void release() {
+            if (mBuffer != null) {
+                releaseBuffer(mBuffer);
+                mBuffer = null;
+            }
+        }
+    }
+}
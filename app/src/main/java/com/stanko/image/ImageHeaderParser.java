@@ -0,0 +1,417 @@
+package com.stanko.image;
+
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.LruCache;
+
+import com.stanko.tools.Log;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Lightweight parser of JPEG, PNG, GIF and WebP headers which reads image dimensions, mime type
+ * and (for JPEG) EXIF orientation reading only first few KB of the image, so decoding needs no
+ * separate BitmapFactory bounds pass and no second opening of the source.
+ * Results for files are cached by path, modification time and length.
+ */
+public class ImageHeaderParser {
+
+    private static final String LOG_TAG = ImageHeaderParser.class.getSimpleName();
+
+    // parser gives up if dimensions are not found within this amount of bytes
+    public static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int CACHE_SIZE = 128;
+
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+    public static final String MIME_GIF = "image/gif";
+    public static final String MIME_WEBP = "image/webp";
+
+    private static final int EXIF_ORIENTATION_TAG = 0x0112;
+
+    private static final LruCache<String, ImageHeader> sHeadersCache = new LruCache<>(CACHE_SIZE);
+
+    /**
+     * Class represents information taken from image header.
+     * Since all fields are final and public no getters need.
+     */
+    public static class ImageHeader {
+
+        public final String mimeType;
+        public final int width;
+        public final int height;
+        // ExifInterface.ORIENTATION_* value, ORIENTATION_UNDEFINED if there is no EXIF
+        public final int exifOrientation;
+        public final int rotateAngle;
+
+        ImageHeader(final String mimeType, final int width, final int height, final int exifOrientation) {
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.exifOrientation = exifOrientation;
+            switch (exifOrientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    rotateAngle = 90;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    rotateAngle = 180;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    rotateAngle = 270;
+                    break;
+                default:
+                    rotateAngle = 0;
+            }
+        }
+
+        /**
+         * Fills BitmapFactory.Options the same way decoding with inJustDecodeBounds would do
+         *
+         * @param bmfOptions
+         */
+        public void applyTo(final BitmapFactory.Options bmfOptions) {
+            bmfOptions.outWidth = width;
+            bmfOptions.outHeight = height;
+            bmfOptions.outMimeType = mimeType;
+        }
+
+        @Override
+        public String toString() {
+            return mimeType + " width: " + width + " height: " + height + " exifOrientation: " + exifOrientation;
+        }
+    }
+
+    /**
+     * Returns given stream if it supports mark/reset or wraps it into BufferedInputStream
+     *
+     * @param inputStream
+     * @return InputStream which supports mark/reset
+     */
+    public static InputStream getMarkableStream(final InputStream inputStream) {
+        if (inputStream == null || inputStream.markSupported())
+            return inputStream;
+        return new BufferedInputStream(inputStream, BUFFER_SIZE);
+    }
+
+    /**
+     * Parses image header of given file. Result is cached by path, modification time and length.
+     *
+     * @param imageFile
+     * @return ImageHeader or null if file is not readable or format is not supported
+     */
+    public static ImageHeader parse(final File imageFile) {
+        return parse(imageFile, null);
+    }
+
+    /**
+     * Parses image header of given file reading it from given stream opened for that file, so
+     * caller could decode the image through the same file descriptor afterwards. Stream position
+     * is not restored. Result is cached by path, modification time and length.
+     *
+     * @param imageFile
+     * @param fileInputStream - stream of given file at its beginning, if null file gets opened
+     * @return ImageHeader or null if file is not readable or format is not supported
+     */
+    public static ImageHeader parse(final File imageFile, final InputStream fileInputStream) {
+        if (imageFile == null)
+            return null;
+        final String key = getCacheKey(imageFile);
+        ImageHeader imageHeader = sHeadersCache.get(key);
+        if (imageHeader != null)
+            return imageHeader;
+
+        InputStream inputStream = fileInputStream;
+        try {
+            if (inputStream == null)
+                inputStream = new FileInputStream(imageFile);
+            imageHeader = parseHeader(new BufferedInputStream(inputStream, BUFFER_SIZE));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            if (fileInputStream == null && inputStream != null)
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+        }
+        if (imageHeader != null)
+            sHeadersCache.put(key, imageHeader);
+        return imageHeader;
+    }
+
+    /**
+     * Parses image header from given stream which must support mark/reset (see
+     * getMarkableStream()). Stream gets reset to its current position so the image could be
+     * decoded from it afterwards.
+     *
+     * @param inputStream
+     * @return ImageHeader or null if format is not supported or header is too big
+     */
+    public static ImageHeader parse(final InputStream inputStream) {
+        if (inputStream == null || !inputStream.markSupported())
+            return null;
+        inputStream.mark(MAX_HEADER_SIZE);
+        ImageHeader imageHeader = null;
+        try {
+            imageHeader = parseHeader(inputStream);
+        } finally {
+            try {
+                inputStream.reset();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e);
+                imageHeader = null;
+            }
+        }
+        return imageHeader;
+    }
+
+    /**
+     * Removes cached header of given file, for example after file was overwritten within the
+     * same second (modification time resolution)
+     *
+     * @param imageFile
+     */
+    public static void invalidate(final File imageFile) {
+        if (imageFile != null)
+            sHeadersCache.remove(getCacheKey(imageFile));
+    }
+
+    private static String getCacheKey(final File imageFile) {
+        return imageFile.getAbsolutePath() + ':' + imageFile.lastModified() + ':' + imageFile.length();
+    }
+
+    private static ImageHeader parseHeader(final InputStream inputStream) {
+        final Reader reader = new Reader(inputStream);
+        try {
+            final int b0 = reader.readByte();
+            final int b1 = reader.readByte();
+            if (b0 == 0xFF && b1 == 0xD8)
+                return parseJpeg(reader);
+            if (b0 == 0x89 && b1 == 'P')
+                return parsePng(reader);
+            if (b0 == 'G' && b1 == 'I')
+                return parseGif(reader);
+            if (b0 == 'R' && b1 == 'I')
+                return parseWebP(reader);
+        } catch (IOException e) {
+            // truncated or too big header, BitmapFactory will deal with it
+        }
+        return null;
+    }
+
+    //
+    // Formats
+    //
+
+    private static ImageHeader parseJpeg(final Reader reader) throws IOException {
+        int orientation = ExifInterface.ORIENTATION_UNDEFINED;
+        while (true) {
+            // markers could be padded with any number of 0xFF
+            int marker = reader.readByte();
+            if (marker != 0xFF)
+                return null;
+            while (marker == 0xFF)
+                marker = reader.readByte();
+
+            if (marker == 0xD9 || marker == 0xDA) // EOI or SOS before SOF
+                return null;
+            if (marker >= 0xD0 && marker <= 0xD7 || marker == 0x01) // no length
+                continue;
+
+            final int length = reader.readUInt16(true) - 2;
+            if (length < 0)
+                return null;
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                reader.skip(1); // precision
+                final int height = reader.readUInt16(true);
+                final int width = reader.readUInt16(true);
+                return new ImageHeader(MIME_JPEG, width, height, orientation);
+            }
+            if (marker == 0xE1 && orientation == ExifInterface.ORIENTATION_UNDEFINED && length > 14) {
+                final byte[] segment = new byte[length];
+                reader.readFully(segment);
+                orientation = getExifOrientation(segment);
+            } else
+                reader.skip(length);
+        }
+    }
+
+    private static int getExifOrientation(final byte[] segment) {
+        // "Exif\0\0" followed by TIFF header
+        if (segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' || segment[3] != 'f' || segment[4] != 0 || segment[5] != 0)
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        final int tiff = 6;
+        final boolean isBigEndian;
+        if (segment[tiff] == 'M' && segment[tiff + 1] == 'M')
+            isBigEndian = true;
+        else if (segment[tiff] == 'I' && segment[tiff + 1] == 'I')
+            isBigEndian = false;
+        else
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        if (getUInt16(segment, tiff + 2, isBigEndian) != 42)
+            return ExifInterface.ORIENTATION_UNDEFINED;
+
+        final long ifdOffset = getUInt32(segment, tiff + 4, isBigEndian);
+        if (ifdOffset < 8 || tiff + ifdOffset + 2 > segment.length)
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        final int ifd = tiff + (int) ifdOffset;
+        final int entriesCount = getUInt16(segment, ifd, isBigEndian);
+        for (int i = 0; i < entriesCount; i++) {
+            final int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segment.length)
+                break;
+            if (getUInt16(segment, entry, isBigEndian) == EXIF_ORIENTATION_TAG)
+                // SHORT value is left aligned within 4 bytes value field
+                return getUInt16(segment, entry + 8, isBigEndian);
+        }
+        return ExifInterface.ORIENTATION_UNDEFINED;
+    }
+
+    private static ImageHeader parsePng(final Reader reader) throws IOException {
+        // rest of signature, IHDR length and type
+        reader.skip(6 + 4);
+        if (reader.readByte() != 'I' || reader.readByte() != 'H' || reader.readByte() != 'D' || reader.readByte() != 'R')
+            return null;
+        final int width = (int) reader.readUInt32(true);
+        final int height = (int) reader.readUInt32(true);
+        return new ImageHeader(MIME_PNG, width, height, ExifInterface.ORIENTATION_UNDEFINED);
+    }
+
+    private static ImageHeader parseGif(final Reader reader) throws IOException {
+        // "GIF87a" or "GIF89a"
+        if (reader.readByte() != 'F')
+            return null;
+        reader.skip(3);
+        final int width = reader.readUInt16(false);
+        final int height = reader.readUInt16(false);
+        return new ImageHeader(MIME_GIF, width, height, ExifInterface.ORIENTATION_UNDEFINED);
+    }
+
+    private static ImageHeader parseWebP(final Reader reader) throws IOException {
+        // "RIFF", size, "WEBP"
+        if (reader.readByte() != 'F' || reader.readByte() != 'F')
+            return null;
+        reader.skip(4);
+        if (reader.readByte() != 'W' || reader.readByte() != 'E' || reader.readByte() != 'B' || reader.readByte() != 'P')
+            return null;
+        final byte[] chunkType = new byte[4];
+        reader.readFully(chunkType);
+        reader.skip(4); // chunk size
+        final String chunk = new String(chunkType, "US-ASCII");
+        final int width, height;
+        if ("VP8 ".equals(chunk)) {
+            // frame tag and start code
+            reader.skip(3);
+            if (reader.readByte() != 0x9D || reader.readByte() != 0x01 || reader.readByte() != 0x2A)
+                return null;
+            width = reader.readUInt16(false) & 0x3FFF;
+            height = reader.readUInt16(false) & 0x3FFF;
+        } else if ("VP8L".equals(chunk)) {
+            if (reader.readByte() != 0x2F)
+                return null;
+            final long bits = reader.readUInt32(false);
+            width = (int) (bits & 0x3FFF) + 1;
+            height = (int) ((bits >> 14) & 0x3FFF) + 1;
+        } else if ("VP8X".equals(chunk)) {
+            // flags and reserved
+            reader.skip(4);
+            width = reader.readUInt24() + 1;
+            height = reader.readUInt24() + 1;
+        } else
+            return null;
+        return new ImageHeader(MIME_WEBP, width, height, ExifInterface.ORIENTATION_UNDEFINED);
+    }
+
+    //
+    // Reading
+    //
+
+    private static int getUInt16(final byte[] bytes, final int offset, final boolean isBigEndian) {
+        final int b0 = bytes[offset] & 0xFF;
+        final int b1 = bytes[offset + 1] & 0xFF;
+        return isBigEndian ? b0 << 8 | b1 : b1 << 8 | b0;
+    }
+
+    private static long getUInt32(final byte[] bytes, final int offset, final boolean isBigEndian) {
+        final long high = getUInt16(bytes, isBigEndian ? offset : offset + 2, isBigEndian);
+        final long low = getUInt16(bytes, isBigEndian ? offset + 2 : offset, isBigEndian);
+        return high << 16 | low;
+    }
+
+    /**
+     * Reads the stream counting bytes and fails once MAX_HEADER_SIZE is reached so mark/reset
+     * of the stream stays valid
+     */
+    private static class Reader {
+
+        private final InputStream mInputStream;
+        private int mCount;
+
+        Reader(final InputStream inputStream) {
+            mInputStream = inputStream;
+        }
+
+        private void ensureLimit(final long bytesCount) throws IOException {
+            if (mCount + bytesCount > MAX_HEADER_SIZE)
+                throw new EOFException("Image header is bigger than " + MAX_HEADER_SIZE);
+        }
+
+        int readByte() throws IOException {
+            ensureLimit(1);
+            final int b = mInputStream.read();
+            if (b < 0)
+                throw new EOFException();
+            mCount++;
+            return b;
+        }
+
+        int readUInt16(final boolean isBigEndian) throws IOException {
+            final int b0 = readByte();
+            final int b1 = readByte();
+            return isBigEndian ? b0 << 8 | b1 : b1 << 8 | b0;
+        }
+
+        int readUInt24() throws IOException {
+            return readByte() | readByte() << 8 | readByte() << 16;
+        }
+
+        long readUInt32(final boolean isBigEndian) throws IOException {
+            final long b0 = readUInt16(isBigEndian);
+            final long b1 = readUInt16(isBigEndian);
+            return isBigEndian ? b0 << 16 | b1 : b1 << 16 | b0;
+        }
+
+        void readFully(final byte[] buffer) throws IOException {
+            ensureLimit(buffer.length);
+            int offset = 0;
+            while (offset < buffer.length) {
+                final int read = mInputStream.read(buffer, offset, buffer.length - offset);
+                if (read < 0)
+                    throw new EOFException();
+                offset += read;
+            }
+            mCount += buffer.length;
+        }
+
+        void skip(final long bytesCount) throws IOException {
+            ensureLimit(bytesCount);
+            long left = bytesCount;
+            while (left > 0) {
+                final long skipped = mInputStream.skip(left);
+                if (skipped > 0)
+                    left -= skipped;
+                else if (mInputStream.read() < 0)
+                    throw new EOFException();
+                else
+                    left--;
+            }
+            mCount += bytesCount;
+        }
+    }
+}
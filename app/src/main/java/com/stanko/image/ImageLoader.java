@@ -0,0 +1,506 @@
+package com.stanko.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.ImageView;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.ImageUtils;
+import com.stanko.tools.Initializer;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous image decode pipeline built on top of ImageUtils decode methods.
+ * <p>
+ * Decodes run on a bounded pool of background threads. Identical in-flight requests (same source
+ * and same max side size) are coalesced into a single decode, every requester gets the same
+ * Bitmap. A request could be cancelled at any moment, its decode is dropped if nobody else waits
+ * for it. Results are delivered on the main thread and put to BitmapCache memory tier.
+ * <p>
+ * Loading into an ImageView cancels the previous request of that view, so a recycled list item
+ * never receives an image requested for its previous position.
+ */
+public class ImageLoader {
+
+    private static final String LOG_TAG = ImageLoader.class.getSimpleName();
+
+    public static final int DEFAULT_THREADS_COUNT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ImageLoader sInstance;
+
+    private final BitmapCache mBitmapCache;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // key -> decode in progress, guarded by itself
+    private final HashMap<String, DecodeJob> mInFlight = new HashMap<>();
+    // ImageView -> its pending request, guarded by itself. Requests refer to their views weakly
+    // so entries go away with the views.
+    private final Map<ImageView, Request> mViewRequests = new WeakHashMap<>();
+
+    private final AtomicLong mRequestsCount = new AtomicLong();
+    private final AtomicLong mDecodesCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mCancelledCount = new AtomicLong();
+
+    /**
+     * Interface to deliver loading results, its methods are called on main thread
+     */
+    public interface IImageLoaderCallback {
+        void onImageLoaded(Bitmap bitmap);
+
+        void onImageLoadFailed();
+    }
+
+    /**
+     * Returns default instance which uses BitmapCache.getInstance() as memory cache
+     * and DEFAULT_THREADS_COUNT decoding threads
+     *
+     * @return ImageLoader
+     */
+    public static synchronized ImageLoader getInstance() {
+        if (sInstance == null)
+            sInstance = new ImageLoader(BitmapCache.getInstance(), DEFAULT_THREADS_COUNT);
+        return sInstance;
+    }
+
+    /**
+     * @param bitmapCache  - cache to look up and to put decoded bitmaps to, could be null
+     * @param threadsCount - max count of simultaneous decodes
+     */
+    public ImageLoader(final BitmapCache bitmapCache, final int threadsCount) {
+        mBitmapCache = bitmapCache;
+        final int poolSize = Math.max(1, threadsCount);
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new BackgroundThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    //
+    // Sources
+    //
+
+    private static abstract class Source {
+        abstract String getKey();
+
+        abstract Bitmap decode(int maxSideSize);
+    }
+
+    private static class FileSource extends Source {
+        final File file;
+
+        FileSource(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        String getKey() {
+            return "file:" + file.getAbsolutePath();
+        }
+
+        @Override
+        Bitmap decode(final int maxSideSize) {
+            return ImageUtils.getBitmapFromFileWithMaxSideSize(file, maxSideSize);
+        }
+    }
+
+    private static class UriSource extends Source {
+        final Context context;
+        final Uri uri;
+
+        UriSource(final Context context, final Uri uri) {
+            this.context = context;
+            this.uri = uri;
+        }
+
+        @Override
+        String getKey() {
+            return uri.toString();
+        }
+
+        @Override
+        Bitmap decode(final int maxSideSize) {
+            return ImageUtils.getBitmapFromUriWithMaxSideSize(context, uri, maxSideSize);
+        }
+    }
+
+    private static class CachedUrlSource extends Source {
+        final BitmapCache bitmapCache;
+        final String url;
+
+        CachedUrlSource(final BitmapCache bitmapCache, final String url) {
+            this.bitmapCache = bitmapCache;
+            this.url = url;
+        }
+
+        @Override
+        String getKey() {
+            return url;
+        }
+
+        @Override
+        Bitmap decode(final int maxSideSize) {
+            final File file = bitmapCache.getFromDisk(url);
+            return file == null ? null : ImageUtils.getBitmapFromFileWithMaxSideSize(file, maxSideSize);
+        }
+    }
+
+    //
+    // Loading
+    //
+
+    /**
+     * Loads an image from File
+     *
+     * @param file        - image File
+     * @param maxSideSize - max image side size. Uses DeviceInfo width if 0 passed.
+     * @param callback    - called on main thread
+     * @return Request which could be cancelled or null if parameters are invalid
+     */
+    public Request load(final File file, final int maxSideSize, final IImageLoaderCallback callback) {
+        if (file == null)
+            return null;
+        return load(new FileSource(file), maxSideSize, callback);
+    }
+
+    /**
+     * Loads an image from Uri using Initializer's context
+     *
+     * @param uri         - image Uri
+     * @param maxSideSize - max image side size. Uses DeviceInfo width if 0 passed.
+     * @param callback    - called on main thread
+     * @return Request which could be cancelled or null if parameters are invalid
+     */
+    public Request load(final Uri uri, final int maxSideSize, final IImageLoaderCallback callback) {
+        final Context context = Initializer.getAppContext();
+        if (uri == null || context == null)
+            return null;
+        return load(new UriSource(context, uri), maxSideSize, callback);
+    }
+
+    /**
+     * Loads an image which was stored to disk tier of BitmapCache by its url
+     *
+     * @param url         - image url
+     * @param maxSideSize - max image side size. Uses DeviceInfo width if 0 passed.
+     * @param callback    - called on main thread
+     * @return Request which could be cancelled or null if parameters are invalid or there is no
+     * BitmapCache
+     */
+    public Request loadCached(final String url, final int maxSideSize, final IImageLoaderCallback callback) {
+        if (url == null || mBitmapCache == null)
+            return null;
+        return load(new CachedUrlSource(mBitmapCache, url), maxSideSize, callback);
+    }
+
+    /**
+     * Loads an image from File into given ImageView cancelling previous request of the view.
+     * Must be called on main thread.
+     *
+     * @param file
+     * @param maxSideSize
+     * @param imageView
+     * @return Request or null if parameters are invalid
+     */
+    public Request load(final File file, final int maxSideSize, final ImageView imageView) {
+        if (file == null || imageView == null)
+            return null;
+        return load(new FileSource(file), maxSideSize, imageView);
+    }
+
+    /**
+     * Loads an image from Uri into given ImageView cancelling previous request of the view.
+     * Must be called on main thread.
+     *
+     * @param uri
+     * @param maxSideSize
+     * @param imageView
+     * @return Request or null if parameters are invalid
+     */
+    public Request load(final Uri uri, final int maxSideSize, final ImageView imageView) {
+        final Context context = Initializer.getAppContext();
+        if (uri == null || context == null || imageView == null)
+            return null;
+        return load(new UriSource(context, uri), maxSideSize, imageView);
+    }
+
+    /**
+     * Loads a cached by url image into given ImageView cancelling previous request of the view.
+     * Must be called on main thread.
+     *
+     * @param url
+     * @param maxSideSize
+     * @param imageView
+     * @return Request or null if parameters are invalid
+     */
+    public Request loadCached(final String url, final int maxSideSize, final ImageView imageView) {
+        if (url == null || mBitmapCache == null || imageView == null)
+            return null;
+        return load(new CachedUrlSource(mBitmapCache, url), maxSideSize, imageView);
+    }
+
+    private Request load(final Source source, final int maxSideSize, final ImageView imageView) {
+        cancel(imageView);
+        final Request request = load(source, maxSideSize, new ImageViewCallback(imageView));
+        if (request != null && !request.isDone())
+            synchronized (mViewRequests) {
+                mViewRequests.put(imageView, request);
+            }
+        return request;
+    }
+
+    private Request load(final Source source, final int maxSideSize, final IImageLoaderCallback callback) {
+        mRequestsCount.incrementAndGet();
+        final String key = source.getKey() + "@" + maxSideSize;
+        final Request request = new Request(this, key, callback);
+
+        // memory hit: deliver without any thread switching if called on main thread
+        final Bitmap cached = mBitmapCache == null ? null : mBitmapCache.getFromMemory(key);
+        if (cached != null) {
+            request.isDone = true;
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                if (callback != null)
+                    callback.onImageLoaded(cached);
+            } else {
+                deliver(request, cached);
+            }
+            return request;
+        }
+
+        synchronized (mInFlight) {
+            DecodeJob job = mInFlight.get(key);
+            if (job != null) {
+                mCoalescedCount.incrementAndGet();
+                job.requests.add(request);
+                return request;
+            }
+            job = new DecodeJob(key, source, maxSideSize);
+            job.requests.add(request);
+            mInFlight.put(key, job);
+            mExecutor.execute(job);
+        }
+        return request;
+    }
+
+    /**
+     * Cancels pending request of given ImageView. Must be called on main thread, for example
+     * when a list item view is recycled.
+     *
+     * @param imageView
+     */
+    public void cancel(final ImageView imageView) {
+        if (imageView == null)
+            return;
+        final Request request;
+        synchronized (mViewRequests) {
+            request = mViewRequests.remove(imageView);
+        }
+        if (request != null)
+            request.cancel();
+    }
+
+    private void cancel(final Request request) {
+        if (request.callback instanceof ImageViewCallback)
+            ((ImageViewCallback) request.callback).removeViewRequest();
+        synchronized (mInFlight) {
+            if (request.isCancelled)
+                return;
+            // pending delivery checks this flag on main thread
+            request.isCancelled = true;
+            mCancelledCount.incrementAndGet();
+            if (request.isDone)
+                return;
+            final DecodeJob job = mInFlight.get(request.key);
+            if (job == null)
+                return;
+            job.requests.remove(request);
+            if (job.requests.isEmpty()) {
+                // nobody waits for this decode anymore
+                job.isCancelled = true;
+                mInFlight.remove(request.key);
+                mExecutor.remove(job);
+            }
+        }
+    }
+
+    private void deliver(final Request request, final Bitmap bitmap) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled || request.callback == null)
+                    return;
+                if (bitmap == null)
+                    request.callback.onImageLoadFailed();
+                else
+                    request.callback.onImageLoaded(bitmap);
+            }
+        });
+    }
+
+    /**
+     * A single decode shared by all coalesced requests
+     */
+    private final class DecodeJob implements Runnable {
+
+        final String key;
+        final Source source;
+        final int maxSideSize;
+        // guarded by mInFlight
+        final ArrayList<Request> requests = new ArrayList<>(2);
+        volatile boolean isCancelled;
+
+        DecodeJob(final String key, final Source source, final int maxSideSize) {
+            this.key = key;
+            this.source = source;
+            this.maxSideSize = maxSideSize;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled)
+                return;
+
+            Bitmap bitmap = null;
+            try {
+                mDecodesCount.incrementAndGet();
+                bitmap = source.decode(maxSideSize);
+            } catch (Throwable e) {
+                // most probably OOM
+                Log.e(LOG_TAG, "decode failed: " + key, e);
+            }
+
+            if (bitmap != null && mBitmapCache != null)
+                mBitmapCache.put(key, bitmap);
+
+            final Request[] toDeliver;
+            synchronized (mInFlight) {
+                // a newer job could be registered for the key after this one was cancelled
+                if (mInFlight.get(key) == this)
+                    mInFlight.remove(key);
+                toDeliver = requests.toArray(new Request[requests.size()]);
+                for (Request request : toDeliver)
+                    request.isDone = true;
+            }
+            for (Request request : toDeliver)
+                deliver(request, bitmap);
+        }
+    }
+
+    /**
+     * A handle of a single load request
+     */
+    public static final class Request {
+
+        private final ImageLoader imageLoader;
+        private final String key;
+        private final IImageLoaderCallback callback;
+        private volatile boolean isCancelled;
+        private volatile boolean isDone;
+
+        private Request(final ImageLoader imageLoader, final String key, final IImageLoaderCallback callback) {
+            this.imageLoader = imageLoader;
+            this.key = key;
+            this.callback = callback;
+        }
+
+        /**
+         * Cancels the request, its callback will never be called after this method returns if
+         * called on main thread
+         */
+        public void cancel() {
+            imageLoader.cancel(this);
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+
+        /**
+         * @return true if decoding is finished and result delivery is scheduled or done
+         */
+        public boolean isDone() {
+            return isDone;
+        }
+    }
+
+    private class ImageViewCallback implements IImageLoaderCallback {
+
+        // weak since mViewRequests holds its request as a value of the view key
+        private final WeakReference<ImageView> imageViewRef;
+
+        ImageViewCallback(final ImageView imageView) {
+            this.imageViewRef = new WeakReference<>(imageView);
+        }
+
+        @Override
+        public void onImageLoaded(final Bitmap bitmap) {
+            final ImageView imageView = removeViewRequest();
+            if (imageView != null)
+                imageView.setImageBitmap(bitmap);
+        }
+
+        @Override
+        public void onImageLoadFailed() {
+            removeViewRequest();
+        }
+
+        /**
+         * Removes entry of the view if it still belongs to request of this callback
+         *
+         * @return the view or null if it is garbage collected
+         */
+        ImageView removeViewRequest() {
+            final ImageView imageView = imageViewRef.get();
+            if (imageView == null)
+                return null;
+            synchronized (mViewRequests) {
+                final Request request = mViewRequests.get(imageView);
+                if (request != null && request.callback == this)
+                    mViewRequests.remove(imageView);
+            }
+            return imageView;
+        }
+    }
+
+    //
+    // Statistics
+    //
+
+    public int getInFlightCount() {
+        synchronized (mInFlight) {
+            return mInFlight.size();
+        }
+    }
+
+    public long getRequestsCount() {
+        return mRequestsCount.get();
+    }
+
+    public long getDecodesCount() {
+        return mDecodesCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    public long getCancelledCount() {
+        return mCancelledCount.get();
+    }
+}
@@ -0,0 +1,268 @@
+package com.stanko.image;
+
+/**
+ * Pure Java pixel operations on packed ARGB buffers (as returned by Bitmap.getPixels()) used by
+ * ImageUtils transformations, so they could be run and benchmarked off-device. Regions are
+ * described by offset of the top left pixel, stride (distance between rows) and dimensions.
+ * Big images are processed in parallel stripes of rows. See BitmapPixels for Bitmap adapters
+ * and StackBlur for blurring.
+ */
+public class PixelKernels {
+
+    // ColorMatrix.setSaturation(0) luminance weights (0.213, 0.715, 0.072) in 1/32768
+    private static final int GRAY_R = 6980;
+    private static final int GRAY_G = 23429;
+    private static final int GRAY_B = 2359;
+
+    private static final int FIXED_SHIFT = 16;
+
+    //
+    // Grayscale
+    //
+
+    /**
+     * Converts given region to grayscale in place the same way ColorMatrix.setSaturation(0)
+     * does, alpha channel is preserved
+     *
+     * @param pixels - ARGB pixels
+     * @param offset - index of the top left pixel of the region
+     * @param stride - distance between rows in pixels
+     * @param width
+     * @param height
+     */
+    public static void grayscale(final int[] pixels, final int offset, final int stride, final int width, final int height) {
+        checkRegion(pixels, offset, stride, width, height);
+        StripeExecutor.run(height, width * height, new StripeExecutor.IStripeTask() {
+            @Override
+            public void run(final int from, final int to) {
+                for (int y = from; y < to; y++) {
+                    final int rowStart = offset + y * stride;
+                    final int rowEnd = rowStart + width;
+                    for (int i = rowStart; i < rowEnd; i++) {
+                        final int p = pixels[i];
+                        final int gray = (((p >> 16) & 0xFF) * GRAY_R + ((p >> 8) & 0xFF) * GRAY_G + (p & 0xFF) * GRAY_B + (1 << 14)) >> 15;
+                        pixels[i] = (p & 0xFF000000) | gray * 0x010101;
+                    }
+                }
+            }
+        });
+    }
+
+    //
+    // Scaling
+    //
+
+    /**
+     * Draws source region scaled to scaledWidth x scaledHeight into destination region, so
+     * destination pixel (x, y) takes pixel (x + scaledX, y + scaledY) of the scaled image.
+     * Uses bilinear filtering like Bitmap scaling with filter does.
+     *
+     * @param src          - source ARGB pixels
+     * @param srcOffset    - index of the top left pixel of the source region
+     * @param srcStride    - distance between source rows in pixels
+     * @param srcWidth     - width of the source region
+     * @param srcHeight    - height of the source region
+     * @param dst          - destination ARGB pixels, must not be the same array as src
+     * @param dstOffset    - index of the top left pixel of the destination region
+     * @param dstStride    - distance between destination rows in pixels
+     * @param dstWidth     - width of the destination region
+     * @param dstHeight    - height of the destination region
+     * @param scaledWidth  - width the source is scaled to
+     * @param scaledHeight - height the source is scaled to
+     * @param scaledX      - left of the destination within the scaled image
+     * @param scaledY      - top of the destination within the scaled image
+     */
+    public static void scale(final int[] src, final int srcOffset, final int srcStride, final int srcWidth, final int srcHeight,
+                             final int[] dst, final int dstOffset, final int dstStride, final int dstWidth, final int dstHeight,
+                             final int scaledWidth, final int scaledHeight, final int scaledX, final int scaledY) {
+        checkRegion(src, srcOffset, srcStride, srcWidth, srcHeight);
+        checkRegion(dst, dstOffset, dstStride, dstWidth, dstHeight);
+        if (src == dst)
+            throw new IllegalArgumentException("Could not scale in place");
+        if (scaledWidth < 1 || scaledHeight < 1)
+            throw new IllegalArgumentException("Scaled dimensions must be positive");
+
+        // source columns and horizontal weights are the same for every row
+        final int[] columns = new int[dstWidth * 2];
+        final int[] columnWeights = new int[dstWidth];
+        for (int x = 0; x < dstWidth; x++) {
+            final long position = getSourcePosition(x + scaledX, srcWidth, scaledWidth);
+            final int column = (int) (position >> FIXED_SHIFT);
+            columns[x * 2] = column;
+            columns[x * 2 + 1] = Math.min(column + 1, srcWidth - 1);
+            columnWeights[x] = (int) (position >> (FIXED_SHIFT - 8)) & 0xFF;
+        }
+
+        StripeExecutor.run(dstHeight, dstWidth * dstHeight, new StripeExecutor.IStripeTask() {
+            @Override
+            public void run(final int from, final int to) {
+                for (int y = from; y < to; y++) {
+                    final long position = getSourcePosition(y + scaledY, srcHeight, scaledHeight);
+                    final int row = (int) (position >> FIXED_SHIFT);
+                    final int rowWeight = (int) (position >> (FIXED_SHIFT - 8)) & 0xFF;
+                    final int topRow = srcOffset + row * srcStride;
+                    final int bottomRow = srcOffset + Math.min(row + 1, srcHeight - 1) * srcStride;
+                    int dstIndex = dstOffset + y * dstStride;
+                    for (int x = 0; x < dstWidth; x++, dstIndex++) {
+                        final int left = columns[x * 2];
+                        final int right = columns[x * 2 + 1];
+                        final int weight = columnWeights[x];
+                        final int top = lerp(src[topRow + left], src[topRow + right], weight);
+                        final int bottom = lerp(src[bottomRow + left], src[bottomRow + right], weight);
+                        dst[dstIndex] = lerp(top, bottom, rowWeight);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Scales source image to cover whole destination keeping aspect ratio and crops the center
+     * of it in a single pass
+     *
+     * @param src       - source ARGB pixels, width * height
+     * @param srcWidth
+     * @param srcHeight
+     * @param dst       - destination ARGB pixels, width * height
+     * @param dstWidth
+     * @param dstHeight
+     */
+    public static void scaleCenterCrop(final int[] src, final int srcWidth, final int srcHeight,
+                                       final int[] dst, final int dstWidth, final int dstHeight) {
+        final float scale = Math.max((float) dstWidth / srcWidth, (float) dstHeight / srcHeight);
+        final int scaledWidth = Math.max(dstWidth, Math.round(srcWidth * scale));
+        final int scaledHeight = Math.max(dstHeight, Math.round(srcHeight * scale));
+        scale(src, 0, srcWidth, srcWidth, srcHeight,
+                dst, 0, dstWidth, dstWidth, dstHeight,
+                scaledWidth, scaledHeight, (scaledWidth - dstWidth) / 2, (scaledHeight - dstHeight) / 2);
+    }
+
+    /**
+     * Returns source coordinate in 16.16 fixed point of the center of given scaled pixel
+     */
+    private static long getSourcePosition(final int scaledCoordinate, final int srcSize, final int scaledSize) {
+        final long position = ((2L * scaledCoordinate + 1) * srcSize << FIXED_SHIFT) / (2L * scaledSize) - (1 << (FIXED_SHIFT - 1));
+        if (position <= 0)
+            return 0;
+        return Math.min(position, (long) (srcSize - 1) << FIXED_SHIFT);
+    }
+
+    /**
+     * Interpolates two ARGB pixels, weight is 0..255 (weight of b in 1/256), two channels at once
+     */
+    private static int lerp(final int a, final int b, final int weight) {
+        if (weight == 0)
+            return a;
+        final int aWeight = 256 - weight;
+        final int redBlue = (((a & 0xFF00FF) * aWeight + (b & 0xFF00FF) * weight) >>> 8) & 0xFF00FF;
+        final int alphaGreen = (((a >>> 8) & 0xFF00FF) * aWeight + ((b >>> 8) & 0xFF00FF) * weight) & 0xFF00FF00;
+        return alphaGreen | redBlue;
+    }
+
+    //
+    // Joining
+    //
+
+    /**
+     * Copies source region into destination region
+     */
+    public static void copy(final int[] src, final int srcOffset, final int srcStride,
+                            final int[] dst, final int dstOffset, final int dstStride,
+                            final int width, final int height) {
+        checkRegion(src, srcOffset, srcStride, width, height);
+        checkRegion(dst, dstOffset, dstStride, width, height);
+        for (int y = 0; y < height; y++)
+            System.arraycopy(src, srcOffset + y * srcStride, dst, dstOffset + y * dstStride, width);
+    }
+
+    /**
+     * Joins two images into dst placing the right one next to the left one, both aligned to top.
+     * Resulting image is (leftWidth + rightWidth) x max(leftHeight, rightHeight), area not
+     * covered by the images stays as it was in dst (transparent for a new array).
+     *
+     * @return width of resulting image which is its stride in dst
+     */
+    public static int joinHorizontally(final int[] left, final int leftWidth, final int leftHeight,
+                                       final int[] right, final int rightWidth, final int rightHeight,
+                                       final int[] dst) {
+        final int width = leftWidth + rightWidth;
+        copy(left, 0, leftWidth, dst, 0, width, leftWidth, leftHeight);
+        copy(right, 0, rightWidth, dst, leftWidth, width, rightWidth, rightHeight);
+        return width;
+    }
+
+    /**
+     * Joins two images into dst placing the bottom one under the top one, both aligned to left.
+     * Resulting image is max(topWidth, bottomWidth) x (topHeight + bottomHeight), area not
+     * covered by the images stays as it was in dst (transparent for a new array).
+     *
+     * @return width of resulting image which is its stride in dst
+     */
+    public static int joinVertically(final int[] top, final int topWidth, final int topHeight,
+                                     final int[] bottom, final int bottomWidth, final int bottomHeight,
+                                     final int[] dst) {
+        final int width = Math.max(topWidth, bottomWidth);
+        copy(top, 0, topWidth, dst, 0, width, topWidth, topHeight);
+        copy(bottom, 0, bottomWidth, dst, topHeight * width, width, bottomWidth, bottomHeight);
+        return width;
+    }
+
+    //
+    // Masking
+    //
+
+    /**
+     * Makes pixels outside of the circle inscribed into given square region transparent in
+     * place, pixels on the circle edge get their alpha scaled by coverage (antialiasing)
+     *
+     * @param pixels   - ARGB pixels
+     * @param offset   - index of the top left pixel of the region
+     * @param stride   - distance between rows in pixels
+     * @param diameter - width and height of the region
+     */
+    public static void circleMask(final int[] pixels, final int offset, final int stride, final int diameter) {
+        checkRegion(pixels, offset, stride, diameter, diameter);
+        final float radius = diameter / 2f;
+        final float outerRadius = radius + 0.5f;
+        final float innerRadius = radius - 0.5f;
+        StripeExecutor.run(diameter, diameter * diameter, new StripeExecutor.IStripeTask() {
+            @Override
+            public void run(final int from, final int to) {
+                for (int y = from; y < to; y++) {
+                    final int rowStart = offset + y * stride;
+                    final float dy = y + 0.5f - radius;
+                    final float dy2 = dy * dy;
+                    // pixels in insideFrom..insideTo-1 are completely inside and stay untouched
+                    int insideFrom = diameter / 2;
+                    if (innerRadius > 0 && dy2 < innerRadius * innerRadius) {
+                        final float halfChord = (float) Math.sqrt(innerRadius * innerRadius - dy2);
+                        insideFrom = Math.max(0, (int) Math.ceil(radius - halfChord - 0.5f));
+                    }
+                    final int insideTo = Math.max(insideFrom, diameter - insideFrom);
+                    for (int x = 0; x < insideFrom; x++)
+                        pixels[rowStart + x] = applyCoverage(pixels[rowStart + x], x + 0.5f - radius, dy2, outerRadius);
+                    for (int x = insideTo; x < diameter; x++)
+                        pixels[rowStart + x] = applyCoverage(pixels[rowStart + x], x + 0.5f - radius, dy2, outerRadius);
+                }
+            }
+        });
+    }
+
+    private static int applyCoverage(final int pixel, final float dx, final float dy2, final float outerRadius) {
+        final float coverage = outerRadius - (float) Math.sqrt(dx * dx + dy2);
+        if (coverage <= 0)
+            return 0;
+        if (coverage >= 1)
+            return pixel;
+        final int alpha = (int) ((pixel >>> 24) * coverage + 0.5f);
+        return alpha << 24 | (pixel & 0xFFFFFF);
+    }
+
+    private static void checkRegion(final int[] pixels, final int offset, final int stride, final int width, final int height) {
+        if (pixels == null)
+            throw new IllegalArgumentException("Pixels array is null");
+        if (width < 0 || height < 0 || stride < width || offset < 0
+                || height > 0 && offset + (long) stride * (height - 1) + width > pixels.length)
+            throw new IllegalArgumentException("Region is out of pixels array bounds");
+    }
+}
@@ -0,0 +1,184 @@
+package com.stanko.image;
+
+/**
+ * Stack Blur (by Mario Klingemann) working in place on packed ARGB pixels, pure Java so it could
+ * be run and benchmarked off-device. See BitmapPixels.blur() for Bitmap adapter.
+ * <p>
+ * Horizontal and vertical passes are split into stripes of rows/columns which are blurred
+ * in parallel, per-thread stack buffers are reused between calls and channel sums are divided
+ * by multiplication instead of a per-call lookup table. Alpha channel is preserved.
+ */
+public class StackBlur {
+
+    // bigger radius would overflow exact multiply-shift division
+    public static final int MAX_RADIUS = 254;
+    private static final int DIV_SHIFT = 40;
+
+    private static final ThreadLocal<int[]> sStackBuffer = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[64];
+        }
+    };
+
+    /**
+     * Blurs given packed ARGB pixels in place
+     *
+     * @param pixels - row by row ARGB pixels, could be longer than width * height
+     * @param width
+     * @param height
+     * @param radius - blur radius in px, 1..MAX_RADIUS
+     */
+    public static void blur(final int[] pixels, final int width, final int height, final int radius) {
+        blur(pixels, 0, width, width, height, radius);
+    }
+
+    /**
+     * Blurs given region of packed ARGB pixels in place
+     *
+     * @param pixels - ARGB pixels
+     * @param offset - index of the top left pixel of the region
+     * @param stride - distance between rows in pixels, at least width
+     * @param width  - width of the region
+     * @param height - height of the region
+     * @param radius - blur radius in px, 1..MAX_RADIUS
+     */
+    public static void blur(final int[] pixels,
+                            final int offset,
+                            final int stride,
+                            final int width,
+                            final int height,
+                            int radius) {
+        if (pixels == null || radius < 1 || width < 1 || height < 1)
+            return;
+        if (stride < width || offset < 0 || offset + (long) stride * (height - 1) + width > pixels.length)
+            throw new IllegalArgumentException("Region is out of pixels array bounds");
+        final int blurRadius = Math.min(radius, MAX_RADIUS);
+
+        StripeExecutor.run(height, width * height, new StripeExecutor.IStripeTask() {
+            @Override
+            public void run(final int from, final int to) {
+                blurLines(pixels, offset, stride, width, height, blurRadius, true, from, to);
+            }
+        });
+        StripeExecutor.run(width, width * height, new StripeExecutor.IStripeTask() {
+            @Override
+            public void run(final int from, final int to) {
+                blurLines(pixels, offset, stride, width, height, blurRadius, false, from, to);
+            }
+        });
+    }
+
+    private static int[] getStack(final int size) {
+        int[] stack = sStackBuffer.get();
+        if (stack.length < size) {
+            stack = new int[size];
+            sStackBuffer.set(stack);
+        }
+        return stack;
+    }
+
+    //
+    // Blur
+    //
+
+    /**
+     * Blurs lines (rows if isHorizontal, columns otherwise) from..to-1 in place: every pixel is
+     * written only after all pixels ahead it depends on were read into the stack.
+     */
+    private static void blurLines(final int[] pixels,
+                                  final int offset,
+                                  final int stride,
+                                  final int width,
+                                  final int height,
+                                  final int radius,
+                                  final boolean isHorizontal,
+                                  final int from,
+                                  final int to) {
+        final int div = radius + radius + 1;
+        final int r1 = radius + 1;
+        final int divSum = r1 * r1;
+        // sum / divSum == (sum * multiplier) >>> DIV_SHIFT for sum <= 255 * divSum
+        final long multiplier = ((1L << DIV_SHIFT) + divSum - 1) / divSum;
+        final int[] stack = getStack(div);
+
+        // step between neighbour pixels of a line and between lines
+        final int pixelStep = isHorizontal ? 1 : stride;
+        final int lineStep = isHorizontal ? stride : 1;
+        final int lastIndex = (isHorizontal ? width : height) - 1;
+
+        for (int line = from; line < to; line++) {
+            final int lineStart = offset + line * lineStep;
+            int rSum = 0, gSum = 0, bSum = 0;
+            int rInSum = 0, gInSum = 0, bInSum = 0;
+            int rOutSum = 0, gOutSum = 0, bOutSum = 0;
+
+            for (int i = -radius; i <= radius; i++) {
+                final int p = pixels[lineStart + Math.min(lastIndex, Math.max(i, 0)) * pixelStep];
+                stack[i + radius] = p;
+                final int r = (p >> 16) & 0xFF;
+                final int g = (p >> 8) & 0xFF;
+                final int b = p & 0xFF;
+                final int weight = r1 - Math.abs(i);
+                rSum += r * weight;
+                gSum += g * weight;
+                bSum += b * weight;
+                if (i > 0) {
+                    rInSum += r;
+                    gInSum += g;
+                    bInSum += b;
+                } else {
+                    rOutSum += r;
+                    gOutSum += g;
+                    bOutSum += b;
+                }
+            }
+
+            int stackPointer = radius;
+            int index = lineStart;
+            for (int i = 0; i <= lastIndex; i++, index += pixelStep) {
+                pixels[index] = (pixels[index] & 0xFF000000)
+                        | (int) ((rSum * multiplier) >>> DIV_SHIFT) << 16
+                        | (int) ((gSum * multiplier) >>> DIV_SHIFT) << 8
+                        | (int) ((bSum * multiplier) >>> DIV_SHIFT);
+
+                rSum -= rOutSum;
+                gSum -= gOutSum;
+                bSum -= bOutSum;
+
+                // the oldest stack entry leaves the window
+                int stackStart = stackPointer + r1;
+                if (stackStart >= div)
+                    stackStart -= div;
+                int p = stack[stackStart];
+                rOutSum -= (p >> 16) & 0xFF;
+                gOutSum -= (p >> 8) & 0xFF;
+                bOutSum -= p & 0xFF;
+
+                // and the next pixel ahead enters it
+                p = pixels[lineStart + Math.min(i + r1, lastIndex) * pixelStep];
+                stack[stackStart] = p;
+                rInSum += (p >> 16) & 0xFF;
+                gInSum += (p >> 8) & 0xFF;
+                bInSum += p & 0xFF;
+
+                rSum += rInSum;
+                gSum += gInSum;
+                bSum += bInSum;
+
+                if (++stackPointer == div)
+                    stackPointer = 0;
+                p = stack[stackPointer];
+                final int r = (p >> 16) & 0xFF;
+                final int g = (p >> 8) & 0xFF;
+                final int b = p & 0xFF;
+                rOutSum += r;
+                gOutSum += g;
+                bOutSum += b;
+                rInSum -= r;
+                gInSum -= g;
+                bInSum -= b;
+            }
+        }
+    }
+}
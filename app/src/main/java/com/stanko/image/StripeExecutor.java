@@ -0,0 +1,84 @@
+package com.stanko.image;
+
+import com.stanko.tools.BackgroundThreadFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a pixel operation split into stripes of lines (rows or columns) on a small shared pool.
+ * The calling thread processes the first stripe itself and returns when all stripes are done.
+ */
+class StripeExecutor {
+
+    // do not bother other threads with small images
+    static final int MIN_PIXELS_TO_PARALLELIZE = 256 * 256;
+
+    static final int THREADS_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static ThreadPoolExecutor sExecutor;
+
+    /**
+     * Operation over lines from..to-1, must not touch pixels of other lines
+     */
+    interface IStripeTask {
+        void run(int from, int to);
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(THREADS_COUNT, THREADS_COUNT, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * @param linesCount  - number of lines to process
+     * @param pixelsCount - total number of pixels, small images are processed by calling thread
+     * @param task        - operation to run
+     */
+    static void run(final int linesCount, final int pixelsCount, final IStripeTask task) {
+        final int stripesCount = pixelsCount < MIN_PIXELS_TO_PARALLELIZE ? 1 : Math.min(THREADS_COUNT, linesCount);
+        if (stripesCount <= 1) {
+            if (linesCount > 0)
+                task.run(0, linesCount);
+            return;
+        }
+
+        final int linesPerStripe = (linesCount + stripesCount - 1) / stripesCount;
+        final CountDownLatch latch = new CountDownLatch(stripesCount - 1);
+        final ThreadPoolExecutor executor = getExecutor();
+        for (int i = 1; i < stripesCount; i++) {
+            final int from = i * linesPerStripe;
+            final int to = Math.min(linesCount, from + linesPerStripe);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (from < to)
+                            task.run(from, to);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        task.run(0, Math.min(linesCount, linesPerStripe));
+
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted)
+            Thread.currentThread().interrupt();
+    }
+}
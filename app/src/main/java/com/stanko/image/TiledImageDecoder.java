@@ -0,0 +1,473 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.util.LruCache;
+
+import com.stanko.image.ImageHeaderParser.ImageHeader;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.ImageUtils;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes parts of big images (like 48Mpx camera photos) with BitmapRegionDecoder, so memory
+ * needed is proportional to the requested region or viewport instead of the source image.
+ * <p>
+ * Image is split into a grid of tiles per sample size: every tile is TILE_SIZE x TILE_SIZE px
+ * after sampling, so each zoom level of a viewer has the same number of tiles on screen.
+ * Decoded tiles are kept in a LRU cache bounded by bytes. All coordinates are in source image
+ * pixels, EXIF orientation is not applied (see getRotateAngle()).
+ * <p>
+ * Decoder holds native resources so recycle() must be called when it is not needed anymore.
+ */
+public class TiledImageDecoder {
+
+    private static final String LOG_TAG = TiledImageDecoder.class.getSimpleName();
+
+    // side of a tile in sampled px
+    public static final int TILE_SIZE = 512;
+    // part of the app heap tile cache may take by default
+    public static final int DEFAULT_TILE_CACHE_DIVIDER = 16;
+
+    private static final boolean IS_KITKAT = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private final File mImageFile;
+    private final String mMimeType;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotateAngle;
+    private final LruCache<Tile, Bitmap> mTilesCache;
+    // guards mRegionDecoder
+    private final Object mDecoderLock = new Object();
+    private BitmapRegionDecoder mRegionDecoder;
+
+    /**
+     * A cell of the tile grid of some sample size.
+     * Since all fields are final and public no getters need.
+     */
+    public static class Tile {
+
+        public final int sampleSize;
+        public final int column;
+        public final int row;
+        // area of the source image covered by this tile
+        public final Rect region;
+
+        Tile(final int sampleSize, final int column, final int row, final int imageWidth, final int imageHeight) {
+            this.sampleSize = sampleSize;
+            this.column = column;
+            this.row = row;
+            final int sourceTileSize = TILE_SIZE * sampleSize;
+            final int left = column * sourceTileSize;
+            final int top = row * sourceTileSize;
+            region = new Rect(left, top, Math.min(imageWidth, left + sourceTileSize), Math.min(imageHeight, top + sourceTileSize));
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Tile))
+                return false;
+            final Tile tile = (Tile) o;
+            return sampleSize == tile.sampleSize && column == tile.column && row == tile.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return (sampleSize * 31 + column) * 31 + row;
+        }
+
+        @Override
+        public String toString() {
+            return "Tile sampleSize: " + sampleSize + " column: " + column + " row: " + row + " region: " + region;
+        }
+    }
+
+    /**
+     * Opens given image for tiled decoding using tile cache of 1/16 of app heap
+     *
+     * @param imageFile - JPEG, PNG or WebP image
+     * @return TiledImageDecoder or null if file is not readable or not supported
+     */
+    public static TiledImageDecoder open(final File imageFile) {
+        return open(imageFile, Runtime.getRuntime().maxMemory() / DEFAULT_TILE_CACHE_DIVIDER);
+    }
+
+    /**
+     * Opens given image for tiled decoding
+     *
+     * @param imageFile     - JPEG, PNG or WebP image
+     * @param tileCacheSize - byte budget of decoded tiles cache, 0 to disable caching
+     * @return TiledImageDecoder or null if file is not readable or not supported
+     */
+    public static TiledImageDecoder open(final File imageFile, final long tileCacheSize) {
+        if (!FileUtils.isReadable(imageFile))
+            return null;
+        final ImageHeader imageHeader = ImageHeaderParser.parse(imageFile);
+        if (imageHeader == null || !isSupported(imageHeader.mimeType))
+            return null;
+        try {
+            final BitmapRegionDecoder regionDecoder = BitmapRegionDecoder.newInstance(imageFile.getAbsolutePath(), false);
+            if (regionDecoder == null)
+                return null;
+            return new TiledImageDecoder(imageFile, imageHeader, regionDecoder, tileCacheSize);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        }
+        return null;
+    }
+
+    private static boolean isSupported(final String mimeType) {
+        return ImageHeaderParser.MIME_JPEG.equals(mimeType)
+                || ImageHeaderParser.MIME_PNG.equals(mimeType)
+                || ImageHeaderParser.MIME_WEBP.equals(mimeType);
+    }
+
+    private TiledImageDecoder(final File imageFile,
+                              final ImageHeader imageHeader,
+                              final BitmapRegionDecoder regionDecoder,
+                              final long tileCacheSize) {
+        mImageFile = imageFile;
+        mMimeType = imageHeader.mimeType;
+        mWidth = regionDecoder.getWidth();
+        mHeight = regionDecoder.getHeight();
+        mRotateAngle = imageHeader.rotateAngle;
+        mRegionDecoder = regionDecoder;
+        mTilesCache = tileCacheSize <= 0 ? null : new LruCache<Tile, Bitmap>((int) Math.min(Integer.MAX_VALUE, tileCacheSize)) {
+            @Override
+            protected int sizeOf(final Tile tile, final Bitmap bitmap) {
+                return ImageUtils.getBitmapSizeInBytes(bitmap);
+            }
+        };
+    }
+
+    public File getImageFile() {
+        return mImageFile;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return angle the image should be rotated by according to its EXIF
+     */
+    public int getRotateAngle() {
+        return mRotateAngle;
+    }
+
+    //
+    // Regions
+    //
+
+    /**
+     * Decodes given region of the image with given sample size
+     *
+     * @param region     - area of the source image, gets clipped to the image bounds
+     * @param sampleSize - power of 2, 1 for full resolution
+     * @return Bitmap of about region / sampleSize size or null if region is empty or decoding failed
+     */
+    public Bitmap decodeRegion(final Rect region, final int sampleSize) {
+        final Rect clippedRegion = new Rect(region);
+        if (!clippedRegion.intersect(0, 0, mWidth, mHeight))
+            return null;
+        final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
+        bmfOptions.inSampleSize = Math.max(1, Integer.highestOneBit(Math.max(1, sampleSize)));
+        bmfOptions.outWidth = clippedRegion.width();
+        bmfOptions.outHeight = clippedRegion.height();
+        bmfOptions.outMimeType = mMimeType;
+        // region decoder is able to reuse bitmaps since KitKat only
+        if (IS_KITKAT)
+            BitmapPool.getInstance().setInBitmap(bmfOptions);
+
+        synchronized (mDecoderLock) {
+            if (mRegionDecoder == null || mRegionDecoder.isRecycled())
+                return null;
+            Bitmap bitmap = null;
+            try {
+                bitmap = mRegionDecoder.decodeRegion(clippedRegion, bmfOptions);
+            } catch (IllegalArgumentException e) {
+                if (bmfOptions.inBitmap == null)
+                    throw e;
+                Log.w(LOG_TAG, "Could not decode into pooled bitmap: " + e.getMessage());
+                bmfOptions.inBitmap.recycle();
+                bmfOptions.inBitmap = null;
+                bitmap = mRegionDecoder.decodeRegion(clippedRegion, bmfOptions);
+            }
+            if (bitmap == null && bmfOptions.inBitmap != null)
+                BitmapPool.getInstance().put(bmfOptions.inBitmap);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Returns the biggest power of 2 sample size giving at least given dimensions for given region
+     *
+     * @param regionWidth
+     * @param regionHeight
+     * @param targetWidth
+     * @param targetHeight
+     * @return sample size
+     */
+    public static int getSampleSize(final int regionWidth, final int regionHeight, final int targetWidth, final int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0)
+            return sampleSize;
+        while (regionWidth / (sampleSize * 2) >= targetWidth && regionHeight / (sampleSize * 2) >= targetHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Returns the largest centered area of the image having proportions of given dimensions
+     * scaled and cropped to them. Image is never upscaled: if the area is smaller than given
+     * dimensions, result has the area size. Only pixels of the area get decoded.
+     *
+     * @param cropToHeight - target height
+     * @param cropToWidth  - target width
+     * @return Bitmap or null if decoding failed
+     */
+    public Bitmap decodeCenterCrop(final int cropToHeight, final int cropToWidth) {
+        if (cropToHeight <= 0 || cropToWidth <= 0)
+            return null;
+        // the largest centered area with crop proportions
+        int regionWidth = mWidth;
+        int regionHeight = (int) ((long) mWidth * cropToHeight / cropToWidth);
+        if (regionHeight > mHeight) {
+            regionHeight = mHeight;
+            regionWidth = (int) ((long) mHeight * cropToWidth / cropToHeight);
+        }
+        regionWidth = Math.max(1, regionWidth);
+        regionHeight = Math.max(1, regionHeight);
+        final int left = (mWidth - regionWidth) / 2;
+        final int top = (mHeight - regionHeight) / 2;
+        final Rect region = new Rect(left, top, left + regionWidth, top + regionHeight);
+
+        final int targetWidth = Math.min(cropToWidth, regionWidth);
+        final int targetHeight = Math.min(cropToHeight, regionHeight);
+        return decodeScaledRegion(region, targetWidth, targetHeight, 0);
+    }
+
+    /**
+     * Returns the whole image scaled down to fit given max side size. Image is decoded tile by
+     * tile, each tile is drawn scaled into the result, so memory needed is about the result size
+     * plus one tile instead of the size of subsampled image.
+     *
+     * @param maxSideSize - the biggest image dimension (height or width) limit, 0 for no limit
+     * @return Bitmap or null if decoding failed
+     */
+    public Bitmap decodeScaled(final int maxSideSize) {
+        return decodeScaled(maxSideSize, false);
+    }
+
+    /**
+     * Returns the whole image scaled down to fit given max side size and optionally rotated
+     * according to its EXIF. Tiles are drawn directly into rotated result, so no intermediate
+     * unrotated image is created.
+     *
+     * @param maxSideSize      - the biggest image dimension (height or width) limit, 0 for no limit
+     * @param isRotatedByExif  - if image should be rotated by its EXIF orientation
+     * @return Bitmap or null if decoding failed
+     */
+    public Bitmap decodeScaled(final int maxSideSize, final boolean isRotatedByExif) {
+        final int sideSize = Math.max(mWidth, mHeight);
+        final float scale = maxSideSize <= 0 || sideSize <= maxSideSize ? 1f : (float) maxSideSize / sideSize;
+        final int targetWidth = Math.max(1, Math.round(mWidth * scale));
+        final int targetHeight = Math.max(1, Math.round(mHeight * scale));
+        return decodeScaledRegion(new Rect(0, 0, mWidth, mHeight), targetWidth, targetHeight, isRotatedByExif ? mRotateAngle : 0);
+    }
+
+    /**
+     * Decodes given region scaled to exactly given dimensions and rotated by given angle
+     * (0, 90, 180 or 270) piece by piece
+     */
+    private Bitmap decodeScaledRegion(final Rect region, final int targetWidth, final int targetHeight, final int rotateAngle) {
+        final int sampleSize = getSampleSize(region.width(), region.height(), targetWidth, targetHeight);
+        // single piece, scaled once if needed
+        if (rotateAngle == 0 && region.width() / sampleSize <= TILE_SIZE * 2 && region.height() / sampleSize <= TILE_SIZE * 2) {
+            final Bitmap bitmap = decodeRegion(region, sampleSize);
+            if (bitmap == null || bitmap.getWidth() == targetWidth && bitmap.getHeight() == targetHeight)
+                return bitmap;
+            final Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, targetWidth, targetHeight, true);
+            if (scaledBitmap != bitmap)
+                BitmapPool.getInstance().put(bitmap);
+            return scaledBitmap;
+        }
+
+        final boolean isSwapped = rotateAngle == 90 || rotateAngle == 270;
+        final int resultWidth = isSwapped ? targetHeight : targetWidth;
+        final int resultHeight = isSwapped ? targetWidth : targetHeight;
+        final Bitmap result = BitmapPool.getInstance().get(resultWidth, resultHeight, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(result);
+        switch (rotateAngle) {
+            case 90:
+                canvas.translate(resultWidth, 0);
+                break;
+            case 180:
+                canvas.translate(resultWidth, resultHeight);
+                break;
+            case 270:
+                canvas.translate(0, resultHeight);
+                break;
+        }
+        if (rotateAngle != 0)
+            canvas.rotate(rotateAngle);
+
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        final float scaleX = (float) targetWidth / region.width();
+        final float scaleY = (float) targetHeight / region.height();
+        final int sourceTileSize = TILE_SIZE * sampleSize;
+        final Rect pieceRegion = new Rect();
+        final RectF pieceTarget = new RectF();
+        for (int top = region.top; top < region.bottom; top += sourceTileSize)
+            for (int left = region.left; left < region.right; left += sourceTileSize) {
+                pieceRegion.set(left, top, Math.min(region.right, left + sourceTileSize), Math.min(region.bottom, top + sourceTileSize));
+                final Bitmap piece = decodeRegion(pieceRegion, sampleSize);
+                if (piece == null) {
+                    BitmapPool.getInstance().put(result);
+                    return null;
+                }
+                pieceTarget.set((pieceRegion.left - region.left) * scaleX, (pieceRegion.top - region.top) * scaleY,
+                        (pieceRegion.right - region.left) * scaleX, (pieceRegion.bottom - region.top) * scaleY);
+                canvas.drawBitmap(piece, null, pieceTarget, paint);
+                BitmapPool.getInstance().put(piece);
+            }
+        return result;
+    }
+
+    //
+    // Tile grid
+    //
+
+    /**
+     * Returns sample size of the grid to draw the image at given scale from
+     *
+     * @param scale - ratio of displayed size to source size, like 0.25f
+     * @return power of 2 sample size
+     */
+    public static int getSampleSizeForScale(final float scale) {
+        int sampleSize = 1;
+        if (scale <= 0f)
+            return sampleSize;
+        while (sampleSize * 2 * scale <= 1f)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    public int getColumnsCount(final int sampleSize) {
+        final int sourceTileSize = TILE_SIZE * sampleSize;
+        return (mWidth + sourceTileSize - 1) / sourceTileSize;
+    }
+
+    public int getRowsCount(final int sampleSize) {
+        final int sourceTileSize = TILE_SIZE * sampleSize;
+        return (mHeight + sourceTileSize - 1) / sourceTileSize;
+    }
+
+    /**
+     * Returns tiles of given sample size grid intersecting given viewport
+     *
+     * @param viewport   - visible area in source image pixels
+     * @param sampleSize - power of 2, see getSampleSizeForScale()
+     * @return List of Tile, row by row
+     */
+    public List<Tile> getVisibleTiles(final Rect viewport, final int sampleSize) {
+        final ArrayList<Tile> tiles = new ArrayList<>();
+        final Rect visibleArea = new Rect(viewport);
+        if (sampleSize < 1 || !visibleArea.intersect(0, 0, mWidth, mHeight))
+            return tiles;
+        final int sourceTileSize = TILE_SIZE * sampleSize;
+        final int lastColumn = (visibleArea.right - 1) / sourceTileSize;
+        final int lastRow = (visibleArea.bottom - 1) / sourceTileSize;
+        for (int row = visibleArea.top / sourceTileSize; row <= lastRow; row++)
+            for (int column = visibleArea.left / sourceTileSize; column <= lastColumn; column++)
+                tiles.add(new Tile(sampleSize, column, row, mWidth, mHeight));
+        return tiles;
+    }
+
+    /**
+     * Returns decoded tile from the cache or decodes it. Returned Bitmap is owned by the cache,
+     * it must not be recycled or released to the pool.
+     *
+     * @param tile - tile of this decoder grid
+     * @return Bitmap or null if decoding failed
+     */
+    public Bitmap getTile(final Tile tile) {
+        if (mTilesCache != null) {
+            final Bitmap bitmap = mTilesCache.get(tile);
+            if (bitmap != null)
+                return bitmap;
+        }
+        final Bitmap bitmap = decodeRegion(tile.region, tile.sampleSize);
+        if (bitmap != null && mTilesCache != null)
+            mTilesCache.put(tile, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * @param tile
+     * @return cached Bitmap of given tile or null, never decodes
+     */
+    public Bitmap getCachedTile(final Tile tile) {
+        return mTilesCache == null ? null : mTilesCache.get(tile);
+    }
+
+    /**
+     * Drops cached tiles of other sample sizes, to be called when viewer zoom level is settled
+     *
+     * @param sampleSize - sample size to keep tiles of
+     */
+    public void trimTiles(final int sampleSize) {
+        if (mTilesCache == null)
+            return;
+        for (Tile tile : mTilesCache.snapshot().keySet())
+            if (tile.sampleSize != sampleSize)
+                mTilesCache.remove(tile);
+    }
+
+    public void clearTiles() {
+        if (mTilesCache != null)
+            mTilesCache.evictAll();
+    }
+
+    /**
+     * Releases native decoder and cached tiles, decoder could not be used after this call
+     */
+    public void recycle() {
+        clearTiles();
+        synchronized (mDecoderLock) {
+            if (mRegionDecoder != null) {
+                mRegionDecoder.recycle();
+                mRegionDecoder = null;
+            }
+        }
+    }
+
+    public boolean isRecycled() {
+        synchronized (mDecoderLock) {
+            return mRegionDecoder == null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TiledImageDecoder " + mImageFile + " " + mWidth + "x" + mHeight
+                + (mTilesCache == null ? "" : " tiles: " + mTilesCache.size() + "/" + mTilesCache.maxSize());
+    }
+}
@@ -230,19 +230,21 @@ public class NetworkStateHelper {
                                                 final NetworkState newNetworkState,
                                                 final String lastNetworkID,
                                                 final String newNetworkID) {
-        Log.i("wasNetworkAvailable: " + wasNetworkAvailable
-                + " isNetworkAvailable: " + isNetworkAvailable
-                + " lastNetworkState: " + lastNetworkState
-                + " newNetworkState: " + newNetworkState
-                + " lastNetworkID: " + lastNetworkID
-                + " newNetworkID: " + newNetworkID
-        );
+        if (Log.isLoggable(Log.INFO))
+            Log.i("wasNetworkAvailable: " + wasNetworkAvailable
+                    + " isNetworkAvailable: " + isNetworkAvailable
+                    + " lastNetworkState: " + lastNetworkState
+                    + " newNetworkState: " + newNetworkState
+                    + " lastNetworkID: " + lastNetworkID
+                    + " newNetworkID: " + newNetworkID
+            );
         // init on demand
         initOnDemand();
         // current network state is other than incoming
         if (isNetworkConnectionAvailable != isNetworkAvailable) {
             final boolean isAnyNetworkConnectionAvailable = isAnyNetworkConnectionAvailable();
-            Log.i("isNetworkConnectionAvailable: " + isNetworkConnectionAvailable + " isAnyNetworkConnectionAvailable(): " + isAnyNetworkConnectionAvailable);
+            if (Log.isLoggable(Log.INFO))
+                Log.i("isNetworkConnectionAvailable: " + isNetworkConnectionAvailable + " isAnyNetworkConnectionAvailable(): " + isAnyNetworkConnectionAvailable);
             // should only be the current state which holds in isAnyNetworkConnectionAvailable
             isNetworkConnectionAvailable = isAnyNetworkConnectionAvailable;
         }
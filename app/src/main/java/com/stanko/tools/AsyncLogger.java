@@ -0,0 +1,236 @@
+package com.stanko.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous backend of Log enabled by Log.setAsync().
+ * <p>
+ * Call sites only fill a preallocated event in a bounded lock-free ring buffer (multiple
+ * producers, single consumer) with raw arguments: tag source, message, throwable and an unfilled
+ * Throwable marking caller location. A single background consumer thread resolves tags and
+ * caller locations, formats and writes events to android.util.Log and Log file sink.
+ * <p>
+ * When the buffer is full an event is either dropped (DROP policy, counted by getDroppedCount())
+ * or the caller waits for a free slot (BLOCK policy).
+ */
+public class AsyncLogger {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    // consumer sleep while buffer is empty and nobody wakes it up
+    private static final long CONSUMER_PARK_TIME = 100 * 1000 * 1000L; // 100ms in nanos
+    private static final long PRODUCER_PARK_TIME = 100 * 1000L; // 0.1ms in nanos
+
+    /**
+     * What to do with an event when the buffer is full
+     */
+    public enum OverflowPolicy {
+        // drop the event and count it, callers never wait
+        DROP,
+        // wait for a free slot, nothing is lost
+        BLOCK
+    }
+
+    /**
+     * Preallocated buffer slot
+     */
+    static final class LogEvent {
+        // Vyukov bounded queue sequence: equals slot position when free, position + 1 when published
+        volatile long sequence;
+
+        int priority;
+        long time;
+        String threadName;
+        String tag;
+        // Class or Object to resolve tag from when tag is null
+        Object tagSource;
+        String msg;
+        Throwable throwable;
+        // created at call site of tagless methods, its trace is read by consumer only
+        Throwable caller;
+        int callerFormat;
+
+        LogEvent(final long sequence) {
+            this.sequence = sequence;
+        }
+
+        void clear() {
+            threadName = null;
+            tag = null;
+            tagSource = null;
+            msg = null;
+            throwable = null;
+            caller = null;
+        }
+    }
+
+    private final LogEvent[] mEvents;
+    private final int mMask;
+    private final OverflowPolicy mOverflowPolicy;
+
+    // next position to publish to
+    private final AtomicLong mTail = new AtomicLong();
+    // next position to consume, written by consumer only
+    private volatile long mHead;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private final Thread mConsumerThread;
+    private volatile boolean mIsConsumerWaiting;
+    private volatile boolean mIsStopped;
+
+    /**
+     * @param capacity       - count of preallocated events, rounded up to a power of 2
+     * @param overflowPolicy - what to do when all events are in use
+     */
+    public AsyncLogger(final int capacity, final OverflowPolicy overflowPolicy) {
+        int size = 2;
+        while (size < capacity && size < (1 << 30))
+            size <<= 1;
+        mEvents = new LogEvent[size];
+        for (int i = 0; i < size; i++)
+            mEvents[i] = new LogEvent(i);
+        mMask = size - 1;
+        mOverflowPolicy = overflowPolicy == null ? OverflowPolicy.DROP : overflowPolicy;
+
+        mConsumerThread = new BackgroundThreadFactory().newThread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        });
+        mConsumerThread.setName(AsyncLogger.class.getSimpleName());
+        mConsumerThread.start();
+    }
+
+    public int getCapacity() {
+        return mEvents.length;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * @return count of events dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    //
+    // Producers
+    //
+
+    /**
+     * Puts an event into the buffer
+     *
+     * @return false if the event was dropped
+     */
+    boolean enqueue(final int priority,
+                    final String tag,
+                    final Object tagSource,
+                    final String msg,
+                    final Throwable throwable,
+                    final Throwable caller,
+                    final int callerFormat) {
+        if (mIsStopped) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        LogEvent event;
+        long position;
+        while (true) {
+            position = mTail.get();
+            event = mEvents[(int) position & mMask];
+            final long difference = event.sequence - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1))
+                    break;
+            } else if (difference < 0) {
+                // full, the slot is not consumed yet since the previous lap
+                // the consumer logging through Log would wait for itself
+                if (mOverflowPolicy == OverflowPolicy.DROP || mIsStopped || Thread.currentThread() == mConsumerThread) {
+                    mDroppedCount.incrementAndGet();
+                    return false;
+                }
+                LockSupport.unpark(mConsumerThread);
+                LockSupport.parkNanos(this, PRODUCER_PARK_TIME);
+            }
+            // else another producer took this position, retry with the next one
+        }
+
+        event.priority = priority;
+        event.time = System.currentTimeMillis();
+        event.threadName = Thread.currentThread().getName();
+        event.tag = tag;
+        event.tagSource = tagSource;
+        event.msg = msg;
+        event.throwable = throwable;
+        event.caller = caller;
+        event.callerFormat = callerFormat;
+        // publish
+        event.sequence = position + 1;
+        if (mIsConsumerWaiting)
+            LockSupport.unpark(mConsumerThread);
+        return true;
+    }
+
+    //
+    // Consumer
+    //
+
+    private void consume() {
+        long position = mHead;
+        while (true) {
+            final LogEvent event = mEvents[(int) position & mMask];
+            if (event.sequence == position + 1) {
+                try {
+                    Log.write(event);
+                } catch (Throwable e) {
+                    // a broken event must not stop logging
+                    android.util.Log.e(AsyncLogger.class.getSimpleName(), "Could not write log event", e);
+                }
+                event.clear();
+                // free the slot for the next lap
+                event.sequence = position + mEvents.length;
+                mHead = ++position;
+                continue;
+            }
+            if (mIsStopped)
+                return;
+            mIsConsumerWaiting = true;
+            // recheck so an event published before the flag was seen is not left waiting
+            if (event.sequence != position + 1)
+                LockSupport.parkNanos(this, CONSUMER_PARK_TIME);
+            mIsConsumerWaiting = false;
+        }
+    }
+
+    /**
+     * Waits until all events enqueued before the call are written
+     *
+     * @param timeout - max time to wait in milliseconds
+     * @return false if timed out
+     */
+    public boolean flush(final long timeout) {
+        if (Thread.currentThread() == mConsumerThread)
+            return false;
+        final long target = mTail.get();
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (mHead < target) {
+            if (System.currentTimeMillis() > deadline || !mConsumerThread.isAlive())
+                return false;
+            LockSupport.unpark(mConsumerThread);
+            LockSupport.parkNanos(this, PRODUCER_PARK_TIME);
+        }
+        return true;
+    }
+
+    /**
+     * Writes events already enqueued and stops the consumer, events enqueued later are dropped
+     */
+    public void stop() {
+        mIsStopped = true;
+        LockSupport.unpark(mConsumerThread);
+    }
+}
@@ -0,0 +1,426 @@
+package com.stanko.tools;
+
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Default SharedPrefsHelper object codec. Primitive wrappers, strings, byte arrays, JSONObject,
+ * JSONArray and common collections (ArrayList, LinkedList, HashMap, LinkedHashMap, HashSet,
+ * LinkedHashSet and naturally ordered TreeMap and TreeSet) are written in a compact tagged
+ * binary format with varint numbers, collections are decoded to the same classes they were
+ * encoded from. Other Serializable values are written by Java serialization, inside of
+ * collections too.
+ * <p>
+ * Values encoded by older versions (plain Java serialization in Base64) are still decoded.
+ * Values with cycles (a collection containing itself) are written that way as well since the
+ * compact format has no back-references.
+ */
+public class CompactObjectCodec implements SharedPrefsHelper.IObjectCodec {
+
+    private static final byte FORMAT_MAGIC = 0x4B;
+    private static final byte FORMAT_VERSION = 1;
+    // first bytes of Java serialization stream
+    private static final byte SERIALIZATION_MAGIC_0 = (byte) 0xAC;
+    private static final byte SERIALIZATION_MAGIC_1 = (byte) 0xED;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_TRUE = 1;
+    private static final int TAG_FALSE = 2;
+    private static final int TAG_BYTE = 3;
+    private static final int TAG_SHORT = 4;
+    private static final int TAG_CHAR = 5;
+    private static final int TAG_INT = 6;
+    private static final int TAG_LONG = 7;
+    private static final int TAG_FLOAT = 8;
+    private static final int TAG_DOUBLE = 9;
+    private static final int TAG_STRING = 10;
+    private static final int TAG_BYTES = 11;
+    private static final int TAG_ARRAY_LIST = 12;
+    private static final int TAG_LINKED_LIST = 13;
+    private static final int TAG_HASH_SET = 14;
+    private static final int TAG_LINKED_HASH_SET = 15;
+    private static final int TAG_TREE_SET = 16;
+    private static final int TAG_HASH_MAP = 17;
+    private static final int TAG_LINKED_HASH_MAP = 18;
+    private static final int TAG_TREE_MAP = 19;
+    private static final int TAG_JSON_OBJECT = 20;
+    private static final int TAG_JSON_ARRAY = 21;
+    private static final int TAG_JSON_NULL = 22;
+    private static final int TAG_SERIALIZABLE = 23;
+
+    @Override
+    public String encode(final Object value) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(FORMAT_MAGIC);
+        dos.writeByte(FORMAT_VERSION);
+        try {
+            writeValue(dos, value, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+        } catch (CycleFoundException e) {
+            // the compact format has no back-references, Java serialization restores cycles
+            return Base64.encodeToString(serialize(value), Base64.NO_WRAP);
+        }
+        dos.flush();
+        return Base64.encodeToString(baos.toByteArray(), Base64.NO_WRAP);
+    }
+
+    @Override
+    public Object decode(final String encoded) throws IOException {
+        final byte[] data;
+        try {
+            data = Base64.decode(encoded, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Not a Base64 string", e);
+        }
+        if (data.length >= 2 && data[0] == SERIALIZATION_MAGIC_0 && data[1] == SERIALIZATION_MAGIC_1)
+            return readSerializable(data);
+        if (data.length < 2 || data[0] != FORMAT_MAGIC)
+            throw new IOException("Unknown format");
+        if (data[1] != FORMAT_VERSION)
+            throw new IOException("Unsupported format version: " + data[1]);
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, 2, data.length - 2));
+        return readValue(dis);
+    }
+
+    //
+    // Writing
+    //
+
+    /**
+     * Thrown when a collection, map or JSON value contains itself
+     */
+    private static class CycleFoundException extends IOException {
+        CycleFoundException(final Object value) {
+            super("Cycle found in " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Adds a container to the path of containers being written
+     */
+    private static void enter(final Set<Object> path, final Object container) throws CycleFoundException {
+        if (!path.add(container))
+            throw new CycleFoundException(container);
+    }
+
+    private static void writeValue(final DataOutputStream dos, final Object value, final Set<Object> path) throws IOException {
+        if (value == null) {
+            writeVarInt(dos, TAG_NULL);
+        } else if (value instanceof String) {
+            writeVarInt(dos, TAG_STRING);
+            writeString(dos, (String) value);
+        } else if (value instanceof Integer) {
+            writeVarInt(dos, TAG_INT);
+            writeVarLong(dos, zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            writeVarInt(dos, TAG_LONG);
+            writeVarLong(dos, zigZag((Long) value));
+        } else if (value instanceof Boolean) {
+            writeVarInt(dos, (Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Double) {
+            writeVarInt(dos, TAG_DOUBLE);
+            dos.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            writeVarInt(dos, TAG_FLOAT);
+            dos.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            writeVarInt(dos, TAG_SHORT);
+            dos.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            writeVarInt(dos, TAG_BYTE);
+            dos.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            writeVarInt(dos, TAG_CHAR);
+            dos.writeChar((Character) value);
+        } else if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            writeVarInt(dos, TAG_BYTES);
+            writeVarInt(dos, bytes.length);
+            dos.write(bytes);
+        } else if (value instanceof JSONObject) {
+            writeJSONObject(dos, (JSONObject) value, path);
+        } else if (value instanceof JSONArray) {
+            writeJSONArray(dos, (JSONArray) value, path);
+        } else if (value == JSONObject.NULL) {
+            writeVarInt(dos, TAG_JSON_NULL);
+        } else {
+            // exact classes only, so decoded collections are of the same class
+            final Class<?> valueClass = value.getClass();
+            if (valueClass == ArrayList.class)
+                writeCollection(dos, TAG_ARRAY_LIST, (Collection<?>) value, path);
+            else if (valueClass == LinkedList.class)
+                writeCollection(dos, TAG_LINKED_LIST, (Collection<?>) value, path);
+            else if (valueClass == HashSet.class)
+                writeCollection(dos, TAG_HASH_SET, (Collection<?>) value, path);
+            else if (valueClass == LinkedHashSet.class)
+                writeCollection(dos, TAG_LINKED_HASH_SET, (Collection<?>) value, path);
+            else if (valueClass == TreeSet.class && ((TreeSet<?>) value).comparator() == null)
+                writeCollection(dos, TAG_TREE_SET, (Collection<?>) value, path);
+            else if (valueClass == HashMap.class)
+                writeMap(dos, TAG_HASH_MAP, (Map<?, ?>) value, path);
+            else if (valueClass == LinkedHashMap.class)
+                writeMap(dos, TAG_LINKED_HASH_MAP, (Map<?, ?>) value, path);
+            else if (valueClass == TreeMap.class && ((TreeMap<?, ?>) value).comparator() == null)
+                writeMap(dos, TAG_TREE_MAP, (Map<?, ?>) value, path);
+            else
+                writeSerializable(dos, value);
+        }
+    }
+
+    private static void writeCollection(final DataOutputStream dos,
+                                        final int tag,
+                                        final Collection<?> collection,
+                                        final Set<Object> path) throws IOException {
+        enter(path, collection);
+        writeVarInt(dos, tag);
+        writeVarInt(dos, collection.size());
+        for (Object item : collection)
+            writeValue(dos, item, path);
+        path.remove(collection);
+    }
+
+    private static void writeMap(final DataOutputStream dos,
+                                 final int tag,
+                                 final Map<?, ?> map,
+                                 final Set<Object> path) throws IOException {
+        enter(path, map);
+        writeVarInt(dos, tag);
+        writeVarInt(dos, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeValue(dos, entry.getKey(), path);
+            writeValue(dos, entry.getValue(), path);
+        }
+        path.remove(map);
+    }
+
+    private static void writeJSONObject(final DataOutputStream dos, final JSONObject jsonObject, final Set<Object> path) throws IOException {
+        enter(path, jsonObject);
+        writeVarInt(dos, TAG_JSON_OBJECT);
+        writeVarInt(dos, jsonObject.length());
+        final Iterator<String> keys = jsonObject.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            writeString(dos, key);
+            writeValue(dos, jsonObject.opt(key), path);
+        }
+        path.remove(jsonObject);
+    }
+
+    private static void writeJSONArray(final DataOutputStream dos, final JSONArray jsonArray, final Set<Object> path) throws IOException {
+        enter(path, jsonArray);
+        writeVarInt(dos, TAG_JSON_ARRAY);
+        final int length = jsonArray.length();
+        writeVarInt(dos, length);
+        for (int i = 0; i < length; i++)
+            writeValue(dos, jsonArray.opt(i), path);
+        path.remove(jsonArray);
+    }
+
+    private static void writeSerializable(final DataOutputStream dos, final Object value) throws IOException {
+        final byte[] data = serialize(value);
+        writeVarInt(dos, TAG_SERIALIZABLE);
+        writeVarInt(dos, data.length);
+        dos.write(data);
+    }
+
+    private static byte[] serialize(final Object value) throws IOException {
+        if (value != null && !(value instanceof Serializable))
+            throw new NotSerializableException(value.getClass().getName());
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(value);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    private static void writeString(final DataOutputStream dos, final String string) throws IOException {
+        final byte[] bytes = string.getBytes("UTF-8");
+        writeVarInt(dos, bytes.length);
+        dos.write(bytes);
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarInt(final DataOutputStream dos, final int value) throws IOException {
+        writeVarLong(dos, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(final DataOutputStream dos, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            dos.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dos.writeByte((int) value);
+    }
+
+    //
+    // Reading
+    //
+
+    @SuppressWarnings("unchecked")
+    private static Object readValue(final DataInputStream dis) throws IOException {
+        final int tag = readVarInt(dis);
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_BYTE:
+                return dis.readByte();
+            case TAG_SHORT:
+                return dis.readShort();
+            case TAG_CHAR:
+                return dis.readChar();
+            case TAG_INT:
+                return (int) unZigZag(readVarLong(dis));
+            case TAG_LONG:
+                return unZigZag(readVarLong(dis));
+            case TAG_FLOAT:
+                return dis.readFloat();
+            case TAG_DOUBLE:
+                return dis.readDouble();
+            case TAG_STRING:
+                return readString(dis);
+            case TAG_BYTES:
+                final byte[] bytes = new byte[readVarInt(dis)];
+                dis.readFully(bytes);
+                return bytes;
+            case TAG_ARRAY_LIST:
+                return readCollection(dis, new ArrayList<Object>());
+            case TAG_LINKED_LIST:
+                return readCollection(dis, new LinkedList<Object>());
+            case TAG_HASH_SET:
+                return readCollection(dis, new HashSet<Object>());
+            case TAG_LINKED_HASH_SET:
+                return readCollection(dis, new LinkedHashSet<Object>());
+            case TAG_TREE_SET:
+                return readCollection(dis, new TreeSet<Object>());
+            case TAG_HASH_MAP:
+                return readMap(dis, new HashMap<Object, Object>());
+            case TAG_LINKED_HASH_MAP:
+                return readMap(dis, new LinkedHashMap<Object, Object>());
+            case TAG_TREE_MAP:
+                return readMap(dis, new TreeMap<Object, Object>());
+            case TAG_JSON_OBJECT:
+                return readJSONObject(dis);
+            case TAG_JSON_ARRAY:
+                return readJSONArray(dis);
+            case TAG_JSON_NULL:
+                return JSONObject.NULL;
+            case TAG_SERIALIZABLE:
+                final byte[] data = new byte[readVarInt(dis)];
+                dis.readFully(data);
+                return readSerializable(data);
+            default:
+                throw new IOException("Unknown tag: " + tag);
+        }
+    }
+
+    private static Collection<Object> readCollection(final DataInputStream dis, final Collection<Object> collection) throws IOException {
+        final int size = readVarInt(dis);
+        for (int i = 0; i < size; i++)
+            collection.add(readValue(dis));
+        return collection;
+    }
+
+    private static Map<Object, Object> readMap(final DataInputStream dis, final Map<Object, Object> map) throws IOException {
+        final int size = readVarInt(dis);
+        for (int i = 0; i < size; i++) {
+            final Object key = readValue(dis);
+            map.put(key, readValue(dis));
+        }
+        return map;
+    }
+
+    private static JSONObject readJSONObject(final DataInputStream dis) throws IOException {
+        final JSONObject jsonObject = new JSONObject();
+        final int length = readVarInt(dis);
+        try {
+            for (int i = 0; i < length; i++) {
+                final String key = readString(dis);
+                jsonObject.put(key, readValue(dis));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Could not restore JSONObject", e);
+        }
+        return jsonObject;
+    }
+
+    private static JSONArray readJSONArray(final DataInputStream dis) throws IOException {
+        final JSONArray jsonArray = new JSONArray();
+        final int length = readVarInt(dis);
+        for (int i = 0; i < length; i++)
+            jsonArray.put(readValue(dis));
+        return jsonArray;
+    }
+
+    private static Object readSerializable(final byte[] data) throws IOException {
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not restore object", e);
+        } finally {
+            ois.close();
+        }
+    }
+
+    private static String readString(final DataInputStream dis) throws IOException {
+        final byte[] bytes = new byte[readVarInt(dis)];
+        dis.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int readVarInt(final DataInputStream dis) throws IOException {
+        final long value = readVarLong(dis);
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new IOException("Malformed varint");
+        return (int) value;
+    }
+
+    private static long readVarLong(final DataInputStream dis) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = dis.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
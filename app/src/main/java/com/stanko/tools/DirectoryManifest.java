@@ -0,0 +1,424 @@
+package com.stanko.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Integrity manifest of a directory: keeps size, modification time and digest of every file
+ * (recursively) in a compact binary index file, so detecting changed files does not require
+ * rehashing all of them like Hash.checkMD5() does.
+ * <p>
+ * update() stats all files and rehashes (in parallel) only new ones and those whose size or
+ * modification time changed, then reports added, removed and changed files and saves the index.
+ * Files modified within TIMESTAMP_GRANULARITY of the scan are rehashed by the next update too,
+ * since a change made in the same second would not change their modification time.
+ */
+public class DirectoryManifest {
+
+    private static final String LOG_TAG = DirectoryManifest.class.getSimpleName();
+
+    public static final int DEFAULT_THREADS_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // file systems like FAT keep modification time with 2 seconds precision
+    public static final long TIMESTAMP_GRANULARITY = 2000;
+
+    private static final int INDEX_MAGIC = 0x444D4E46; // "DMNF"
+    private static final int INDEX_VERSION = 1;
+    // modification time stored for entries which must be rehashed by the next update
+    private static final long UNTRUSTED_TIME = -1;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final File mDirectory;
+    private final File mIndexFile;
+    private final String mAlgorithm;
+    // relative path -> entry, guarded by this
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private boolean mIsLoaded;
+
+    /**
+     * Indexed state of a single file
+     */
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final byte[] digest;
+
+        Entry(final long size, final long lastModified, final byte[] digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Result of update(): relative paths of files which were added, removed or changed since
+     * previous update. Since all fields are final and public no getters need.
+     */
+    public static class Changes {
+
+        public final List<String> added;
+        public final List<String> removed;
+        public final List<String> changed;
+        // files which could not be read and are left out of the index
+        public final List<String> failed;
+        public final int filesCount;
+        public final int hashedCount;
+
+        Changes(final List<String> added,
+                final List<String> removed,
+                final List<String> changed,
+                final List<String> failed,
+                final int filesCount,
+                final int hashedCount) {
+            this.added = Collections.unmodifiableList(added);
+            this.removed = Collections.unmodifiableList(removed);
+            this.changed = Collections.unmodifiableList(changed);
+            this.failed = Collections.unmodifiableList(failed);
+            this.filesCount = filesCount;
+            this.hashedCount = hashedCount;
+        }
+
+        public boolean hasChanges() {
+            return !added.isEmpty() || !removed.isEmpty() || !changed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "files: " + filesCount + " hashed: " + hashedCount + " added: " + added.size()
+                    + " removed: " + removed.size() + " changed: " + changed.size() + " failed: " + failed.size();
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(DEFAULT_THREADS_COUNT, DEFAULT_THREADS_COUNT, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Manifest of given directory using MD5 digests
+     *
+     * @param directory - directory to track
+     * @param indexFile - file to keep the index in, ignored if it is inside of the directory
+     */
+    public DirectoryManifest(final File directory, final File indexFile) {
+        this(directory, indexFile, Hash.MD5);
+    }
+
+    /**
+     * @param directory - directory to track
+     * @param indexFile - file to keep the index in, ignored if it is inside of the directory
+     * @param algorithm - Hash.MD5, Hash.SHA256 or any other MessageDigest algorithm
+     */
+    public DirectoryManifest(final File directory, final File indexFile, final String algorithm) {
+        if (directory == null || indexFile == null || algorithm == null)
+            throw new IllegalArgumentException("Directory, index file and algorithm must not be null");
+        mDirectory = directory;
+        mIndexFile = indexFile;
+        mAlgorithm = algorithm;
+    }
+
+    //
+    // Update
+    //
+
+    /**
+     * Brings the index up to date rehashing new files and files whose size or modification time
+     * changed, and saves it
+     *
+     * @return Changes since previous update, everything is added for the first update
+     */
+    public Changes update() {
+        return update(false);
+    }
+
+    /**
+     * Brings the index up to date and saves it
+     *
+     * @param isForced - rehash all files regardless of their size and modification time
+     * @return Changes since previous update
+     */
+    public synchronized Changes update(final boolean isForced) {
+        ensureLoaded();
+        final long scanTime = System.currentTimeMillis();
+
+        // stat-only pass
+        final HashMap<String, File> files = new HashMap<>();
+        collectFiles(mDirectory, "", files);
+        final ArrayList<String> removed = new ArrayList<>();
+        for (String path : mEntries.keySet())
+            if (!files.containsKey(path))
+                removed.add(path);
+        final ArrayList<String> toHash = new ArrayList<>();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            final Entry entry = mEntries.get(file.getKey());
+            if (isForced || entry == null || entry.lastModified == UNTRUSTED_TIME
+                    || entry.size != file.getValue().length() || entry.lastModified != file.getValue().lastModified())
+                toHash.add(file.getKey());
+        }
+
+        // rehash pass
+        final ArrayList<String> added = new ArrayList<>();
+        final ArrayList<String> changed = new ArrayList<>();
+        final ArrayList<String> failed = new ArrayList<>();
+        final List<Entry> hashedEntries = hash(files, toHash);
+        for (int i = 0; i < toHash.size(); i++) {
+            final String path = toHash.get(i);
+            final Entry hashedEntry = hashedEntries.get(i);
+            final Entry entry = mEntries.get(path);
+            if (hashedEntry == null) {
+                failed.add(path);
+                if (entry != null) {
+                    mEntries.remove(path);
+                    removed.add(path);
+                }
+                continue;
+            }
+            if (entry == null)
+                added.add(path);
+            else if (!Arrays.equals(entry.digest, hashedEntry.digest))
+                changed.add(path);
+            // modified just now, could be modified again within the same timestamp
+            final boolean isTrusted = scanTime - hashedEntry.lastModified >= TIMESTAMP_GRANULARITY;
+            mEntries.put(path, isTrusted ? hashedEntry : new Entry(hashedEntry.size, UNTRUSTED_TIME, hashedEntry.digest));
+        }
+        for (String path : removed)
+            mEntries.remove(path);
+
+        Collections.sort(added);
+        Collections.sort(removed);
+        Collections.sort(changed);
+        final Changes changes = new Changes(added, removed, changed, failed, files.size(), toHash.size());
+        if (changes.hasChanges() || !toHash.isEmpty() || !mIndexFile.exists())
+            save();
+        Log.i(LOG_TAG, mDirectory + " " + changes);
+        return changes;
+    }
+
+    private void collectFiles(final File directory, final String prefix, final Map<String, File> files) {
+        final File[] children = directory.listFiles();
+        if (children == null)
+            return;
+        for (File child : children) {
+            final String path = prefix + child.getName();
+            if (child.isDirectory())
+                collectFiles(child, path + "/", files);
+            else if (!isIndexFile(child))
+                files.put(path, child);
+        }
+    }
+
+    /**
+     * @return true if given file is the index or its temp file, when the index is kept inside
+     * of the directory
+     */
+    private boolean isIndexFile(final File file) {
+        final File absoluteFile = file.getAbsoluteFile();
+        return absoluteFile.equals(mIndexFile.getAbsoluteFile()) || absoluteFile.equals(getTempIndexFile().getAbsoluteFile());
+    }
+
+    private File getTempIndexFile() {
+        return new File(mIndexFile.getPath() + ".tmp");
+    }
+
+    /**
+     * Hashes given files in parallel
+     *
+     * @return entries in the same order as paths, null for files which could not be hashed
+     */
+    private List<Entry> hash(final Map<String, File> files, final List<String> paths) {
+        final ArrayList<Entry> entries = new ArrayList<>(paths.size());
+        if (paths.isEmpty())
+            return entries;
+        final ThreadPoolExecutor executor = getExecutor();
+        final ArrayDeque<Future<Entry>> futures = new ArrayDeque<>(paths.size());
+        for (String path : paths) {
+            final File file = files.get(path);
+            futures.add(executor.submit(new Callable<Entry>() {
+                @Override
+                public Entry call() {
+                    // stat before hashing, so a change made while hashing is noticed next time
+                    final long size = file.length();
+                    final long lastModified = file.lastModified();
+                    final byte[] digest = Hash.getDigest(file, mAlgorithm);
+                    return digest == null ? null : new Entry(size, lastModified, digest);
+                }
+            }));
+        }
+        boolean isInterrupted = false;
+        for (Future<Entry> future : futures) {
+            Entry entry = null;
+            while (true) {
+                try {
+                    entry = future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, e.getCause());
+                    break;
+                }
+            }
+            entries.add(entry);
+        }
+        if (isInterrupted)
+            Thread.currentThread().interrupt();
+        return entries;
+    }
+
+    //
+    // Queries
+    //
+
+    /**
+     * @param relativePath - path of a file relative to the directory like "images/1.png"
+     * @return hex digest of the file as of the last update or null if it is not indexed
+     */
+    public synchronized String getDigest(final String relativePath) {
+        ensureLoaded();
+        final Entry entry = mEntries.get(relativePath);
+        return entry == null ? null : Hash.toHex(entry.digest);
+    }
+
+    /**
+     * Checks indexed digest of given file against expected one (like one received from server)
+     *
+     * @param relativePath - path of a file relative to the directory
+     * @param hexDigest    - expected digest
+     * @return true if file is indexed and its digest matches
+     */
+    public boolean check(final String relativePath, final String hexDigest) {
+        final String digest = getDigest(relativePath);
+        return digest != null && digest.equalsIgnoreCase(hexDigest);
+    }
+
+    /**
+     * @return sorted relative paths of indexed files as of the last update
+     */
+    public synchronized List<String> getPaths() {
+        ensureLoaded();
+        final ArrayList<String> paths = new ArrayList<>(mEntries.keySet());
+        Collections.sort(paths);
+        return paths;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Forgets all indexed files and deletes the index, so the next update rehashes everything
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mIsLoaded = true;
+        if (mIndexFile.exists() && !mIndexFile.delete())
+            Log.w(LOG_TAG, "Could not delete " + mIndexFile);
+    }
+
+    //
+    // Index file
+    //
+
+    private void ensureLoaded() {
+        if (mIsLoaded)
+            return;
+        mIsLoaded = true;
+        if (!mIndexFile.exists())
+            return;
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile), 64 * 1024));
+            if (inputStream.readInt() != INDEX_MAGIC || inputStream.readInt() != INDEX_VERSION
+                    || !mAlgorithm.equals(inputStream.readUTF())) {
+                Log.w(LOG_TAG, "Index is of another version or algorithm, rebuilding: " + mIndexFile);
+                return;
+            }
+            final int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = inputStream.readUTF();
+                final long size = inputStream.readLong();
+                final long lastModified = inputStream.readLong();
+                final byte[] digest = new byte[inputStream.readUnsignedByte()];
+                inputStream.readFully(digest);
+                mEntries.put(path, new Entry(size, lastModified, digest));
+            }
+        } catch (IOException e) {
+            // damaged index means just a full rehash
+            Log.w(LOG_TAG, "Could not read index, rebuilding: " + e);
+            mEntries.clear();
+        } finally {
+            if (inputStream != null)
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+
+    /**
+     * Writes the index to a temp file and renames it, so the index is never left half written
+     */
+    private void save() {
+        if (!FileUtils.isWritable(mIndexFile, true))
+            return;
+        final File tempFile = getTempIndexFile();
+        FileOutputStream fileOutputStream = null;
+        boolean isSucceed = false;
+        try {
+            fileOutputStream = new FileOutputStream(tempFile);
+            final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
+            outputStream.writeInt(INDEX_MAGIC);
+            outputStream.writeInt(INDEX_VERSION);
+            outputStream.writeUTF(mAlgorithm);
+            outputStream.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                outputStream.writeUTF(entry.getKey());
+                outputStream.writeLong(entry.getValue().size);
+                outputStream.writeLong(entry.getValue().lastModified);
+                outputStream.writeByte(entry.getValue().digest.length);
+                outputStream.write(entry.getValue().digest);
+            }
+            outputStream.flush();
+            FileUtils.sync(fileOutputStream);
+            isSucceed = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            if (fileOutputStream != null)
+                try {
+                    fileOutputStream.close();
+                } catch (IOException e) {
+                    isSucceed = false;
+                }
+        }
+        if (isSucceed && !tempFile.renameTo(mIndexFile)) {
+            Log.e(LOG_TAG, "Could not replace " + mIndexFile);
+            isSucceed = false;
+        }
+        if (!isSucceed && tempFile.exists() && !tempFile.delete())
+            Log.w(LOG_TAG, "Could not delete " + tempFile);
+    }
+}
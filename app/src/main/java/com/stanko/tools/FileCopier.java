@@ -0,0 +1,264 @@
+package com.stanko.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * File copy engine used by FileUtils.copy() and FileUtils.copySynchronized().
+ * <p>
+ * Bytes are moved by FileChannel.transferTo() which lets the kernel copy them without passing
+ * through Java heap, in chunks so progress could be reported. If a channel refuses to transfer
+ * (some FUSE backed storages do) copying continues through a direct ByteBuffer.
+ * <p>
+ * Locked copies take striped locks of source and destination paths instead of a class-wide lock,
+ * so copies of unrelated files never wait for each other while a file is never written by two
+ * locked copies at once nor read by a locked copy while another one writes it.
+ */
+public class FileCopier {
+
+    private static final String LOG_TAG = FileCopier.class.getSimpleName();
+
+    // bytes transferred per transferTo() call, a progress callback is called after each of them
+    public static final int TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    // size of the direct buffer used when channel transfer is not possible
+    public static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final int LOCK_STRIPES_COUNT = 32;
+
+    private static final ReentrantLock[] sLocks = new ReentrantLock[LOCK_STRIPES_COUNT];
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES_COUNT; i++)
+            sLocks[i] = new ReentrantLock();
+    }
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private static final AtomicLong sCopiedFilesCount = new AtomicLong();
+    private static final AtomicLong sCopiedBytesCount = new AtomicLong();
+    private static final AtomicLong sCopyTimeNanos = new AtomicLong();
+    private static final AtomicLong sFallbacksCount = new AtomicLong();
+
+    /**
+     * What to flush to storage before destination file is closed
+     */
+    public enum SyncPolicy {
+        // rely on the OS, fastest
+        NONE,
+        // file content only, FileChannel.force(false)
+        DATA,
+        // file content and metadata, FileChannel.force(true), the same as FileDescriptor.sync()
+        ALL
+    }
+
+    /**
+     * Interface to track copying progress, its method is called on copying thread
+     */
+    public interface ICopyProgressListener {
+        void onCopyProgress(File src, File dst, long copiedBytes, long totalBytes);
+    }
+
+    //
+    // Copying
+    //
+
+    /**
+     * Copies an existing file to another destination overwriting it
+     *
+     * @param src        - File to copy from
+     * @param dst        - File to copy to, its dirs are created if needed
+     * @param syncPolicy - what to flush to storage before closing, ALL if null
+     * @param listener   - progress listener, could be null
+     * @return count of copied bytes
+     * @throws IOException if source is not readable, destination is not writable or copying failed
+     */
+    public static long copy(final File src,
+                            final File dst,
+                            final SyncPolicy syncPolicy,
+                            final ICopyProgressListener listener) throws IOException {
+        if (src == null || !src.exists() || !src.canRead())
+            throw new IOException("IOException (copy file): source file does not exists or not readable");
+        if (dst == null || !FileUtils.isWritable(dst, true))
+            throw new IOException("IOException (copy file): destination file not writable");
+        if (src.getCanonicalPath().equals(dst.getCanonicalPath()))
+            throw new IOException("IOException (copy file): source and destination are the same file");
+
+        final long startTime = System.nanoTime();
+        FileInputStream fis = null;
+        FileOutputStream fos = null;
+        long copiedBytes = 0;
+        try {
+            fis = new FileInputStream(src);
+            fos = new FileOutputStream(dst);
+            final FileChannel inChannel = fis.getChannel();
+            final FileChannel outChannel = fos.getChannel();
+            copiedBytes = transfer(src, dst, inChannel, outChannel, listener);
+            if (syncPolicy != SyncPolicy.NONE)
+                outChannel.force(syncPolicy != SyncPolicy.DATA);
+        } finally {
+            if (fis != null)
+                try {
+                    fis.close();
+                } catch (IOException ignored) {
+                }
+            if (fos != null)
+                try {
+                    fos.close();
+                } catch (IOException ignored) {
+                }
+        }
+
+        sCopiedFilesCount.incrementAndGet();
+        sCopiedBytesCount.addAndGet(copiedBytes);
+        sCopyTimeNanos.addAndGet(System.nanoTime() - startTime);
+        return copiedBytes;
+    }
+
+    /**
+     * Copies an existing file to another destination overwriting it while holding locks of both
+     * paths, so concurrent locked copies of the same files are serialized
+     *
+     * @param src        - File to copy from
+     * @param dst        - File to copy to, its dirs are created if needed
+     * @param syncPolicy - what to flush to storage before closing, ALL if null
+     * @param listener   - progress listener, could be null
+     * @return count of copied bytes
+     * @throws IOException if source is not readable, destination is not writable or copying failed
+     */
+    public static long copyLocked(final File src,
+                                  final File dst,
+                                  final SyncPolicy syncPolicy,
+                                  final ICopyProgressListener listener) throws IOException {
+        if (src == null || dst == null)
+            throw new IOException("IOException (copy file): source file does not exists or not readable");
+        // always lock the lower stripe first so crossing copies (a -> b, b -> a) could not deadlock
+        final int srcStripe = getStripe(src);
+        final int dstStripe = getStripe(dst);
+        final ReentrantLock firstLock = sLocks[Math.min(srcStripe, dstStripe)];
+        final ReentrantLock secondLock = sLocks[Math.max(srcStripe, dstStripe)];
+        firstLock.lock();
+        try {
+            secondLock.lock();
+            try {
+                return copy(src, dst, syncPolicy, listener);
+            } finally {
+                secondLock.unlock();
+            }
+        } finally {
+            firstLock.unlock();
+        }
+    }
+
+    private static int getStripe(final File file) {
+        int hash = file.getAbsolutePath().hashCode();
+        // spread higher bits like HashMap does
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return hash & (LOCK_STRIPES_COUNT - 1);
+    }
+
+    /**
+     * Moves file content from one channel to another starting at their current positions
+     *
+     * @return count of transferred bytes
+     */
+    private static long transfer(final File src,
+                                 final File dst,
+                                 final FileChannel inChannel,
+                                 final FileChannel outChannel,
+                                 final ICopyProgressListener listener) throws IOException {
+        final long size = inChannel.size();
+        long position = 0;
+        while (position < size) {
+            final long transferred = inChannel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), outChannel);
+            if (transferred <= 0)
+                break;
+            position += transferred;
+            if (listener != null)
+                listener.onCopyProgress(src, dst, position, size);
+        }
+        if (position >= size)
+            return position;
+
+        // channel gave up, continue through a direct buffer
+        Log.w(LOG_TAG, "transferTo() stopped at " + position + " of " + size + ", copying via buffer: " + src);
+        sFallbacksCount.incrementAndGet();
+        final ByteBuffer buffer = sBuffer.get();
+        inChannel.position(position);
+        outChannel.position(position);
+        long reportedPosition = position;
+        while (true) {
+            buffer.clear();
+            final int read = inChannel.read(buffer);
+            if (read < 0)
+                break;
+            buffer.flip();
+            while (buffer.hasRemaining())
+                outChannel.write(buffer);
+            position += read;
+            if (listener != null && (position - reportedPosition >= TRANSFER_CHUNK_SIZE || position >= size)) {
+                reportedPosition = position;
+                listener.onCopyProgress(src, dst, position, Math.max(size, position));
+            }
+        }
+        return position;
+    }
+
+    //
+    // Statistics
+    //
+
+    public static long getCopiedFilesCount() {
+        return sCopiedFilesCount.get();
+    }
+
+    public static long getCopiedBytesCount() {
+        return sCopiedBytesCount.get();
+    }
+
+    /**
+     * @return total time spent by succeed copies in milliseconds
+     */
+    public static long getCopyTime() {
+        return sCopyTimeNanos.get() / 1000000L;
+    }
+
+    /**
+     * @return average throughput of succeed copies in bytes per second
+     */
+    public static long getThroughput() {
+        final long nanos = sCopyTimeNanos.get();
+        return nanos == 0 ? 0 : (long) (sCopiedBytesCount.get() * 1000000000d / nanos);
+    }
+
+    /**
+     * @return count of copies which could not be done by channel transfer completely
+     */
+    public static long getFallbacksCount() {
+        return sFallbacksCount.get();
+    }
+
+    public static void resetStats() {
+        sCopiedFilesCount.set(0);
+        sCopiedBytesCount.set(0);
+        sCopyTimeNanos.set(0);
+        sFallbacksCount.set(0);
+    }
+
+    public static String getStats() {
+        return "files: " + getCopiedFilesCount() + " bytes: " + getCopiedBytesCount()
+                + " time: " + getCopyTime() + "ms throughput: " + getThroughput() / 1024 + "Kb/s"
+                + " fallbacks: " + getFallbacksCount();
+    }
+}
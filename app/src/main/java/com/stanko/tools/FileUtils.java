@@ -12,8 +12,6 @@ import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Base64;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -50,123 +48,55 @@ public class FileUtils {
      * @throws IOException
      */
     public static void copy(final File src, final File dst) throws IOException {
-        if (src == null || !src.exists() || !src.canRead())
-            throw new IOException("IOException (copy file): source file does not exists or not readable");
-
-//		if ( !makeDirsForFile(dst) )
-//			throw new IOException("IOException (copy file): cant create dirs for destination file");
-
-        if (!isWritable(dst, true))
-            throw new IOException("IOException (copy file): destination file not writable");
-
         Log.w("FileUtils", "copying: src: " + src + " to dst: " + dst);
+        FileCopier.copy(src, dst, FileCopier.SyncPolicy.ALL, null);
+    }
 
-        final FileInputStream fis = new FileInputStream(src);
-        final FileOutputStream fos = new FileOutputStream(dst);
-        final InputStream in = new BufferedInputStream(fis);
-        final BufferedOutputStream out = new BufferedOutputStream(fos);
-
-        // Transfer bytes from in to out
-        final byte[] buf = new byte[1024];
-        int len;
-        IOException e = null;
-
-        try {
-            while ((len = in.read(buf)) > 0)
-                out.write(buf, 0, len);
-        } catch (IOException e1) {
-            e = e1;
-        }
-
-        // close InputStream in
-        try {
-            in.close();
-        } catch (IOException ignored) {
-        }
-        // close FileInputStream fis
-        try {
-            fis.close();
-        } catch (IOException ignored) {
-        }
-        // close BufferedOutputStream out
-        try {
-            out.flush();
-            out.close();
-        } catch (IOException ignored) {
-        }
-        // close FileOutputStream fos
-        try {
-            fos.flush();
-            fos.close();
-        } catch (IOException ignored) {
-        }
-
-        sync(fos);
-
-        if (e != null)
-            throw e;
-
+    /**
+     * Copies an existing file to another destination
+     *
+     * @param src        - File to copy from
+     * @param dst        - File to copy to
+     * @param syncPolicy - what to flush to storage before closing destination file
+     * @param listener   - progress listener, called on current thread, could be null
+     * @return count of copied bytes
+     * @throws IOException
+     */
+    public static long copy(final File src,
+                            final File dst,
+                            final FileCopier.SyncPolicy syncPolicy,
+                            final FileCopier.ICopyProgressListener listener) throws IOException {
+        return FileCopier.copy(src, dst, syncPolicy, listener);
     }
 
     /**
-     * Copies a file to another destination
+     * Copies a file to another destination. Copies of the same source or destination paths are
+     * serialized, copies of unrelated files run in parallel.
      *
      * @param src - File to copy from
      * @param dst - File to copy to
      * @throws IOException
      */
-    public static synchronized void copySynchronized(final File src, final File dst) throws IOException {
-        if (src == null || !src.exists() || !src.canRead())
-            throw new IOException("IOException (copy file): source file does not exists or not readable");
-
-//		if (!makeDirsForFile(dst) )
-//			throw new IOException("IOException (copy file): cant create dirs for destination file");
-
-        if (!isWritable(dst, true) /*dst==null || dst.exists() && !dst.canWrite()*/)
-            throw new IOException("IOException (copy file): destination file not writable");
-
-        final FileInputStream fis = new FileInputStream(src);
-        final FileOutputStream fos = new FileOutputStream(dst);
-        final InputStream in = new BufferedInputStream(fis);
-        final BufferedOutputStream out = new BufferedOutputStream(fos);
-
-        // Transfer bytes from in to out
-        final byte[] buf = new byte[1024];
-        int len;
-        IOException e = null;
-        try {
-            while ((len = in.read(buf)) > 0)
-                out.write(buf, 0, len);
-        } catch (IOException e1) {
-            e = e1;
-        }
-        // close InputStream in
-        try {
-            in.close();
-        } catch (IOException ignored) {
-        }
-        // close FileInputStream fis
-        try {
-            fis.close();
-        } catch (IOException ignored) {
-        }
-        // close BufferedOutputStream out
-        try {
-            out.flush();
-            out.close();
-        } catch (IOException ignored) {
-        }
-        // close FileOutputStream fos
-        try {
-            fos.flush();
-            fos.close();
-        } catch (IOException ignored) {
-        }
-
-        sync(fos);
+    public static void copySynchronized(final File src, final File dst) throws IOException {
+        FileCopier.copyLocked(src, dst, FileCopier.SyncPolicy.ALL, null);
+    }
 
-        if (e != null)
-            throw e;
+    /**
+     * Copies a file to another destination. Copies of the same source or destination paths are
+     * serialized, copies of unrelated files run in parallel.
+     *
+     * @param src        - File to copy from
+     * @param dst        - File to copy to
+     * @param syncPolicy - what to flush to storage before closing destination file
+     * @param listener   - progress listener, called on current thread, could be null
+     * @return count of copied bytes
+     * @throws IOException
+     */
+    public static long copySynchronized(final File src,
+                                        final File dst,
+                                        final FileCopier.SyncPolicy syncPolicy,
+                                        final FileCopier.ICopyProgressListener listener) throws IOException {
+        return FileCopier.copyLocked(src, dst, syncPolicy, listener);
     }
 
     /**
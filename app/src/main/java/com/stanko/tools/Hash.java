@@ -10,41 +10,382 @@ import android.util.Base64;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * class is used to retrieve MD5 and SHA hashes.
+ * class is used to retrieve MD5, SHA and SHA-256 hashes and fast non-cryptographic hashes.
+ * Thread safe: every thread uses its own MessageDigest instances and buffers.
+ * Files are read through FileChannel into a direct buffer, getChunkedHash() hashes parts of a
+ * file in parallel.
  *
  * @author Stan Koshutsky
  */
 
 public class Hash {
 
-    private final static MessageDigest sMD5digest;
-    private final static MessageDigest sSHAdigest;
+    public static final String MD5 = "MD5";
+    public static final String SHA = "SHA";
+    public static final String SHA256 = "SHA-256";
 
-    static {
-        MessageDigest digest = null;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int FILE_BUFFER_SIZE = 256 * 1024;
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final static ThreadLocal<MessageDigest> sMD5digest = newDigest(MD5);
+    private final static ThreadLocal<MessageDigest> sSHAdigest = newDigest(SHA);
+    private final static ThreadLocal<MessageDigest> sSHA256digest = newDigest(SHA256);
+
+    private final static ThreadLocal<byte[]> sStreamBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[STREAM_BUFFER_SIZE];
+        }
+    };
+
+    private final static ThreadLocal<ByteBuffer> sFileBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+        }
+    };
+
+    // hex chars of the longest supported digest (SHA-256)
+    private final static ThreadLocal<char[]> sHexChars = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[64];
+        }
+    };
+
+    private static ThreadPoolExecutor sChunksExecutor;
+
+    private static ThreadLocal<MessageDigest> newDigest(final String algorithm) {
+        return new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return reset digest of current thread or null if algorithm is not supported
+     */
+    private static MessageDigest getDigest(final ThreadLocal<MessageDigest> threadDigest) {
+        final MessageDigest digest = threadDigest.get();
+        if (digest == null)
+            new NoSuchAlgorithmException().printStackTrace();
+        else
+            digest.reset();
+        return digest;
+    }
+
+    //
+    // Digests
+    //
+
+    private static byte[] digest(final ThreadLocal<MessageDigest> threadDigest, final byte[] bytes) {
+        final MessageDigest digest = getDigest(threadDigest);
+        if (digest == null)
+            return null;
+        digest.update(bytes);
+        return digest.digest();
+    }
+
+    private static byte[] digest(final ThreadLocal<MessageDigest> threadDigest, final InputStream inputStream) {
+        final MessageDigest digest = getDigest(threadDigest);
+        if (digest == null)
+            return null;
+        final byte[] buffer = sStreamBuffer.get();
+        int read;
         try {
-            digest = MessageDigest.getInstance("MD5");
+            while ((read = inputStream.read(buffer)) > 0)
+                digest.update(buffer, 0, read);
+            return digest.digest();
+        } catch (IOException e) {
+            Log.e("Exception on reading input stream", e);
+        }
+        return null;
+    }
+
+    /**
+     * Digests file content read through FileChannel into a direct buffer
+     */
+    private static byte[] digest(final ThreadLocal<MessageDigest> threadDigest, final File file) {
+        if (!FileUtils.isReadable(file))
+            return null;
+        final MessageDigest digest = getDigest(threadDigest);
+        if (digest == null)
+            return null;
+        return digest(digest, file);
+    }
+
+    private static byte[] digest(final MessageDigest digest, final File file) {
+        FileInputStream fileInputStream = null;
+        try {
+            fileInputStream = new FileInputStream(file);
+            digestRead(digest, fileInputStream.getChannel());
+            return digest.digest();
+        } catch (IOException e) {
+            Log.e("Exception on reading file " + file, e);
+        } finally {
+            if (fileInputStream != null)
+                try {
+                    fileInputStream.close();
+                } catch (IOException e) {
+                    Log.e("Exception on closing input stream", e);
+                }
+        }
+        return null;
+    }
+
+    private static void digestRead(final MessageDigest digest, final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = sFileBuffer.get();
+        while (true) {
+            buffer.clear();
+            if (channel.read(buffer) < 0)
+                break;
+            buffer.flip();
+            digest.update(buffer);
+        }
+    }
+
+    /**
+     * Calculates raw digest of a given File
+     *
+     * @param file
+     * @param algorithm - MD5, SHA, SHA256 or any other MessageDigest algorithm
+     * @return digest bytes or null if file is not readable or algorithm is not supported
+     */
+    public static byte[] getDigest(final File file, final String algorithm) {
+        if (MD5.equals(algorithm))
+            return digest(sMD5digest, file);
+        if (SHA.equals(algorithm))
+            return digest(sSHAdigest, file);
+        if (SHA256.equals(algorithm))
+            return digest(sSHA256digest, file);
+        if (!FileUtils.isReadable(file) || TextUtils.isEmpty(algorithm))
+            return null;
+        try {
+            return digest(MessageDigest.getInstance(algorithm), file);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
-        sMD5digest = digest;
-        digest = null;
+        return null;
+    }
+
+    //
+    // Chunked (tree) hash
+    //
+
+    /**
+     * Calculates chunked hash of a given file: the file is split into chunks of given size which
+     * are hashed in parallel, the result is the hash of concatenated chunk hashes. It is not
+     * the same as hash of the whole file and depends on chunk size, so integrity manifests must
+     * keep the chunk size together with the hash. Empty file has the hash of no chunk hashes.
+     *
+     * @param file      - file to hash
+     * @param algorithm - MD5, SHA, SHA256 or any other MessageDigest algorithm
+     * @param chunkSize - size of a chunk in bytes, DEFAULT_CHUNK_SIZE for example
+     * @return hex String or null if file is not readable or algorithm is not supported
+     */
+    public static String getChunkedHash(final File file, final String algorithm, final int chunkSize) {
+        if (!FileUtils.isReadable(file) || TextUtils.isEmpty(algorithm) || chunkSize <= 0)
+            return null;
+        final MessageDigest rootDigest;
         try {
-            digest = MessageDigest.getInstance("SHA");
+            rootDigest = MessageDigest.getInstance(algorithm);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
+            return null;
         }
-        sSHAdigest = digest;
+
+        FileInputStream fileInputStream = null;
+        try {
+            fileInputStream = new FileInputStream(file);
+            final FileChannel channel = fileInputStream.getChannel();
+            final long size = channel.size();
+            final int chunksCount = (int) ((size + chunkSize - 1) / chunkSize);
+            final ThreadPoolExecutor executor = getChunksExecutor();
+            final ArrayList<Future<byte[]>> futures = new ArrayList<>(chunksCount);
+            for (int i = 0; i < chunksCount; i++) {
+                final long offset = (long) i * chunkSize;
+                final long length = Math.min(chunkSize, size - offset);
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        final MessageDigest digest = MessageDigest.getInstance(algorithm);
+                        digestChunkRead(digest, channel, offset, length);
+                        return digest.digest();
+                    }
+                }));
+            }
+
+            boolean isInterrupted = false;
+            try {
+                for (Future<byte[]> future : futures) {
+                    while (true) {
+                        try {
+                            rootDigest.update(future.get());
+                            break;
+                        } catch (InterruptedException e) {
+                            isInterrupted = true;
+                        }
+                    }
+                }
+            } catch (ExecutionException e) {
+                for (Future<byte[]> future : futures)
+                    future.cancel(false);
+                Log.e("Exception on hashing file " + file, e.getCause());
+                return null;
+            } finally {
+                if (isInterrupted)
+                    Thread.currentThread().interrupt();
+            }
+            return toHex(rootDigest.digest());
+        } catch (IOException e) {
+            Log.e("Exception on reading file " + file, e);
+        } finally {
+            if (fileInputStream != null)
+                try {
+                    fileInputStream.close();
+                } catch (IOException e) {
+                    Log.e("Exception on closing input stream", e);
+                }
+        }
+        return null;
+    }
+
+    /**
+     * Calculates chunked SHA-256 hash of a given file with DEFAULT_CHUNK_SIZE chunks,
+     * see getChunkedHash()
+     *
+     * @param file
+     * @return 64 chars hex String
+     */
+    public static String getChunkedSHA256(final File file) {
+        return getChunkedHash(file, SHA256, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Checks if given chunked hash is the same for given file, see getChunkedHash()
+     *
+     * @param hash
+     * @param file
+     * @param algorithm
+     * @param chunkSize
+     * @return true if chunked hash of given file is the same to given hash or false otherwise
+     */
+    public static boolean checkChunkedHash(final String hash, final File file, final String algorithm, final int chunkSize) {
+        if (TextUtils.isEmpty(hash))
+            return false;
+        final String fileHash = getChunkedHash(file, algorithm, chunkSize);
+        return fileHash != null && fileHash.equalsIgnoreCase(hash);
+    }
+
+    /**
+     * Reads a part of the file with positional reads which do not move channel position,
+     * so it is safe to be done concurrently
+     */
+    private static void digestChunkRead(final MessageDigest digest,
+                                        final FileChannel channel,
+                                        final long offset,
+                                        final long length) throws IOException {
+        final ByteBuffer buffer = sFileBuffer.get();
+        long position = offset;
+        final long end = offset + length;
+        while (position < end) {
+            buffer.clear();
+            if (buffer.remaining() > end - position)
+                buffer.limit((int) (end - position));
+            final int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("File is shorter than expected");
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getChunksExecutor() {
+        if (sChunksExecutor == null) {
+            final int threadsCount = Runtime.getRuntime().availableProcessors();
+            sChunksExecutor = new ThreadPoolExecutor(threadsCount, threadsCount, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory());
+            sChunksExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sChunksExecutor;
+    }
+
+    //
+    // Hex
+    //
+
+    /**
+     * Converts given bytes to lowercase hex string
+     *
+     * @param bytes
+     * @return hex String, 2 chars per byte
+     */
+    public static String toHex(final byte[] bytes) {
+        if (bytes == null)
+            return null;
+        final int length = bytes.length * 2;
+        char[] chars = sHexChars.get();
+        if (chars.length < length) {
+            chars = new char[length];
+            sHexChars.set(chars);
+        }
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            final int b = bytes[i] & 0xFF;
+            chars[j++] = HEX_DIGITS[b >>> 4];
+            chars[j++] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(chars, 0, length);
     }
 
+    /**
+     * Converts given value to 16 chars lowercase hex string
+     *
+     * @param value
+     * @return hex String
+     */
+    public static String toHex(final long value) {
+        final char[] chars = sHexChars.get();
+        for (int i = 15; i >= 0; i--)
+            chars[15 - i] = HEX_DIGITS[(int) (value >>> (i * 4)) & 0x0F];
+        return new String(chars, 0, 16);
+    }
+
+    private static String toBase64(final byte[] bytes) {
+        return bytes == null ? null : Base64.encodeToString(bytes, Base64.DEFAULT);
+    }
+
+    //
+    // MD5
+    //
+
     /**
      * Calculates MD5 hash of a given byte array.
      *
@@ -54,21 +395,7 @@ public class Hash {
     public static String getMD5(final byte[] bytes) {
         if (bytes == null)
             return null;
-
-        if (sMD5digest == null) {
-            new NoSuchAlgorithmException().printStackTrace();
-            return null;
-        } else {
-            sMD5digest.reset();
-        }
-
-        // calc MD5 Hash
-        sMD5digest.update(bytes);
-        final byte[] md5sum = sMD5digest.digest();
-        final BigInteger bigInt = new BigInteger(1, md5sum);
-        final String hash = bigInt.toString(16);
-        // Fill to 32 chars
-        return String.format("%32s", hash).replace(' ', '0');
+        return toHex(digest(sMD5digest, bytes));
     }
 
     /**
@@ -112,27 +439,7 @@ public class Hash {
      * @return
      */
     public static String getMD5(final File file) {
-        if (!FileUtils.isReadable(file))
-            return null;
-
-        InputStream inputStream;
-        try {
-            inputStream = new FileInputStream(file);
-        } catch (FileNotFoundException e) {
-            Log.e("Exception while getting FileInputStream", e);
-            return null;
-        }
-
-        final String hash = getMD5(inputStream);
-
-        try {
-            inputStream.close();
-        } catch (IOException e) {
-            Log.e("Exception on closing input stream", e);
-        }
-
-        return hash;
-
+        return toHex(digest(sMD5digest, file));
     }
 
     /**
@@ -149,29 +456,7 @@ public class Hash {
     public static String getMD5(final InputStream inputStream) {
         if (inputStream == null)
             return null;
-
-        if (sMD5digest == null) {
-            new NoSuchAlgorithmException().printStackTrace();
-            return null;
-        } else {
-            sMD5digest.reset();
-        }
-
-        final byte[] buffer = new byte[8192];
-        int read;
-        String hash = null;
-        try {
-            while ((read = inputStream.read(buffer)) > 0)
-                sMD5digest.update(buffer, 0, read);
-            final byte[] md5sum = sMD5digest.digest();
-            final BigInteger bigInt = new BigInteger(1, md5sum);
-            hash = bigInt.toString(16);
-            // Fill to 32 chars
-            hash = String.format("%32s", hash).replace(' ', '0');
-        } catch (IOException e) {
-            Log.e("Exception on closing MD5 input stream", e);
-        }
-        return hash;
+        return toHex(digest(sMD5digest, inputStream));
     }
 
     /**
@@ -206,16 +491,7 @@ public class Hash {
     public static String getSHA(final byte[] bytes) {
         if (bytes == null)
             return null;
-
-        if (sSHAdigest == null) {
-            new NoSuchAlgorithmException().printStackTrace();
-            return null;
-        } else {
-            sSHAdigest.reset();
-        }
-        // Create SHA Hash
-        sSHAdigest.update(bytes);
-        return Base64.encodeToString(sSHAdigest.digest(), Base64.DEFAULT);
+        return toBase64(digest(sSHAdigest, bytes));
     }
 
     /**
@@ -259,26 +535,7 @@ public class Hash {
      * @return
      */
     public static String getSHA(final File file) {
-        if (!FileUtils.isReadable(file))
-            return null;
-
-        InputStream inputStream;
-        try {
-            inputStream = new FileInputStream(file);
-        } catch (FileNotFoundException e) {
-            Log.e("Exception while getting FileInputStream", e);
-            return null;
-        }
-
-        final String hash = getSHA(inputStream);
-
-        try {
-            inputStream.close();
-        } catch (IOException e) {
-            Log.e("Exception on closing input stream", e);
-        }
-
-        return hash;
+        return toBase64(digest(sSHAdigest, file));
     }
 
     /**
@@ -295,25 +552,7 @@ public class Hash {
     public static String getSHA(final InputStream inputStream) {
         if (inputStream == null)
             return null;
-
-        if (sSHAdigest == null) {
-            new NoSuchAlgorithmException().printStackTrace();
-            return null;
-        } else {
-            sSHAdigest.reset();
-        }
-
-        final byte[] buffer = new byte[8192];
-        int read;
-        String hash = null;
-        try {
-            while ((read = inputStream.read(buffer)) > 0)
-                sSHAdigest.update(buffer, 0, read);
-            hash = Base64.encodeToString(sSHAdigest.digest(), Base64.DEFAULT);
-        } catch (IOException e) {
-            Log.e("Exception on closing MD5 input stream", e);
-        }
-        return hash;
+        return toBase64(digest(sSHAdigest, inputStream));
     }
 
     /**
@@ -339,6 +578,183 @@ public class Hash {
         return hash;
     }
 
+    //
+    // SHA-256
+    //
+
+    /**
+     * Calculates SHA-256 hash of a given byte array.
+     *
+     * @param bytes
+     * @return 64 chars hex String
+     */
+    public static String getSHA256(final byte[] bytes) {
+        if (bytes == null)
+            return null;
+        return toHex(digest(sSHA256digest, bytes));
+    }
+
+    /**
+     * Calculates SHA-256 hash of a given String UTF-8 bytes.
+     *
+     * @param s
+     * @return 64 chars hex String
+     */
+    public static String getSHA256(final String s) {
+        if (s == null)
+            return null;
+        try {
+            return getSHA256(s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            return getSHA256(s.getBytes());
+        }
+    }
+
+    /**
+     * Calculates SHA-256 hash of a given File
+     *
+     * @param file
+     * @return 64 chars hex String
+     */
+    public static String getSHA256(final File file) {
+        return toHex(digest(sSHA256digest, file));
+    }
+
+    /**
+     * Calculates SHA-256 hash for a given stream from its current position to the end.
+     * Given stream will not be closed after calculations.
+     *
+     * @param inputStream
+     * @return 64 chars hex String
+     */
+    public static String getSHA256(final InputStream inputStream) {
+        if (inputStream == null)
+            return null;
+        return toHex(digest(sSHA256digest, inputStream));
+    }
+
+    /**
+     * Checks if given SHA-256 hex hash is the same for given file
+     *
+     * @param sha256Hash
+     * @param file
+     * @return true if SHA-256 hash of given file is the same to given hash or false otherwise
+     */
+    public static boolean checkSHA256(final String sha256Hash, final File file) {
+        if (TextUtils.isEmpty(sha256Hash))
+            return false;
+        final String hash = getSHA256(file);
+        return hash != null && hash.equalsIgnoreCase(sha256Hash);
+    }
+
+    //
+    // Fast non-cryptographic hash
+    //
+
+    // MurmurHash3 x64 constants
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * Calculates fast 64 bit non-cryptographic hash (MurmurHash3 based) of given bytes. Good for
+     * hash tables and cache keys of trusted data, must not be used for security.
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return 64 bit hash
+     */
+    public static long getFastHash(final byte[] bytes, final int offset, final int length) {
+        long hash = length * C1;
+        final int end = offset + length;
+        final int blocksEnd = offset + (length & ~7);
+        int i = offset;
+        for (; i < blocksEnd; i += 8) {
+            final long block = (bytes[i] & 0xFFL)
+                    | (bytes[i + 1] & 0xFFL) << 8
+                    | (bytes[i + 2] & 0xFFL) << 16
+                    | (bytes[i + 3] & 0xFFL) << 24
+                    | (bytes[i + 4] & 0xFFL) << 32
+                    | (bytes[i + 5] & 0xFFL) << 40
+                    | (bytes[i + 6] & 0xFFL) << 48
+                    | (bytes[i + 7] & 0xFFL) << 56;
+            hash = mixBlock(hash, block);
+        }
+        if (i < end) {
+            long block = 0;
+            for (int shift = 0; i < end; i++, shift += 8)
+                block |= (bytes[i] & 0xFFL) << shift;
+            hash ^= mixKey(block);
+        }
+        return finalizeHash(hash);
+    }
+
+    public static long getFastHash(final byte[] bytes) {
+        return bytes == null ? 0 : getFastHash(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Calculates fast 64 bit non-cryptographic hash of given String chars (without encoding them
+     * to bytes, so it differs from the hash of String bytes)
+     *
+     * @param s
+     * @return 64 bit hash
+     */
+    public static long getFastHash(final String s) {
+        if (s == null)
+            return 0;
+        final int length = s.length();
+        long hash = length * C2;
+        final int blocksEnd = length & ~3;
+        int i = 0;
+        for (; i < blocksEnd; i += 4) {
+            final long block = s.charAt(i)
+                    | (long) s.charAt(i + 1) << 16
+                    | (long) s.charAt(i + 2) << 32
+                    | (long) s.charAt(i + 3) << 48;
+            hash = mixBlock(hash, block);
+        }
+        if (i < length) {
+            long block = 0;
+            for (int shift = 0; i < length; i++, shift += 16)
+                block |= (long) s.charAt(i) << shift;
+            hash ^= mixKey(block);
+        }
+        return finalizeHash(hash);
+    }
+
+    /**
+     * Returns 16 chars hex cache key of given String, much cheaper than MD5. Keys are not
+     * compatible with getMD5() ones, so must not be used for already existing caches.
+     *
+     * @param s
+     * @return hex String or null if given String is null
+     */
+    public static String getCacheKey(final String s) {
+        return s == null ? null : toHex(getFastHash(s));
+    }
+
+    private static long mixKey(long key) {
+        key *= C1;
+        key = Long.rotateLeft(key, 31);
+        return key * C2;
+    }
+
+    private static long mixBlock(long hash, final long block) {
+        hash ^= mixKey(block);
+        hash = Long.rotateLeft(hash, 27);
+        return hash * 5 + 0x52dce729;
+    }
+
+    private static long finalizeHash(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
     /**
      * Returns application SHA hash - the cert fingerprint used to sign the app
      *
@@ -349,18 +765,15 @@ public class Hash {
     public static String getAppKeyHash(final Context context, final String packageName) {
         if (context==null || TextUtils.isEmpty(packageName))
             return null;
-        if (sSHAdigest == null) {
-            new NoSuchAlgorithmException().printStackTrace();
+        final MessageDigest shaDigest = getDigest(sSHAdigest);
+        if (shaDigest == null)
             return null;
-        } else {
-            sSHAdigest.reset();
-        }
         String keyHash = null;
         try {
             final PackageInfo packageInfo = context.getPackageManager().getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
             for (Signature signature : packageInfo.signatures) {
-                sSHAdigest.update(signature.toByteArray());
-                keyHash = Base64.encodeToString(sSHAdigest.digest(), Base64.DEFAULT);
+                shaDigest.update(signature.toByteArray());
+                keyHash = Base64.encodeToString(shaDigest.digest(), Base64.DEFAULT);
                 Log.i("Application key SHA hash: " + keyHash);
             }
         } catch (NameNotFoundException e) {
@@ -11,12 +11,11 @@ import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -31,6 +30,15 @@ import android.util.Base64;
 import android.view.View;
 import android.widget.ImageView;
 
+import com.stanko.image.BitmapPixels;
+import com.stanko.image.BitmapPool;
+import com.stanko.image.ImageEncoder;
+import com.stanko.image.ImageHeaderParser;
+import com.stanko.image.ImageHeaderParser.ImageHeader;
+import com.stanko.image.PixelKernels;
+import com.stanko.image.StackBlur;
+import com.stanko.image.TiledImageDecoder;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
@@ -38,6 +46,8 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import static java.lang.Math.max;
 
@@ -49,7 +59,8 @@ import static java.lang.Math.max;
 public class ImageUtils {
 
     /**
-     * Returns instance of BitmapInfo for given image File
+     * Returns instance of BitmapInfo for given image File. Dimensions are taken from the image
+     * header (cached by path and modification time) and BitmapFactory is used for unknown formats.
      *
      * @param bitmapFile - am image File
      * @return BitmapInfo or null if File is null or not readable
@@ -58,6 +69,10 @@ public class ImageUtils {
         if (!FileUtils.isReadable(bitmapFile) || bitmapFile != null && bitmapFile.length() < 32)
             return null;
 
+        final ImageHeader imageHeader = ImageHeaderParser.parse(bitmapFile);
+        if (imageHeader != null)
+            return new BitmapInfo(imageHeader.width, imageHeader.height);
+
         BitmapInfo bitmapInfo = null;
         FileInputStream fileInputStream = null;
         FileDescriptor fileDescriptor = null;
@@ -88,7 +103,8 @@ public class ImageUtils {
     }
 
     /**
-     * Returns instance of BitmapInfo for given image File stream
+     * Returns instance of BitmapInfo for given image File stream. Dimensions are taken from the
+     * image header, BitmapFactory is used for unknown formats.
      *
      * @param inputStream
      * @return BitmapInfo or null if stream is null or any Exception happens
@@ -97,13 +113,18 @@ public class ImageUtils {
         if (inputStream == null)
             return null;
 
+        final InputStream markableStream = ImageHeaderParser.getMarkableStream(inputStream);
+        final ImageHeader imageHeader = ImageHeaderParser.parse(markableStream);
+        if (imageHeader != null)
+            return new BitmapInfo(imageHeader.width, imageHeader.height);
+
         BitmapInfo bitmapInfo = null;
 
         final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
         bmfOptions.inJustDecodeBounds = true;
         try {
             // decode image size
-            BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            BitmapFactory.decodeStream(markableStream, null, bmfOptions);
             bitmapInfo = new BitmapInfo(bmfOptions.outWidth, bmfOptions.outHeight);
         } catch (Exception e) {
             Log.e(e);
@@ -254,6 +275,85 @@ public class ImageUtils {
         }
     }
 
+    //
+    // Bitmap reuse
+    //
+
+    /**
+     * Returns given Bitmap to the BitmapPool to be reused by following decodes and
+     * transformations (getResizedBitmap, getSquareBitmap, getCroppedFromCenterBitmap).
+     * Bitmap must not be used (displayed) after this call.
+     *
+     * @param bitmap - bitmap which is not used anymore
+     */
+    public static void releaseBitmap(final Bitmap bitmap) {
+        BitmapPool.getInstance().put(bitmap);
+    }
+
+    /**
+     * Prepares options obtained by bounds decoding for the real decode: reuses a pooled Bitmap via
+     * inBitmap if possible, falls back to inPurgeable on pre-Lollipop devices otherwise.
+     *
+     * @param bmfOptions - options with bounds and inSampleSize set
+     * @param canRetry   - if decoding could be repeated in case inBitmap gets rejected by decoder
+     */
+    private static void prepareOptionsForDecode(final BitmapFactory.Options bmfOptions, final boolean canRetry) {
+        bmfOptions.inJustDecodeBounds = false;
+        // before KitKat reuse rules are strict so only try if decode could be repeated
+        final boolean isReused = (canRetry || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+                && BitmapPool.getInstance().setInBitmap(bmfOptions);
+        bmfOptions.inPurgeable = !isReused && Build.VERSION.SDK_INT < 21;
+    }
+
+    /**
+     * Takes inBitmap out of given options, returning it to the pool if decoding failed without
+     * touching it or recycling it if it was rejected by decoder
+     */
+    private static void dropInBitmap(final BitmapFactory.Options bmfOptions, final boolean isRejected) {
+        final Bitmap inBitmap = bmfOptions.inBitmap;
+        bmfOptions.inBitmap = null;
+        if (inBitmap == null)
+            return;
+        if (isRejected)
+            inBitmap.recycle();
+        else
+            BitmapPool.getInstance().put(inBitmap);
+        if (Build.VERSION.SDK_INT < 21)
+            bmfOptions.inPurgeable = true;
+    }
+
+    private static Bitmap decodeFileDescriptor(final FileDescriptor fileDescriptor, final BitmapFactory.Options bmfOptions) {
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+        } catch (IllegalArgumentException e) {
+            if (bmfOptions.inBitmap == null)
+                throw e;
+            Log.w("ImageUtils", "Could not decode into pooled bitmap: " + e.getMessage());
+            dropInBitmap(bmfOptions, true);
+            // decodeFileDescriptor() restores descriptor's offset so it could be read once again
+            bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+        }
+        if (bitmap == null)
+            dropInBitmap(bmfOptions, false);
+        return bitmap;
+    }
+
+    private static Bitmap decodeStream(final InputStream inputStream, final BitmapFactory.Options bmfOptions) {
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+        } catch (IllegalArgumentException e) {
+            if (bmfOptions.inBitmap == null)
+                throw e;
+            Log.w("ImageUtils", "Could not decode into pooled bitmap: " + e.getMessage());
+            dropInBitmap(bmfOptions, true);
+        }
+        if (bitmap == null)
+            dropInBitmap(bmfOptions, false);
+        return bitmap;
+    }
+
     //*********************************************************************************************
     //
     // Bitmap getter methods
@@ -508,44 +608,34 @@ public class ImageUtils {
 
         FileInputStream fileInputStream = null;
         FileDescriptor fileDescriptor = null;
-        // decode image size
         final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
-        bmfOptions.inJustDecodeBounds = true;
-        if (Build.VERSION.SDK_INT < 21)
-            bmfOptions.inPurgeable = true;
         try {
             fileInputStream = new FileInputStream(bitmapFile);
             try {
                 fileDescriptor = fileInputStream.getFD();
             } catch (IOException ignored) {
             }
-
-            if (fileDescriptor != null)
+            if (fileDescriptor == null)
+                return getBitmapFromStreamWithMaxSideSize(fileInputStream, maxSideSize, isByHeight, isOptimistic);
+
+            // read image size from its header (or headers cache) through the same descriptor
+            final ImageHeader imageHeader = ImageHeaderParser.parse(bitmapFile, fileInputStream);
+            fileInputStream.getChannel().position(0);
+            if (imageHeader != null)
+                imageHeader.applyTo(bmfOptions);
+            else {
+                // unknown format, let BitmapFactory decode image size
+                bmfOptions.inJustDecodeBounds = true;
                 BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
-            else
-                BitmapFactory.decodeStream(fileInputStream, null, bmfOptions);
-
-            try {
-                fileInputStream.close();
-            } catch (IOException ignored) {
             }
 
             // Find the correct scale value. It should be the power of 2.
             bmfOptions.inSampleSize = getScaleRatio(bmfOptions, maxSideSize, isByHeight, isOptimistic);
-            bmfOptions.inJustDecodeBounds = false;
+            prepareOptionsForDecode(bmfOptions, true);
 
             // decode with inSampleSize
-            fileInputStream = new FileInputStream(bitmapFile);
-            try {
-                fileDescriptor = fileInputStream.getFD();
-            } catch (IOException ignored) {
-            }
-
-            if (fileDescriptor != null)
-                return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
-            else
-                return BitmapFactory.decodeStream(fileInputStream, null, bmfOptions);
-        } catch (FileNotFoundException e) {
+            return decodeFileDescriptor(fileDescriptor, bmfOptions);
+        } catch (IOException e) {
             Log.e("ImageUtils", e);
         } finally {
             if (fileInputStream != null)
@@ -684,19 +774,37 @@ public class ImageUtils {
         if (maxSideSize == 0)
             return null;
 
-        // decode image size
         final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
-        bmfOptions.inJustDecodeBounds = true;
-        if (Build.VERSION.SDK_INT < 21)
-            bmfOptions.inPurgeable = true;
-        BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+        // read image size from its header restoring descriptor's offset afterwards,
+        // the stream is not closed since it would close given descriptor
+        final FileInputStream fileInputStream = new FileInputStream(fileDescriptor);
+        ImageHeader imageHeader = null;
+        try {
+            final FileChannel fileChannel = fileInputStream.getChannel();
+            final long position = fileChannel.position();
+            try {
+                imageHeader = ImageHeaderParser.parse(ImageHeaderParser.getMarkableStream(fileInputStream));
+            } finally {
+                fileChannel.position(position);
+            }
+        } catch (IOException e) {
+            Log.e("ImageUtils", e);
+            imageHeader = null;
+        }
+        if (imageHeader != null)
+            imageHeader.applyTo(bmfOptions);
+        else {
+            // unknown format, let BitmapFactory decode image size
+            bmfOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+        }
 
         // Find the correct scale value. It should be the power of 2.
         bmfOptions.inSampleSize = getScaleRatio(bmfOptions, maxSideSize, isByHeight, isOptimistic);
-        bmfOptions.inJustDecodeBounds = false;
+        prepareOptionsForDecode(bmfOptions, true);
 
         // decode with inSampleSize
-        final Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+        final Bitmap bitmap = decodeFileDescriptor(fileDescriptor, bmfOptions);
         return bitmap;
     }
 
@@ -866,19 +974,31 @@ public class ImageUtils {
         if (maxSideSize == 0)
             return null;
 
-        // decode image size
+        // read image size from its header, stream gets reset to its beginning
+        final InputStream markableStream = ImageHeaderParser.getMarkableStream(inputStream);
         final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
-        bmfOptions.inJustDecodeBounds = true;
-        if (Build.VERSION.SDK_INT < 21)
-            bmfOptions.inPurgeable = true;
-        BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+        final ImageHeader imageHeader = ImageHeaderParser.parse(markableStream);
+        if (imageHeader != null)
+            imageHeader.applyTo(bmfOptions);
+        else {
+            // unknown format, let BitmapFactory decode image size within the same mark limit
+            bmfOptions.inJustDecodeBounds = true;
+            markableStream.mark(ImageHeaderParser.MAX_HEADER_SIZE);
+            BitmapFactory.decodeStream(markableStream, null, bmfOptions);
+            try {
+                markableStream.reset();
+            } catch (IOException e) {
+                Log.e("ImageUtils", e);
+                return null;
+            }
+        }
 
         // Find the correct scale value. It should be the power of 2.
         bmfOptions.inSampleSize = getScaleRatio(bmfOptions, maxSideSize, isByHeight, isOptimistic);
-        bmfOptions.inJustDecodeBounds = false;
+        prepareOptionsForDecode(bmfOptions, false);
 
         // decode with inSampleSize
-        final Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+        final Bitmap bitmap = decodeStream(markableStream, bmfOptions);
         return bitmap;
     }
 
@@ -1105,26 +1225,40 @@ public class ImageUtils {
             maxHeight = maxWidth;
         }
         try {
-            inputStream = contentResolver.openInputStream(uri);
+            inputStream = ImageHeaderParser.getMarkableStream(contentResolver.openInputStream(uri));
 
-            // decode image size
+            // read image size from its header, stream gets reset to its beginning
             final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
-            bmfOptions.inJustDecodeBounds = true;
-            if (Build.VERSION.SDK_INT < 21)
-                bmfOptions.inPurgeable = true;
-            BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            final ImageHeader imageHeader = ImageHeaderParser.parse(inputStream);
+            if (imageHeader != null)
+                imageHeader.applyTo(bmfOptions);
+            else {
+                // unknown format, let BitmapFactory decode image size and reopen the stream
+                bmfOptions.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+                inputStream.close();
+                inputStream = contentResolver.openInputStream(uri);
+            }
 
             // Find the correct scale value. It should be the power of 2.
             bmfOptions.inSampleSize = getScaleRatio(bmfOptions, sideSizeLimit, null, isOptimistic);
-            bmfOptions.inJustDecodeBounds = false;
+            prepareOptionsForDecode(bmfOptions, true);
 
             // decode with inSampleSize
-            // BitmapFactory.Options o2 = new BitmapFactory.Options();
-            bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            final boolean isReusing = bmfOptions.inBitmap != null;
+            bitmap = decodeStream(inputStream, bmfOptions);
+            if (bitmap == null && isReusing) {
+                // inBitmap could be rejected by decoder, try once again without it
+                inputStream.close();
+                inputStream = contentResolver.openInputStream(uri);
+                bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            }
         } catch (Resources.NotFoundException e) {
             e.printStackTrace();
         } catch (FileNotFoundException e) {
             e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
         } finally {
             if (inputStream != null)
                 try {
@@ -1397,6 +1531,7 @@ public class ImageUtils {
                 if (bitmap != null) {
                     bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
                     isSucceed = ImageUtils.saveBitmapToJPEGFile(bitmap, targetFile, 99);
+                    ImageHeaderParser.invalidate(targetFile);
                     bitmap.recycle();
                 }
             }
@@ -1426,6 +1561,11 @@ public class ImageUtils {
             return 0;
         }
 
+        // header parser reads EXIF orientation in the same pass as dimensions and caches it
+        final ImageHeader imageHeader = ImageHeaderParser.parse(targetFile);
+        if (imageHeader != null)
+            return imageHeader.rotateAngle;
+
         try {
             final ExifInterface exifReader = new ExifInterface(targetFile.getAbsolutePath());
             final int orientation = exifReader.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
@@ -1462,6 +1602,9 @@ public class ImageUtils {
                 return value;
             } else if (uri.getScheme().equals("file")) {
                 //From a file saved by the camera
+                final ImageHeader imageHeader = ImageHeaderParser.parse(new File(uri.getPath()));
+                if (imageHeader != null)
+                    return imageHeader.rotateAngle;
                 final ExifInterface exifReader = new ExifInterface(uri.getPath());
                 final int orientation = exifReader.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
                 final int rotateAngle = getExifRotateAngle(orientation);
@@ -1533,6 +1676,10 @@ public class ImageUtils {
             final int rotateAngle = getExifRotateAngle(targetFile);
             boolean isRotationNeeded = rotateAngle > 0;
             if (isRotationNeeded) {
+                // tiles are drawn right into rotated bitmap, no unrotated copy is kept
+                final Bitmap tiledBitmap = getRotatedBitmapByExifTiled(targetFile, 0);
+                if (tiledBitmap != null)
+                    return tiledBitmap;
                 matrix.postRotate(rotateAngle);
             }
 
@@ -1636,6 +1783,10 @@ public class ImageUtils {
             final int rotateAngle = getExifRotateAngle(targetFile);
             boolean isRotationNeeded = rotateAngle > 0;
             if (isRotationNeeded) {
+                // memory needed is about the resulting size instead of subsampled image size
+                bitmap = getRotatedBitmapByExifTiled(targetFile, maxSideSize);
+                if (bitmap != null)
+                    return bitmap;
                 bitmap = getRotatedBitmapByAngle(getBitmapFromFileWithMaxSideSize(targetFile, maxSideSize), rotateAngle);
             } else {
                 bitmap = getBitmapFromFileWithMaxSideSize(targetFile, maxSideSize);
@@ -1651,6 +1802,25 @@ public class ImageUtils {
         return bitmap;
     }
 
+    /**
+     * Decodes given image tile by tile with BitmapRegionDecoder drawing tiles scaled and rotated
+     * according to EXIF right into the resulting bitmap
+     *
+     * @param targetFile
+     * @param maxSideSize - the biggest image dimension (height or width) limit, 0 for no limit
+     * @return Bitmap or null if region decoding is not supported for the image or failed
+     */
+    private static Bitmap getRotatedBitmapByExifTiled(final File targetFile, final int maxSideSize) {
+        final TiledImageDecoder tiledImageDecoder = TiledImageDecoder.open(targetFile, 0);
+        if (tiledImageDecoder == null)
+            return null;
+        try {
+            return tiledImageDecoder.decodeScaled(maxSideSize, true);
+        } finally {
+            tiledImageDecoder.recycle();
+        }
+    }
+
     /**
      * Returns Bitmap rotated according to EXIF limiting the resulting image size.
      * WARNING! Samsung and LG cameras has well known bug and their EXIF is invalid. This method
@@ -1735,22 +1905,25 @@ public class ImageUtils {
             final int scaleWidth = (int) (width * aspectRatio);
             final int deltaW = (sideSize - scaleWidth) / 2;
             final int deltaH = (sideSize - scaleHeight) / 2;
-            // create square bitmap with given maxSideSize dimensions
-            final Bitmap resizedBitmap = Bitmap.createBitmap(sideSize, sideSize, Config.ARGB_8888);
-            resizedBitmap.eraseColor(Color.TRANSPARENT);
+            // create square transparent bitmap with given maxSideSize dimensions
+            final Bitmap resizedBitmap = BitmapPool.getInstance().get(sideSize, sideSize, Config.ARGB_8888);
+            resizedBitmap.setDensity(bitmap.getDensity());
             final RectF outRect = new RectF(deltaW, deltaH, scaleWidth + deltaW, scaleHeight + deltaH);
             final Canvas canvas = new Canvas(resizedBitmap);
             canvas.drawBitmap(bitmap, null, outRect, null);
             return resizedBitmap;
         } else {
             //makes square image/ Center crop!!!
-            Matrix matrix = new Matrix();
-            float scale = bitmapInfo.hasLandscapeOrientation ? ((float) sideSize) / height : ((float) sideSize) / width;
-            matrix.postScale(scale, scale);
+            final Rect srcRect;
             if (bitmapInfo.hasLandscapeOrientation)
-                return Bitmap.createBitmap(bitmap, width / 2 - height / 2, 0, height, height, matrix, true);
+                srcRect = new Rect(width / 2 - height / 2, 0, width / 2 - height / 2 + height, height);
             else
-                return Bitmap.createBitmap(bitmap, 0, height / 2 - width / 2, width, width, matrix, true);
+                srcRect = new Rect(0, height / 2 - width / 2, width, height / 2 - width / 2 + width);
+            final Bitmap squareBitmap = BitmapPool.getInstance().get(sideSize, sideSize, bitmap.getConfig());
+            squareBitmap.setDensity(bitmap.getDensity());
+            final Canvas canvas = new Canvas(squareBitmap);
+            canvas.drawBitmap(bitmap, srcRect, new Rect(0, 0, sideSize, sideSize), new Paint(Paint.FILTER_BITMAP_FLAG));
+            return squareBitmap;
         }
     }
 
@@ -1778,7 +1951,9 @@ public class ImageUtils {
 
         float scaleHeight = ((float) newHeight) / bitmapInfo.height;
         float scaleWidth = ((float) newWidth) / bitmapInfo.width;
-        Log.d("ImageUtils", "width: " + bitmapInfo.width + " height: " + bitmapInfo.height + " newWidth: " + newWidth + " newHeight: " + newHeight + " scaleWidth: " + scaleWidth + " scaleHeight: " + scaleHeight);
+        if (Log.isLoggable(Log.DEBUG, "ImageUtils"))
+            Log.d("ImageUtils", "width: %d height: %d newWidth: %d newHeight: %d scaleWidth: %f scaleHeight: %f",
+                    bitmapInfo.width, bitmapInfo.height, newWidth, newHeight, scaleWidth, scaleHeight);
 
         // create a matrix for the manipulation
         final Matrix matrix = new Matrix();
@@ -1787,8 +1962,11 @@ public class ImageUtils {
 
         Bitmap resizedBitmap;
         try {
-            // recreate the Bitmap
-            resizedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmapInfo.width, bitmapInfo.height, matrix, true);
+            // draw the Bitmap into a pooled one
+            resizedBitmap = BitmapPool.getInstance().get(newWidth, newHeight, bitmap.getConfig());
+            resizedBitmap.setDensity(bitmap.getDensity());
+            final Canvas canvas = new Canvas(resizedBitmap);
+            canvas.drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
         } catch (Exception e) {
             Log.e(e);
             resizedBitmap = null;
@@ -1925,11 +2103,14 @@ public class ImageUtils {
         } else {
             resultingHeight = bitmapRight.getHeight();
         }
-        final Bitmap bitmap = Bitmap.createBitmap(resultingWidth, resultingHeight, Bitmap.Config.ARGB_8888);
-        final Canvas canvas = new Canvas(bitmap);
-        canvas.drawBitmap(bitmapLeft, 0f, 0f, null);
-        canvas.drawBitmap(bitmapRight, bitmapLeft.getWidth(), 0f, null);
-        return bitmap;
+        final int[] leftPixels = BitmapPixels.obtainPixels(bitmapLeft);
+        final int[] rightPixels = BitmapPixels.obtainPixels(bitmapRight);
+        final int[] pixels = new int[resultingWidth * resultingHeight];
+        PixelKernels.joinHorizontally(leftPixels, bitmapLeft.getWidth(), bitmapLeft.getHeight(),
+                rightPixels, bitmapRight.getWidth(), bitmapRight.getHeight(), pixels);
+        BitmapPixels.releaseBuffer(leftPixels);
+        BitmapPixels.releaseBuffer(rightPixels);
+        return BitmapPixels.createBitmap(pixels, resultingWidth, resultingHeight, Config.ARGB_8888);
     }
 
     /**
@@ -1954,11 +2135,14 @@ public class ImageUtils {
         } else {
             resultingWidth = bitmapBottom.getWidth();
         }
-        final Bitmap bitmap = Bitmap.createBitmap(resultingWidth, resultingHeight, Config.ARGB_8888);
-        final Canvas canvas = new Canvas(bitmap);
-        canvas.drawBitmap(bitmapTop, 0f, 0f, null);
-        canvas.drawBitmap(bitmapBottom, 0f, bitmapTop.getHeight(), null);
-        return bitmap;
+        final int[] topPixels = BitmapPixels.obtainPixels(bitmapTop);
+        final int[] bottomPixels = BitmapPixels.obtainPixels(bitmapBottom);
+        final int[] pixels = new int[resultingWidth * resultingHeight];
+        PixelKernels.joinVertically(topPixels, bitmapTop.getWidth(), bitmapTop.getHeight(),
+                bottomPixels, bitmapBottom.getWidth(), bitmapBottom.getHeight(), pixels);
+        BitmapPixels.releaseBuffer(topPixels);
+        BitmapPixels.releaseBuffer(bottomPixels);
+        return BitmapPixels.createBitmap(pixels, resultingWidth, resultingHeight, Config.ARGB_8888);
     }
 
     /**
@@ -1975,12 +2159,11 @@ public class ImageUtils {
         if (targetJpegQuality > 100 || targetJpegQuality < 0)
             targetJpegQuality = 100;
 
-        // Convert bitmap to byte array
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // compress and decode back straight from the stream buffer
+        final ImageEncoder.DirectByteArrayOutputStream bos = new ImageEncoder.DirectByteArrayOutputStream(bitmap.getWidth() * bitmap.getHeight() / 4);
         bitmap.compress(CompressFormat.JPEG, targetJpegQuality, bos);
         bitmap.recycle();
-        byte[] bitmapData = bos.toByteArray();
-        bitmap = BitmapFactory.decodeByteArray(bitmapData, 0, bitmapData.length);
+        bitmap = BitmapFactory.decodeByteArray(bos.getBuffer(), 0, bos.size());
 
         return bitmap;
     }
@@ -1999,24 +2182,10 @@ public class ImageUtils {
             return false;
         if (imageFile.exists() && !imageFile.delete())
             return false;
-        if (quality > 100 || quality < 0)
+        if (quality > 100 || quality <= 0)
             quality = 100;
-        boolean isSucceed;
-        // save it
-        // Convert bitmap to byte array
-        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        if (quality == 0)
-            bitmap.compress(CompressFormat.JPEG, 100, bos);
-        else
-            bitmap.compress(CompressFormat.JPEG, quality, bos);
-        // write the bytes to file
-        isSucceed = FileUtils.byteArrayOutputStreamToFile(bos, imageFile);
-        if (bos != null)
-            try {
-                bos.close();
-            } catch (IOException e) {
-            }
-        return isSucceed;
+        // compress straight to the file
+        return ImageEncoder.compress(bitmap, CompressFormat.JPEG, quality, imageFile);
     }
 
     /**
@@ -2031,19 +2200,8 @@ public class ImageUtils {
             return false;
         if (imageFile.exists() && !imageFile.delete())
             return false;
-        boolean isSucceed;
-        // save it
-        // Convert bitmap to byte array
-        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        bitmap.compress(CompressFormat.PNG, 100, bos);
-        // write the bytes in file
-        isSucceed = FileUtils.byteArrayOutputStreamToFile(bos, imageFile);
-        if (bos != null)
-            try {
-                bos.close();
-            } catch (IOException e) {
-            }
-        return isSucceed;
+        // compress straight to the file
+        return ImageEncoder.compress(bitmap, CompressFormat.PNG, 100, imageFile);
     }
 
 
@@ -2110,6 +2268,11 @@ public class ImageUtils {
         return bitmap;
     }
 
+    // radius from which fast mode blurs a downscaled copy
+    public static final int BLUR_FAST_MODE_MIN_RADIUS = 16;
+    // radius the downscaled copy gets blurred with in fast mode
+    private static final int BLUR_FAST_MODE_RADIUS = 8;
+
     /**
      * Blurs given image
      *
@@ -2117,200 +2280,40 @@ public class ImageUtils {
      * @param radius       - must be greater than 1
      */
     public static void blurBitmap(final Bitmap bitmapToBlur, final int radius) {
-        if (radius < 1)
-            return;
-
-        int w = bitmapToBlur.getWidth();
-        int h = bitmapToBlur.getHeight();
-
-        int[] pix = new int[w * h];
-        // Log.e("pix", w + " " + h + " " + pix.length);
-        bitmapToBlur.getPixels(pix, 0, w, 0, 0, w, h);
-
-        int wm = w - 1;
-        int hm = h - 1;
-        int wh = w * h;
-        int div = radius + radius + 1;
-
-        int r[] = new int[wh];
-        int g[] = new int[wh];
-        int b[] = new int[wh];
-        int rsum, gsum, bsum, x, y, i, p, yp, yi, yw;
-        int vmin[] = new int[max(w, h)];
-
-        int divsum = (div + 1) >> 1;
-        divsum *= divsum;
-        int dv[] = new int[256 * divsum];
-        for (i = 0; i < 256 * divsum; i++) {
-            dv[i] = (i / divsum);
-        }
-
-        yw = yi = 0;
-
-        int[][] stack = new int[div][3];
-        int stackpointer;
-        int stackstart;
-        int[] sir;
-        int rbs;
-        int r1 = radius + 1;
-        int routsum, goutsum, boutsum;
-        int rinsum, ginsum, binsum;
-
-        for (y = 0; y < h; y++) {
-            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-            for (i = -radius; i <= radius; i++) {
-                p = pix[yi + Math.min(wm, max(i, 0))];
-                sir = stack[i + radius];
-                sir[0] = (p & 0xff0000) >> 16;
-                sir[1] = (p & 0x00ff00) >> 8;
-                sir[2] = (p & 0x0000ff);
-                rbs = r1 - Math.abs(i);
-                rsum += sir[0] * rbs;
-                gsum += sir[1] * rbs;
-                bsum += sir[2] * rbs;
-                if (i > 0) {
-                    rinsum += sir[0];
-                    ginsum += sir[1];
-                    binsum += sir[2];
-                } else {
-                    routsum += sir[0];
-                    goutsum += sir[1];
-                    boutsum += sir[2];
-                }
-            }
-            stackpointer = radius;
-
-            for (x = 0; x < w; x++) {
-
-                r[yi] = dv[rsum];
-                g[yi] = dv[gsum];
-                b[yi] = dv[bsum];
-
-                rsum -= routsum;
-                gsum -= goutsum;
-                bsum -= boutsum;
-
-                stackstart = stackpointer - radius + div;
-                sir = stack[stackstart % div];
-
-                routsum -= sir[0];
-                goutsum -= sir[1];
-                boutsum -= sir[2];
-
-                if (y == 0) {
-                    vmin[x] = Math.min(x + radius + 1, wm);
-                }
-                p = pix[yw + vmin[x]];
-
-                sir[0] = (p & 0xff0000) >> 16;
-                sir[1] = (p & 0x00ff00) >> 8;
-                sir[2] = (p & 0x0000ff);
-
-                rinsum += sir[0];
-                ginsum += sir[1];
-                binsum += sir[2];
-
-                rsum += rinsum;
-                gsum += ginsum;
-                bsum += binsum;
-
-                stackpointer = (stackpointer + 1) % div;
-                sir = stack[(stackpointer) % div];
-
-                routsum += sir[0];
-                goutsum += sir[1];
-                boutsum += sir[2];
-
-                rinsum -= sir[0];
-                ginsum -= sir[1];
-                binsum -= sir[2];
-
-                yi++;
-            }
-            yw += w;
-        }
-        for (x = 0; x < w; x++) {
-            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-            yp = -radius * w;
-            for (i = -radius; i <= radius; i++) {
-                yi = max(0, yp) + x;
-
-                sir = stack[i + radius];
-
-                sir[0] = r[yi];
-                sir[1] = g[yi];
-                sir[2] = b[yi];
-
-                rbs = r1 - Math.abs(i);
-
-                rsum += r[yi] * rbs;
-                gsum += g[yi] * rbs;
-                bsum += b[yi] * rbs;
-
-                if (i > 0) {
-                    rinsum += sir[0];
-                    ginsum += sir[1];
-                    binsum += sir[2];
-                } else {
-                    routsum += sir[0];
-                    goutsum += sir[1];
-                    boutsum += sir[2];
-                }
-
-                if (i < hm) {
-                    yp += w;
-                }
-            }
-            yi = x;
-            stackpointer = radius;
-            for (y = 0; y < h; y++) {
-                // Preserve alpha channel: ( 0xff000000 & pix[yi] )
-                pix[yi] = (0xff000000 & pix[yi]) | (dv[rsum] << 16) | (dv[gsum] << 8) | dv[bsum];
-
-                rsum -= routsum;
-                gsum -= goutsum;
-                bsum -= boutsum;
-
-                stackstart = stackpointer - radius + div;
-                sir = stack[stackstart % div];
-
-                routsum -= sir[0];
-                goutsum -= sir[1];
-                boutsum -= sir[2];
-
-                if (x == 0) {
-                    vmin[y] = Math.min(y + r1, hm) * w;
-                }
-                p = x + vmin[y];
-
-                sir[0] = r[p];
-                sir[1] = g[p];
-                sir[2] = b[p];
-
-                rinsum += sir[0];
-                ginsum += sir[1];
-                binsum += sir[2];
-
-                rsum += rinsum;
-                gsum += ginsum;
-                bsum += binsum;
-
-                stackpointer = (stackpointer + 1) % div;
-                sir = stack[stackpointer];
-
-                routsum += sir[0];
-                goutsum += sir[1];
-                boutsum += sir[2];
+        blurBitmap(bitmapToBlur, radius, false);
+    }
 
-                rinsum -= sir[0];
-                ginsum -= sir[1];
-                binsum -= sir[2];
+    /**
+     * Blurs given image. In fast mode big radii (BLUR_FAST_MODE_MIN_RADIUS and more) are
+     * applied to a downscaled copy which is drawn back upscaled, which is much faster and for
+     * such radii visually almost the same.
+     *
+     * @param bitmapToBlur - mutable Bitmap to apply blur to
+     * @param radius       - must be greater than 1, up to StackBlur.MAX_RADIUS
+     * @param isFastMode   - if downscale-blur-upscale could be used for big radii
+     */
+    public static void blurBitmap(final Bitmap bitmapToBlur, final int radius, final boolean isFastMode) {
+        if (bitmapToBlur == null || radius < 1)
+            return;
 
-                yi += w;
-            }
+        final int width = bitmapToBlur.getWidth();
+        final int height = bitmapToBlur.getHeight();
+        if (isFastMode && radius >= BLUR_FAST_MODE_MIN_RADIUS) {
+            final int factor = radius / BLUR_FAST_MODE_RADIUS;
+            final Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmapToBlur, max(1, width / factor), max(1, height / factor), true);
+            blurBitmap(scaledBitmap, max(1, radius / factor), false);
+            final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+            new Canvas(bitmapToBlur).drawBitmap(scaledBitmap, null, new Rect(0, 0, width, height), paint);
+            if (scaledBitmap != bitmapToBlur)
+                scaledBitmap.recycle();
+            return;
         }
 
-        bitmapToBlur.setPixels(pix, 0, w, 0, 0, w, h);
+        final int[] pixels = BitmapPixels.obtainPixels(bitmapToBlur);
+        StackBlur.blur(pixels, width, height, radius);
+        BitmapPixels.setPixels(bitmapToBlur, pixels);
+        BitmapPixels.releaseBuffer(pixels);
     }
 
 
@@ -2380,6 +2383,18 @@ public class ImageUtils {
         if (bitmapFile == null || !FileUtils.isReadable(bitmapFile) || cropToHeight == 0 || cropToWidth == 0)
             return null;
 
+        // decode only the cropped area if the format supports region decoding
+        final TiledImageDecoder tiledImageDecoder = TiledImageDecoder.open(bitmapFile, 0);
+        if (tiledImageDecoder != null) {
+            try {
+                final Bitmap bitmap = tiledImageDecoder.decodeCenterCrop(cropToHeight, cropToWidth);
+                if (bitmap != null)
+                    return bitmap;
+            } finally {
+                tiledImageDecoder.recycle();
+            }
+        }
+
         final BitmapInfo bitmapInfo = ImageUtils.getBitmapInfoFromFile(bitmapFile);
         if (bitmapInfo == null)
             return null;
@@ -2645,7 +2660,7 @@ public class ImageUtils {
         float bitmapHWProportions = bitmapInfo.height / bitmapInfo.width;
         float cropWHProportions = (float) cropWidth / (float) cropHeight;
 
-        Bitmap bitmapToCrop;
+        int resizedHeight, resizedWidth;
         // crop Portrait from Portrait
         if ((bitmapInfo.hasPortraitOrientation || bitmapInfo.hasSquareForm) && cropHeight > cropWidth) {
             // 480x800 -> 300x400, result is wider than original bitmap
@@ -2658,7 +2673,8 @@ public class ImageUtils {
                     cropHeight *= downSample;
                 }
 
-                bitmapToCrop = getResizedBitmap(bitmapToScale, (int) (cropWidth * bitmapHWProportions), cropWidth);
+                resizedHeight = (int) (cropWidth * bitmapHWProportions);
+                resizedWidth = cropWidth;
             } else {
                 // scale by height
                 //Bitmap bitmapToScale = getBitmapFromFileWithMaxHeight(bitmapFile, cropToHeight);
@@ -2667,7 +2683,8 @@ public class ImageUtils {
                     cropWidth *= downSample;
                     cropHeight *= downSample;
                 }
-                bitmapToCrop = getResizedBitmap(bitmapToScale, cropHeight, (int) (cropHeight * bitmapWHProportions));
+                resizedHeight = cropHeight;
+                resizedWidth = (int) (cropHeight * bitmapWHProportions);
             }
         }
         // crop Landscape from Landscape
@@ -2681,7 +2698,8 @@ public class ImageUtils {
                     cropWidth *= downSample;
                     cropHeight *= downSample;
                 }
-                bitmapToCrop = getResizedBitmap(bitmapToScale, (int) (cropWidth * bitmapHWProportions), cropWidth);
+                resizedHeight = (int) (cropWidth * bitmapHWProportions);
+                resizedWidth = cropWidth;
             } else {
                 // scale by height
                 //Bitmap bitmapToScale = getBitmapFromFileWithMaxHeight(bitmapFile, cropToHeight);
@@ -2690,7 +2708,8 @@ public class ImageUtils {
                     cropWidth *= downSample;
                     cropHeight *= downSample;
                 }
-                bitmapToCrop = getResizedBitmap(bitmapToScale, cropHeight, (int) (cropHeight * bitmapWHProportions));
+                resizedHeight = cropHeight;
+                resizedWidth = (int) (cropHeight * bitmapWHProportions);
             }
         }
         // crop Landscape from Portrait
@@ -2707,7 +2726,8 @@ public class ImageUtils {
                 cropWidth *= downSample;
                 cropHeight *= downSample;
             }
-            bitmapToCrop = getResizedBitmap(bitmapToScale, (int) (cropWidth * bitmapHWProportions), cropWidth);
+            resizedHeight = (int) (cropWidth * bitmapHWProportions);
+            resizedWidth = cropWidth;
         }
         // crop Portrait from Landscape
         else if ((bitmapInfo.hasLandscapeOrientation || bitmapInfo.hasSquareForm) && cropWidth < cropHeight /*&& bitmapInfo.height>cropToHeight*/) {
@@ -2722,12 +2742,49 @@ public class ImageUtils {
                 cropWidth *= downSample;
                 cropHeight *= downSample;
             }
-            bitmapToCrop = getResizedBitmap(bitmapToScale, cropHeight, (int) (cropHeight * bitmapWHProportions));
+            resizedHeight = cropHeight;
+            resizedWidth = (int) (cropHeight * bitmapWHProportions);
         } else {
-            bitmapToCrop = bitmapToScale;
+            resizedHeight = bitmapInfo.height;
+            resizedWidth = bitmapInfo.width;
         }
 
-        return getCroppedFromCenterBitmap(bitmapToCrop, cropHeight, cropWidth);
+        return getScaledAndCroppedFromCenterBitmap(bitmapToScale, resizedHeight, resizedWidth, cropHeight, cropWidth);
+    }
+
+    /**
+     * Does getResizedBitmap() followed by getCroppedFromCenterBitmap() in a single pass without
+     * intermediate resized Bitmap
+     */
+    private static Bitmap getScaledAndCroppedFromCenterBitmap(final Bitmap bitmap,
+                                                              int resizedHeight,
+                                                              int resizedWidth,
+                                                              final int cropToHeight,
+                                                              final int cropToWidth) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (resizedHeight < 0 || resizedWidth < 0 || resizedHeight + resizedWidth == 0 || cropToHeight == 0 || cropToWidth == 0)
+            return null;
+        if (resizedHeight == 0)
+            resizedHeight = (int) ((float) resizedWidth * height / width);
+        if (resizedWidth == 0)
+            resizedWidth = (int) ((float) resizedHeight * width / height);
+
+        // getCroppedFromCenterBitmap() returns the image as is unless it is bigger than crop
+        if (resizedWidth < cropToWidth || resizedHeight < cropToHeight
+                || resizedWidth == cropToWidth && resizedHeight == cropToHeight) {
+            if (resizedWidth == width && resizedHeight == height)
+                return bitmap;
+            return getResizedBitmap(bitmap, resizedHeight, resizedWidth);
+        }
+
+        final int[] pixels = BitmapPixels.obtainPixels(bitmap);
+        final int[] croppedPixels = new int[cropToWidth * cropToHeight];
+        PixelKernels.scale(pixels, 0, width, width, height,
+                croppedPixels, 0, cropToWidth, cropToWidth, cropToHeight,
+                resizedWidth, resizedHeight, (resizedWidth - cropToWidth) / 2, (resizedHeight - cropToHeight) / 2);
+        BitmapPixels.releaseBuffer(pixels);
+        return BitmapPixels.createBitmap(croppedPixels, cropToWidth, cropToHeight, bitmap.getConfig());
     }
 
     /**
@@ -2745,23 +2802,28 @@ public class ImageUtils {
         if (bitmapToCrop.getWidth() > cropToWidth && bitmapToCrop.getHeight() > cropToHeight) {
             int deltaX = (bitmapToCrop.getWidth() - cropToWidth) / 2;
             int deltaY = (bitmapToCrop.getHeight() - cropToHeight) / 2;
-            return Bitmap.createBitmap(bitmapToCrop,
-                    deltaX, deltaY,
-                    cropToWidth, cropToHeight);
+            return getCroppedBitmap(bitmapToCrop, deltaX, deltaY, cropToWidth, cropToHeight);
         } else if (bitmapToCrop.getWidth() > cropToWidth && bitmapToCrop.getHeight() == cropToHeight) {
             int deltaX = (bitmapToCrop.getWidth() - cropToWidth) / 2;
-            return Bitmap.createBitmap(bitmapToCrop,
-                    deltaX, 0,
-                    cropToWidth, cropToHeight);
+            return getCroppedBitmap(bitmapToCrop, deltaX, 0, cropToWidth, cropToHeight);
         } else if (bitmapToCrop.getWidth() == cropToWidth && bitmapToCrop.getHeight() > cropToHeight) {
             int deltaY = (bitmapToCrop.getHeight() - cropToHeight) / 2;
-            return Bitmap.createBitmap(bitmapToCrop,
-                    0, deltaY,
-                    cropToWidth, cropToHeight);
+            return getCroppedBitmap(bitmapToCrop, 0, deltaY, cropToWidth, cropToHeight);
         } else
             return bitmapToCrop;
     }
 
+    /**
+     * Copies given region of the bitmap into a pooled bitmap
+     */
+    private static Bitmap getCroppedBitmap(final Bitmap bitmap, final int x, final int y, final int width, final int height) {
+        final Bitmap croppedBitmap = BitmapPool.getInstance().get(width, height, bitmap.getConfig());
+        croppedBitmap.setDensity(bitmap.getDensity());
+        final Canvas canvas = new Canvas(croppedBitmap);
+        canvas.drawBitmap(bitmap, new Rect(x, y, x + width, y + height), new Rect(0, 0, width, height), null);
+        return croppedBitmap;
+    }
+
     @SuppressLint("NewApi")
     @SuppressWarnings("deprecation")
     /**
@@ -2821,6 +2883,33 @@ public class ImageUtils {
         return baos.toByteArray();
     }
 
+    /**
+     * Writes JPEG compressed Bitmap image to the stream (file, socket, request body) without
+     * making an in-memory copy, stream is not closed
+     *
+     * @param bitmap       - bitmap to compress to JPEG
+     * @param jpegQuality  - target JPEG quality
+     * @param outputStream - target stream
+     * @return true if succeed
+     */
+    public static boolean writeJPEGToStream(final Bitmap bitmap, final int jpegQuality, final OutputStream outputStream) {
+        return ImageEncoder.compress(bitmap, CompressFormat.JPEG, jpegQuality, outputStream);
+    }
+
+    /**
+     * Writes JPEG compressed Bitmap image of the best quality that fits given size to the
+     * stream, stream is not closed
+     *
+     * @param bitmap       - bitmap to compress to JPEG
+     * @param maxSize      - max size of JPEG in bytes
+     * @param minQuality   - lowest acceptable JPEG quality
+     * @param outputStream - target stream
+     * @return used JPEG quality or -1 if bitmap does not fit into maxSize or writing failed
+     */
+    public static int writeJPEGToStream(final Bitmap bitmap, final long maxSize, final int minQuality, final OutputStream outputStream) {
+        return ImageEncoder.compressJpegToSize(bitmap, maxSize, minQuality, outputStream);
+    }
+
     /**
      * Returns byte array of JPEG compressed image from File
      *
@@ -2939,6 +3028,18 @@ public class ImageUtils {
         return baos.toByteArray();
     }
 
+    /**
+     * Writes PNG compressed Bitmap image to the stream without making an in-memory copy,
+     * stream is not closed
+     *
+     * @param bitmap       - image to compress
+     * @param outputStream - target stream
+     * @return true if succeed
+     */
+    public static boolean writePNGToStream(final Bitmap bitmap, final OutputStream outputStream) {
+        return ImageEncoder.compress(bitmap, CompressFormat.PNG, 0, outputStream);
+    }
+
     /**
      * Returns byte array of PNG compressed image
      *
@@ -3083,27 +3184,14 @@ public class ImageUtils {
         int cropSize = Math.min(bitmap.getWidth(), bitmap.getHeight());
         if (diameter == 0)
             diameter = cropSize;
-        final int radius = diameter / 2;
-        final Bitmap croppedToSquareBitmap = getBitmapByCropFromCenterWithScaling(bitmap, cropSize, cropSize);
-        if (croppedToSquareBitmap != bitmap)
-            bitmap.recycle();
-        final Bitmap downsizedToDiameterBitmap;
-        if (diameter == cropSize)
-            downsizedToDiameterBitmap = croppedToSquareBitmap;
-        else {
-            downsizedToDiameterBitmap = getResizedBitmap(croppedToSquareBitmap, diameter, diameter);
-            if (downsizedToDiameterBitmap != croppedToSquareBitmap)
-                croppedToSquareBitmap.recycle();
-        }
-        final Bitmap outputBitmap = Bitmap.createBitmap(diameter, diameter, Config.ARGB_8888);
-        final Path path = new Path();
-        path.addCircle(radius, radius, radius, Path.Direction.CCW);
-        final Canvas canvas = new Canvas(outputBitmap);
-        canvas.clipPath(path);
-        canvas.drawBitmap(downsizedToDiameterBitmap, 0, 0, null);
-        if (outputBitmap != downsizedToDiameterBitmap)
-            downsizedToDiameterBitmap.recycle();
-        return outputBitmap;
+        // crop square from center scaling it to diameter and mask it in a single pass
+        final int[] pixels = BitmapPixels.obtainPixels(bitmap);
+        final int[] circlePixels = new int[diameter * diameter];
+        PixelKernels.scaleCenterCrop(pixels, bitmap.getWidth(), bitmap.getHeight(), circlePixels, diameter, diameter);
+        BitmapPixels.releaseBuffer(pixels);
+        bitmap.recycle();
+        PixelKernels.circleMask(circlePixels, 0, diameter, diameter);
+        return BitmapPixels.createBitmap(circlePixels, diameter, diameter, Config.ARGB_8888);
     }
 
     /**
@@ -3144,14 +3232,12 @@ public class ImageUtils {
      * @return
      */
     public static Bitmap getBlackAndWhiteBitmap(final Bitmap orginalBitmap, Bitmap.Config bitmapConfig) {
-        final ColorMatrix colorMatrix = new ColorMatrix();
-        colorMatrix.setSaturation(0);
-        final ColorMatrixColorFilter colorMatrixFilter = new ColorMatrixColorFilter(colorMatrix);
-        final Bitmap blackAndWhiteBitmap = orginalBitmap.copy(bitmapConfig, true);
-        final Paint paint = new Paint();
-        paint.setColorFilter(colorMatrixFilter);
-        final Canvas canvas = new Canvas(blackAndWhiteBitmap);
-        canvas.drawBitmap(blackAndWhiteBitmap, 0, 0, paint);
+        final int width = orginalBitmap.getWidth();
+        final int height = orginalBitmap.getHeight();
+        final int[] pixels = BitmapPixels.obtainPixels(orginalBitmap);
+        PixelKernels.grayscale(pixels, 0, width, width, height);
+        final Bitmap blackAndWhiteBitmap = BitmapPixels.createBitmap(pixels, width, height, bitmapConfig);
+        BitmapPixels.releaseBuffer(pixels);
         return blackAndWhiteBitmap;
     }
 
@@ -3187,9 +3273,10 @@ public class ImageUtils {
     public String getBase64EncodedPNG(final Bitmap image) {
         String imageDataString = "";
         try {
-            byte imageData[] = getPNGByteArrayFromBitmap(image);
-            // Converting Image byte array into Base64 String
-            imageDataString = Base64.encodeToString(imageData, Base64.DEFAULT);
+            // encoding goes along with compression, no intermediate byte[] is made
+            final String base64 = ImageEncoder.getBase64Encoded(image, CompressFormat.PNG, 0, Base64.DEFAULT);
+            if (base64 != null)
+                imageDataString = base64;
         } catch (OutOfMemoryError e) { //most probably RTE
             e.printStackTrace();
         }
@@ -3206,9 +3293,8 @@ public class ImageUtils {
     public String getBase64EncodedJPEG(final Bitmap image, final int jpegQuality) {
         String imageDataString = null;
         try {
-            byte imageData[] = getJPEGByteArrayFromBitmap(image, jpegQuality);
-            // Converting Image byte array into Base64 String
-            imageDataString = Base64.encodeToString(imageData, Base64.DEFAULT);
+            // encoding goes along with compression, no intermediate byte[] is made
+            imageDataString = ImageEncoder.getBase64Encoded(image, CompressFormat.JPEG, jpegQuality, Base64.DEFAULT);
         } catch (OutOfMemoryError e) { //most probably RTE
             e.printStackTrace();
         }
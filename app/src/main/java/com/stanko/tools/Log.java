@@ -6,7 +6,11 @@ import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
 import android.text.TextUtils;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.IllegalFormatException;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
 * Created by Stan Koshutsky <Stan.Koshutsky@gmail.com>
@@ -17,6 +21,45 @@ public class Log {
     private static boolean doPackageCutOff;
     private static boolean isDebuggable;
 
+    // priorities for level methods, the same as android.util.Log ones
+    public static final int VERBOSE = android.util.Log.VERBOSE;
+    public static final int DEBUG = android.util.Log.DEBUG;
+    public static final int INFO = android.util.Log.INFO;
+    public static final int WARN = android.util.Log.WARN;
+    public static final int ERROR = android.util.Log.ERROR;
+    public static final int ASSERT = android.util.Log.ASSERT;
+
+    /**
+     * Message built only if it is going to be logged
+     */
+    public interface IMessage {
+        String get();
+    }
+
+    // caller location formats of tagless methods
+    private static final int CALLER_NONE = 0;
+    // tag is File.method():line
+    private static final int CALLER_METHOD_NAME = 1;
+    // tag is File, message is method():line
+    private static final int CALLER_CLASS_DOT_METHOD = 2;
+
+    private static final long ASYNC_FLUSH_TIMEOUT = 1000; // ms
+
+    private static volatile AsyncLogger sAsyncLogger;
+    private static volatile LogFileSink sFileSink;
+
+    // Class -> tag with package cut off
+    private static final ConcurrentHashMap<Class<?>, String> sLogTags = new ConcurrentHashMap<>();
+    // caller location -> {File.method():line, File, method():line}
+    private static final ConcurrentHashMap<StackTraceElement, String[]> sCallSiteTags = new ConcurrentHashMap<>();
+    // call sites are limited by the code size, the limit guards against generated code only
+    private static final int MAX_CALL_SITES_COUNT = 4096;
+    private static final String[] UNKNOWN_CALL_SITE_TAGS = {"U/D", "U/D", "U/D"};
+
+    private static volatile int sMinLevel = VERBOSE;
+    // tag -> min priority overriding sMinLevel and debuggable check
+    private static final ConcurrentHashMap<String, Integer> sTagLevels = new ConcurrentHashMap<>();
+
     /**
      * do init for cutting off the app's package name to shorten
      * the resulting Tag string length
@@ -37,6 +80,7 @@ public class Log {
     private static void init(final String packageNameToCutOff) {
         if (doPackageCutOff = !TextUtils.isEmpty(packageNameToCutOff))
             Log.packageNameToCutOff = packageNameToCutOff.lastIndexOf(".") == packageNameToCutOff.length() - 1 ? packageNameToCutOff : packageNameToCutOff + ".";
+        sLogTags.clear();
     }
 
     /**
@@ -47,9 +91,15 @@ public class Log {
      * @return
      */
     public static String getLogTag(final Class<?> tagClass) {
-        if (doPackageCutOff)
-            return tagClass.getName().replace(packageNameToCutOff, "");
-        return tagClass.getName();
+        String logTag = sLogTags.get(tagClass);
+        if (logTag == null) {
+            if (doPackageCutOff)
+                logTag = tagClass.getName().replace(packageNameToCutOff, "");
+            else
+                logTag = tagClass.getName();
+            sLogTags.put(tagClass, logTag);
+        }
+        return logTag;
     }
 
     /**
@@ -60,103 +110,97 @@ public class Log {
      * @return
      */
     public static String getLogTag(Object tagObject) {
-        if (doPackageCutOff)
-            return tagObject.getClass().getName().replace(packageNameToCutOff, "");
-        return tagObject.getClass().getName();
+        return getLogTag(tagObject.getClass());
     }
 
 
     // Method as logTag
     public static void v() {
-        if (isDebuggable) {
-            final String[] classDotMethod = getClassDotMethod();
-            android.util.Log.v(classDotMethod[0], classDotMethod[1]);
-        }
+        if (isLoggable(android.util.Log.VERBOSE))
+            println(android.util.Log.VERBOSE, null, null, new Throwable(), CALLER_CLASS_DOT_METHOD);
     }
 
     public static void d() {
-        if (isDebuggable) {
-            final String[] classDotMethod = getClassDotMethod();
-            android.util.Log.d(classDotMethod[0], classDotMethod[1]);
-        }
+        if (isLoggable(android.util.Log.DEBUG))
+            println(android.util.Log.DEBUG, null, null, new Throwable(), CALLER_CLASS_DOT_METHOD);
     }
 
     public static void i() {
-        if (isDebuggable) {
-            final String[] classDotMethod = getClassDotMethod();
-            android.util.Log.i(classDotMethod[0], classDotMethod[1]);
-        }
+        if (isLoggable(android.util.Log.INFO))
+            println(android.util.Log.INFO, null, null, new Throwable(), CALLER_CLASS_DOT_METHOD);
     }
 
     public static void w() {
-//        if (isDebuggable){
-        final String[] classDotMethod = getClassDotMethod();
-        android.util.Log.w(classDotMethod[0], classDotMethod[1]);
-//        }
+        if (isLoggable(android.util.Log.WARN))
+            println(android.util.Log.WARN, null, null, new Throwable(), CALLER_CLASS_DOT_METHOD);
     }
 
     public static void e() {
-//        if (isDebuggable){
-        final String[] classDotMethod = getClassDotMethod();
-        android.util.Log.e(classDotMethod[0], classDotMethod[1]);
-//        }
+        if (isLoggable(android.util.Log.ERROR))
+            println(android.util.Log.ERROR, null, null, new Throwable(), CALLER_CLASS_DOT_METHOD);
     }
 
 
     // Method as logTag
     public static void v(final String msg) {
-        if (isDebuggable)
-            android.util.Log.v(getMethodName(), msg);
+        if (isLoggable(android.util.Log.VERBOSE))
+            println(android.util.Log.VERBOSE, msg, null, new Throwable(), CALLER_METHOD_NAME);
     }
 
     public static void d(final String msg) {
-        if (isDebuggable)
-            android.util.Log.d(getMethodName(), msg);
+        if (isLoggable(android.util.Log.DEBUG))
+            println(android.util.Log.DEBUG, msg, null, new Throwable(), CALLER_METHOD_NAME);
     }
 
     public static void i(final String msg) {
-        if (isDebuggable)
-            android.util.Log.i(getMethodName(), msg);
+        if (isLoggable(android.util.Log.INFO))
+            println(android.util.Log.INFO, msg, null, new Throwable(), CALLER_METHOD_NAME);
     }
 
     public static void w(final String msg) {
-        android.util.Log.w(getMethodName(), msg);
+        if (isLoggable(android.util.Log.WARN))
+            println(android.util.Log.WARN, msg, null, new Throwable(), CALLER_METHOD_NAME);
     }
 
     public static void e(final String msg) {
-        android.util.Log.e(getMethodName(), msg);
+        if (isLoggable(android.util.Log.ERROR))
+            println(android.util.Log.ERROR, msg, null, new Throwable(), CALLER_METHOD_NAME);
     }
 
     public static void e(final Exception e) {
-        android.util.Log.e(getMethodName(), e.getMessage(), e);
+        if (isLoggable(android.util.Log.ERROR))
+            println(android.util.Log.ERROR, e.getMessage(), e, new Throwable(), CALLER_METHOD_NAME);
     }
 
     public static void e(final Throwable e) {
-        android.util.Log.e(getMethodName(), e.getMessage(), e);
+        if (isLoggable(android.util.Log.ERROR))
+            println(android.util.Log.ERROR, e.getMessage(), e, new Throwable(), CALLER_METHOD_NAME);
     }
 
     // String as logTag
     public static void v(final String logTag, final String msg) {
-        if (isDebuggable)
-            android.util.Log.v(logTag, msg);
+        if (isLoggable(android.util.Log.VERBOSE, logTag))
+            println(android.util.Log.VERBOSE, logTag, null, msg, null);
     }
 
     public static void d(final String logTag, final String msg) {
-        if (isDebuggable)
-            android.util.Log.d(logTag, msg);
+        if (isLoggable(android.util.Log.DEBUG, logTag))
+            println(android.util.Log.DEBUG, logTag, null, msg, null);
     }
 
     public static void i(final String logTag, final String msg) {
-        if (isDebuggable)
-            android.util.Log.i(logTag, msg);
+        if (isLoggable(android.util.Log.INFO, logTag))
+            println(android.util.Log.INFO, logTag, null, msg, null);
     }
 
     public static void w(final String logTag, final String msg) {
-        android.util.Log.w(logTag, msg);
+        if (isLoggable(android.util.Log.WARN, logTag))
+            println(android.util.Log.WARN, logTag, null, msg, null);
     }
 
     public static void e(final String logTag, final String msg) {
-        android.util.Log.e(logTag, msg);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, logTag, null, msg, null);
     }
 
     public static void e(final String logTag, final Exception e) {
@@ -168,92 +212,516 @@ public class Log {
     }
 
     public static void e(final String logTag, final String msg, final Exception e) {
-        android.util.Log.e(logTag, msg, e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, logTag, null, msg, e);
     }
 
     public static void e(final String logTag, final String msg, final Throwable e) {
-        android.util.Log.e(logTag, msg, e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, logTag, null, msg, e);
     }
 
     // Object as logTag => Object.getClass().getName()
     public static void v(final Object logTag, final String msg) {
-        if (isDebuggable)
-            v(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.VERBOSE, logTag))
+            println(android.util.Log.VERBOSE, null, logTag, msg, null);
     }
 
     public static void d(final Object logTag, final String msg) {
-        if (isDebuggable)
-            d(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.DEBUG, logTag))
+            println(android.util.Log.DEBUG, null, logTag, msg, null);
     }
 
     public static void i(final Object logTag, final String msg) {
-        if (isDebuggable)
-            i(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.INFO, logTag))
+            println(android.util.Log.INFO, null, logTag, msg, null);
     }
 
     public static void w(final Object logTag, final String msg) {
-        w(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.WARN, logTag))
+            println(android.util.Log.WARN, null, logTag, msg, null);
     }
 
     public static void e(final Object logTag, final String msg) {
-        e(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, msg, null);
     }
 
     public static void e(final Object logTag, final String msg, final Exception e) {
-        e(getLogTag(logTag), msg, e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, msg, e);
     }
 
     public static void e(final Object logTag, final String msg, final Throwable e) {
-        e(getLogTag(logTag), msg, e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, msg, e);
     }
 
     public static void e(final Object logTag, final Exception e) {
-        e(getLogTag(logTag), e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, e.getMessage(), e);
     }
 
     public static void e(final Object logTag, final Throwable e) {
-        e(getLogTag(logTag), e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, e.getMessage(), e);
     }
 
 
     // Class as logTag => Class.getName()
     public static void v(final Class<?> logTag, final String msg) {
-        if (isDebuggable)
-            v(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.VERBOSE, logTag))
+            println(android.util.Log.VERBOSE, null, logTag, msg, null);
     }
 
     public static void d(final Class<?> logTag, final String msg) {
-        if (isDebuggable)
-            d(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.DEBUG, logTag))
+            println(android.util.Log.DEBUG, null, logTag, msg, null);
     }
 
     public static void i(final Class<?> logTag, final String msg) {
-        if (isDebuggable)
-            i(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.INFO, logTag))
+            println(android.util.Log.INFO, null, logTag, msg, null);
     }
 
     public static void w(final Class<?> logTag, final String msg) {
-        w(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.WARN, logTag))
+            println(android.util.Log.WARN, null, logTag, msg, null);
     }
 
     public static void e(final Class<?> logTag, final String msg) {
-        e(getLogTag(logTag), msg);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, msg, null);
     }
 
     public static void e(final Class<?> logTag, final String msg, final Exception e) {
-        e(getLogTag(logTag), msg, e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, msg, e);
     }
 
     public static void e(final Class<?> logTag, final String msg, final Throwable e) {
-        e(getLogTag(logTag), msg, e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, msg, e);
     }
 
     public static void e(final Class<?> logTag, final Exception e) {
-        e(getLogTag(logTag), e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, e.getMessage(), e);
     }
 
     public static void e(final Class<?> logTag, final Throwable e) {
-        e(getLogTag(logTag), e);
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, e.getMessage(), e);
+    }
+
+    // Lazily built messages: format or IMessage are only called when the level is enabled.
+    // Primitive arguments are still boxed into varargs array, so wrap really hot paths with
+    // isLoggable() instead.
+    public static void v(final IMessage message) {
+        if (isLoggable(android.util.Log.VERBOSE))
+            println(android.util.Log.VERBOSE, message.get(), null, new Throwable(), CALLER_METHOD_NAME);
+    }
+
+    public static void d(final IMessage message) {
+        if (isLoggable(android.util.Log.DEBUG))
+            println(android.util.Log.DEBUG, message.get(), null, new Throwable(), CALLER_METHOD_NAME);
+    }
+
+    public static void i(final IMessage message) {
+        if (isLoggable(android.util.Log.INFO))
+            println(android.util.Log.INFO, message.get(), null, new Throwable(), CALLER_METHOD_NAME);
+    }
+
+    public static void w(final IMessage message) {
+        if (isLoggable(android.util.Log.WARN))
+            println(android.util.Log.WARN, message.get(), null, new Throwable(), CALLER_METHOD_NAME);
+    }
+
+    public static void e(final IMessage message) {
+        if (isLoggable(android.util.Log.ERROR))
+            println(android.util.Log.ERROR, message.get(), null, new Throwable(), CALLER_METHOD_NAME);
+    }
+
+    public static void v(final String logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.VERBOSE, logTag))
+            println(android.util.Log.VERBOSE, logTag, null, message.get(), null);
+    }
+
+    public static void d(final String logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.DEBUG, logTag))
+            println(android.util.Log.DEBUG, logTag, null, message.get(), null);
+    }
+
+    public static void i(final String logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.INFO, logTag))
+            println(android.util.Log.INFO, logTag, null, message.get(), null);
+    }
+
+    public static void w(final String logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.WARN, logTag))
+            println(android.util.Log.WARN, logTag, null, message.get(), null);
+    }
+
+    public static void e(final String logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, logTag, null, message.get(), null);
+    }
+
+    public static void v(final Object logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.VERBOSE, logTag))
+            println(android.util.Log.VERBOSE, null, logTag, message.get(), null);
+    }
+
+    public static void d(final Object logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.DEBUG, logTag))
+            println(android.util.Log.DEBUG, null, logTag, message.get(), null);
+    }
+
+    public static void i(final Object logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.INFO, logTag))
+            println(android.util.Log.INFO, null, logTag, message.get(), null);
+    }
+
+    public static void w(final Object logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.WARN, logTag))
+            println(android.util.Log.WARN, null, logTag, message.get(), null);
+    }
+
+    public static void e(final Object logTag, final IMessage message) {
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, message.get(), null);
+    }
+
+    // there are no tagless format methods since v(String, String) takes a tag first
+    public static void v(final String logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.VERBOSE, logTag))
+            println(android.util.Log.VERBOSE, logTag, null, format(format, args), null);
+    }
+
+    public static void d(final String logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.DEBUG, logTag))
+            println(android.util.Log.DEBUG, logTag, null, format(format, args), null);
+    }
+
+    public static void i(final String logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.INFO, logTag))
+            println(android.util.Log.INFO, logTag, null, format(format, args), null);
+    }
+
+    public static void w(final String logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.WARN, logTag))
+            println(android.util.Log.WARN, logTag, null, format(format, args), null);
+    }
+
+    public static void e(final String logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, logTag, null, format(format, args), null);
+    }
+
+    public static void v(final Object logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.VERBOSE, logTag))
+            println(android.util.Log.VERBOSE, null, logTag, format(format, args), null);
+    }
+
+    public static void d(final Object logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.DEBUG, logTag))
+            println(android.util.Log.DEBUG, null, logTag, format(format, args), null);
+    }
+
+    public static void i(final Object logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.INFO, logTag))
+            println(android.util.Log.INFO, null, logTag, format(format, args), null);
+    }
+
+    public static void w(final Object logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.WARN, logTag))
+            println(android.util.Log.WARN, null, logTag, format(format, args), null);
+    }
+
+    public static void e(final Object logTag, final String format, final Object... args) {
+        if (isLoggable(android.util.Log.ERROR, logTag))
+            println(android.util.Log.ERROR, null, logTag, format(format, args), null);
+    }
+
+    private static String format(final String format, final Object... args) {
+        try {
+            return String.format(Locale.US, format, args);
+        } catch (IllegalFormatException e) {
+            // a broken format must not break the caller
+            return format + " " + Arrays.toString(args);
+        }
+    }
+
+    //
+    // Levels
+    //
+
+    /**
+     * Sets minimum priority of logged messages, VERBOSE by default. VERBOSE, DEBUG and INFO
+     * messages are logged only if the app is debuggable in addition.
+     *
+     * @param priority - Log.VERBOSE..Log.ASSERT, ASSERT turns off all but per tag levels
+     */
+    public static void setMinLevel(final int priority) {
+        sMinLevel = priority;
+    }
+
+    public static int getMinLevel() {
+        return sMinLevel;
+    }
+
+    /**
+     * Overrides minimum priority for given tag, both in debuggable and release builds
+     *
+     * @param logTag   - tag as it is printed, i.e. with package cut off for Object and Class tags
+     * @param priority - minimum priority of logged messages of the tag
+     */
+    public static void setTagLevel(final String logTag, final int priority) {
+        if (logTag != null)
+            sTagLevels.put(logTag, priority);
+    }
+
+    public static void removeTagLevel(final String logTag) {
+        if (logTag != null)
+            sTagLevels.remove(logTag);
+    }
+
+    public static void clearTagLevels() {
+        sTagLevels.clear();
+    }
+
+    /**
+     * Checks global level, tagless methods are not affected by per tag levels
+     */
+    public static boolean isLoggable(final int priority) {
+        return priority >= sMinLevel && (priority >= android.util.Log.WARN || isDebuggable);
+    }
+
+    public static boolean isLoggable(final int priority, final String logTag) {
+        if (logTag != null && !sTagLevels.isEmpty()) {
+            final Integer tagLevel = sTagLevels.get(logTag);
+            if (tagLevel != null)
+                return priority >= tagLevel;
+        }
+        return isLoggable(priority);
+    }
+
+    /**
+     * @param logTag - Object or Class the tag is made of
+     */
+    public static boolean isLoggable(final int priority, final Object logTag) {
+        // tag is resolved only if there are per tag levels
+        if (logTag != null && !sTagLevels.isEmpty())
+            return isLoggable(priority, resolveLogTag(logTag));
+        return isLoggable(priority);
+    }
+
+    //
+    // Output
+    //
+
+    /**
+     * Enables or disables asynchronous logging with default buffer capacity dropping events
+     * when it is full
+     *
+     * @see #setAsync(int, AsyncLogger.OverflowPolicy)
+     */
+    public static void setAsync(final boolean isEnabled) {
+        if (isEnabled)
+            setAsync(AsyncLogger.DEFAULT_CAPACITY, AsyncLogger.OverflowPolicy.DROP);
+        else
+            setAsync(0, null);
+    }
+
+    /**
+     * In asynchronous mode log calls only put their arguments to a ring buffer while tags,
+     * caller locations and messages are resolved and written on a background thread.
+     *
+     * @param capacity       - count of buffered events, 0 to log synchronously
+     * @param overflowPolicy - what to do when the buffer is full, see AsyncLogger.OverflowPolicy
+     */
+    public static synchronized void setAsync(final int capacity, final AsyncLogger.OverflowPolicy overflowPolicy) {
+        final AsyncLogger oldAsyncLogger = sAsyncLogger;
+        sAsyncLogger = capacity > 0 ? new AsyncLogger(capacity, overflowPolicy) : null;
+        if (oldAsyncLogger != null) {
+            oldAsyncLogger.flush(ASYNC_FLUSH_TIMEOUT);
+            oldAsyncLogger.stop();
+        }
+    }
+
+    public static boolean isAsync() {
+        return sAsyncLogger != null;
+    }
+
+    /**
+     * @return count of events dropped by asynchronous logging because its buffer was full
+     */
+    public static long getDroppedCount() {
+        final AsyncLogger asyncLogger = sAsyncLogger;
+        return asyncLogger == null ? 0 : asyncLogger.getDroppedCount();
+    }
+
+    /**
+     * Waits until events logged asynchronously before the call are written
+     *
+     * @param timeout - max time to wait in milliseconds
+     * @return false if timed out
+     */
+    public static boolean flush(final long timeout) {
+        final AsyncLogger asyncLogger = sAsyncLogger;
+        final boolean isFlushed = asyncLogger == null || asyncLogger.flush(timeout);
+        final LogFileSink fileSink = sFileSink;
+        return fileSink == null ? isFlushed : fileSink.flush() && isFlushed;
+    }
+
+    /**
+     * Additionally writes all logged messages to rotating files, best together with
+     * setAsync(true) so files are formatted on the background thread. Messages below the levels
+     * set by setMinLevel() and setTagLevel() are not written to files either.
+     *
+     * @param fileSink - files to write to or null to stop writing, previous sink is flushed and closed
+     */
+    public static synchronized void setFileSink(final LogFileSink fileSink) {
+        final AsyncLogger asyncLogger = sAsyncLogger;
+        if (asyncLogger != null)
+            asyncLogger.flush(ASYNC_FLUSH_TIMEOUT);
+        final LogFileSink oldFileSink = sFileSink;
+        sFileSink = fileSink;
+        if (oldFileSink != null && oldFileSink != fileSink)
+            oldFileSink.close();
+    }
+
+    public static LogFileSink getFileSink() {
+        return sFileSink;
+    }
+
+    /**
+     * Zips log files of current file sink to attach them to a support ticket, logging continues
+     * meanwhile
+     *
+     * @param zipFile - archive to write, overwritten if exists
+     * @return false if there is no file sink, no log files or they could not be zipped
+     */
+    public static boolean zipLogFiles(final File zipFile) {
+        final LogFileSink fileSink = sFileSink;
+        if (fileSink == null)
+            return false;
+        // let events logged before the call reach the sink
+        final AsyncLogger asyncLogger = sAsyncLogger;
+        if (asyncLogger != null)
+            asyncLogger.flush(ASYNC_FLUSH_TIMEOUT);
+        return fileSink.zipTo(zipFile);
+    }
+
+    private static void println(final int priority,
+                                final String logTag,
+                                final Object tagSource,
+                                final String msg,
+                                final Throwable throwable) {
+        final AsyncLogger asyncLogger = sAsyncLogger;
+        if (asyncLogger != null)
+            asyncLogger.enqueue(priority, logTag, tagSource, msg, throwable, null, CALLER_NONE);
+        else
+            write(priority, logTag != null ? logTag : resolveLogTag(tagSource), msg, throwable, 0, null);
+    }
+
+    /**
+     * @param caller       - Throwable created in public Log method, so its caller is next frame
+     * @param callerFormat - how caller location makes tag and message
+     */
+    private static void println(final int priority,
+                                final String msg,
+                                final Throwable throwable,
+                                final Throwable caller,
+                                final int callerFormat) {
+        final AsyncLogger asyncLogger = sAsyncLogger;
+        if (asyncLogger != null)
+            asyncLogger.enqueue(priority, null, null, msg, throwable, caller, callerFormat);
+        else
+            writeWithCaller(priority, msg, throwable, caller, callerFormat, 0, null);
+    }
+
+    /**
+     * Writes an event taken from AsyncLogger buffer, called on its consumer thread
+     */
+    static void write(final AsyncLogger.LogEvent event) {
+        if (event.caller != null)
+            writeWithCaller(event.priority, event.msg, event.throwable, event.caller, event.callerFormat,
+                    event.time, event.threadName);
+        else
+            write(event.priority, event.tag != null ? event.tag : resolveLogTag(event.tagSource), event.msg, event.throwable,
+                    event.time, event.threadName);
+    }
+
+    private static String resolveLogTag(final Object tagSource) {
+        if (tagSource instanceof Class)
+            return getLogTag((Class<?>) tagSource);
+        return getLogTag(tagSource);
+    }
+
+    private static void writeWithCaller(final int priority,
+                                        final String msg,
+                                        final Throwable throwable,
+                                        final Throwable caller,
+                                        final int callerFormat,
+                                        final long time,
+                                        final String threadName) {
+        // caller is the next frame after public Log method
+        final String[] callSiteTags = getCallSiteTags(caller, 1);
+        if (callerFormat == CALLER_CLASS_DOT_METHOD)
+            write(priority, callSiteTags[1], callSiteTags[2], throwable, time, threadName);
+        else
+            write(priority, callSiteTags[0], msg, throwable, time, threadName);
+    }
+
+    /**
+     * Returns cached tags of the call site found at given depth of the stack trace of given
+     * Throwable, so a call site is formatted only once. The cache saves formatting only:
+     * creating the Throwable still captures the whole stack and getStackTrace() still builds
+     * all its frames, since Android has neither StackWalker nor any other depth-limited walk.
+     * Throwable is used instead of Thread.getStackTrace() since its trace starts at the frame
+     * it was created in, so depth does not depend on VM internals, and its frames could be
+     * built later on AsyncLogger thread.
+     *
+     * @return {File.method():line, File, method():line}
+     */
+    private static String[] getCallSiteTags(final Throwable caller, final int depth) {
+        final StackTraceElement[] stackTraceElements = caller.getStackTrace();
+        if (stackTraceElements == null || stackTraceElements.length <= depth || stackTraceElements[depth] == null)
+            return UNKNOWN_CALL_SITE_TAGS;
+        final StackTraceElement stackTraceElement = stackTraceElements[depth];
+        String[] callSiteTags = sCallSiteTags.get(stackTraceElement);
+        if (callSiteTags == null) {
+            final String methodAndLine = stackTraceElement.getMethodName() + "():" + stackTraceElement.getLineNumber();
+            callSiteTags = new String[]{
+                    stackTraceElement.getFileName() + "." + methodAndLine,
+                    stackTraceElement.getFileName(),
+                    methodAndLine};
+            if (sCallSiteTags.size() >= MAX_CALL_SITES_COUNT)
+                sCallSiteTags.clear();
+            sCallSiteTags.put(stackTraceElement, callSiteTags);
+        }
+        return callSiteTags;
+    }
+
+    /**
+     * @param time       - event time or 0 for now
+     * @param threadName - thread the event was logged on or null for current one
+     */
+    private static void write(final int priority,
+                              final String logTag,
+                              final String msg,
+                              final Throwable throwable,
+                              final long time,
+                              final String threadName) {
+        final String stackTrace = throwable == null ? null : android.util.Log.getStackTraceString(throwable);
+        if (stackTrace == null)
+            android.util.Log.println(priority, logTag, msg == null ? "null" : msg);
+        else
+            android.util.Log.println(priority, logTag, msg + '\n' + stackTrace);
+        final LogFileSink fileSink = sFileSink;
+        if (fileSink != null)
+            fileSink.append(priority, time, threadName, logTag, msg, stackTrace);
     }
 
     /**
@@ -263,24 +731,8 @@ public class Log {
      * @return method name
      */
     public static String getMethodName() {
-        String methodName = "U/D";
-        StackTraceElement[] stackTraceElements;
-        StackTraceElement stackTraceElement;
-        stackTraceElements = Thread.currentThread().getStackTrace();
-        if (stackTraceElements == null || stackTraceElements.length < 5) {
-            stackTraceElements = (new Throwable()).getStackTrace();
-            if (stackTraceElements == null || stackTraceElements.length < 3) {
-                return methodName;
-            } else {
-                stackTraceElement = stackTraceElements[2];
-            }
-        } else {
-            stackTraceElement = stackTraceElements[4];
-        }
-        if (stackTraceElement != null) {
-            methodName = String.format(Locale.US, "%s.%s():%d", stackTraceElement.getFileName(), stackTraceElement.getMethodName(), stackTraceElement.getLineNumber());
-        }
-        return methodName;
+        // [0] is this method, [1] is the method containing Log call, [2] is its caller
+        return getCallSiteTags(new Throwable(), 2)[0];
     }
 
     /**
@@ -290,26 +742,8 @@ public class Log {
      * @return
      */
     public static String[] getClassDotMethod() {
-        final String[] classMethod = new String[]{"U/D", "U/D"};
-        //String methodName = "U/D";
-        StackTraceElement[] stackTraceElements;
-        StackTraceElement stackTraceElement;
-        stackTraceElements = Thread.currentThread().getStackTrace();
-        if (stackTraceElements == null || stackTraceElements.length < 5) {
-            stackTraceElements = (new Throwable()).getStackTrace();
-            if (stackTraceElements == null || stackTraceElements.length < 3) {
-                return classMethod;
-            } else {
-                stackTraceElement = stackTraceElements[2];
-            }
-        } else {
-            stackTraceElement = stackTraceElements[4];
-        }
-        if (stackTraceElement != null) {
-            classMethod[0] = stackTraceElement.getFileName();
-            classMethod[1] = String.format(Locale.US, "%s():%d", stackTraceElement.getMethodName(), stackTraceElement.getLineNumber());
-        }
-        return classMethod;
+        final String[] callSiteTags = getCallSiteTags(new Throwable(), 2);
+        return new String[]{callSiteTags[1], callSiteTags[2]};
     }
 
     private final static int DIVIDER_LENGTH = 120;
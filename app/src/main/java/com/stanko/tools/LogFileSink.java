@@ -0,0 +1,333 @@
+package com.stanko.tools;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotating log files set by Log.setFileSink().
+ * <p>
+ * Events are formatted into a memory buffer by the thread writing them (the AsyncLogger consumer
+ * in asynchronous mode) and the buffer is appended to the current file in background by a single
+ * write at most once per flush interval. When the current file would grow over its max size it
+ * becomes generation 1, previous generations are shifted and the oldest one is deleted:
+ * <p>
+ * app.log, app.1.log, ... app.(N-1).log
+ * <p>
+ * Until a batch is written the buffer grows up to max file size, events over that are dropped and
+ * counted. Sink reports its own failures to android.util.Log so they never loop back to it.
+ */
+public class LogFileSink {
+
+    private static final String LOG_TAG = LogFileSink.class.getSimpleName();
+
+    public static final String DEFAULT_BASE_NAME = "app";
+    public static final long DEFAULT_MAX_FILE_SIZE = 512 * 1024;
+    public static final int DEFAULT_GENERATIONS = 4;
+    public static final long DEFAULT_FLUSH_INTERVAL = 2000; // ms
+
+    private static final String EXTENSION = ".log";
+    private static final String PRIORITY_LETTERS = "??VDIWEA";
+
+    private static ScheduledThreadPoolExecutor sExecutor;
+
+    private final File mDir;
+    private final String mBaseName;
+    private final long mMaxFileSize;
+    private final int mGenerations;
+    private final long mFlushInterval;
+
+    // guarded by this
+    private StringBuilder mBuffer = new StringBuilder();
+    private final Calendar mCalendar = Calendar.getInstance();
+    private boolean mIsFlushScheduled;
+    private int mDroppedCount;
+
+    // guarded by mFileLock, taken before this never after
+    private final Object mFileLock = new Object();
+    private FileOutputStream mOutputStream;
+    private long mFileSize;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LogFileSink.this) {
+                mIsFlushScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ScheduledThreadPoolExecutor(1, new BackgroundThreadFactory());
+            sExecutor.setKeepAliveTime(10, TimeUnit.SECONDS);
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Sink writing to "logs" dir of app files dir with default limits
+     */
+    public LogFileSink(final Context context) {
+        this(new File(context.getFilesDir(), "logs"), DEFAULT_BASE_NAME, DEFAULT_MAX_FILE_SIZE,
+                DEFAULT_GENERATIONS, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * @param dir           - directory of log files, created if needed
+     * @param baseName      - file name without extension
+     * @param maxFileSize   - max size of a single file in bytes
+     * @param generations   - count of files kept including the current one
+     * @param flushInterval - min time between writes in milliseconds
+     */
+    public LogFileSink(final File dir,
+                       final String baseName,
+                       final long maxFileSize,
+                       final int generations,
+                       final long flushInterval) {
+        if (dir == null || baseName == null || maxFileSize <= 0 || generations < 1)
+            throw new IllegalArgumentException("Directory and name must not be null, size and generations must be positive");
+        mDir = dir;
+        mBaseName = baseName;
+        mMaxFileSize = maxFileSize;
+        mGenerations = generations;
+        mFlushInterval = Math.max(0, flushInterval);
+    }
+
+    public File getDir() {
+        return mDir;
+    }
+
+    /**
+     * @param generation - 0 for the current file
+     */
+    public File getFile(final int generation) {
+        return new File(mDir, generation == 0 ? mBaseName + EXTENSION : mBaseName + "." + generation + EXTENSION);
+    }
+
+    /**
+     * @return existing log files from the oldest to the current one
+     */
+    public File[] getFiles() {
+        final ArrayList<File> files = new ArrayList<>();
+        for (int generation = mGenerations - 1; generation >= 0; generation--) {
+            final File file = getFile(generation);
+            if (file.exists())
+                files.add(file);
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    //
+    // Buffering
+    //
+
+    /**
+     * Formats an event into the buffer and schedules writing it
+     *
+     * @param time       - event time, 0 for now
+     * @param threadName - thread the event was logged on, null for current one
+     * @param stackTrace - stack trace of logged Throwable or null
+     */
+    void append(final int priority,
+                final long time,
+                final String threadName,
+                final String logTag,
+                final String msg,
+                final String stackTrace) {
+        synchronized (this) {
+            if (mBuffer.length() >= mMaxFileSize) {
+                mDroppedCount++;
+                return;
+            }
+            appendTime(time == 0 ? System.currentTimeMillis() : time);
+            mBuffer.append(' ')
+                    .append(PRIORITY_LETTERS.charAt(priority >= 0 && priority < PRIORITY_LETTERS.length() ? priority : 0))
+                    .append('/')
+                    .append(logTag)
+                    .append('(')
+                    .append(threadName == null ? Thread.currentThread().getName() : threadName)
+                    .append("): ")
+                    .append(msg)
+                    .append('\n');
+            if (stackTrace != null && stackTrace.length() > 0)
+                mBuffer.append(stackTrace).append('\n');
+            if (mIsFlushScheduled)
+                return;
+            mIsFlushScheduled = true;
+        }
+        getExecutor().schedule(mFlushRunnable, mFlushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // MM-dd HH:mm:ss.SSS as logcat does, without SimpleDateFormat per event
+    private void appendTime(final long time) {
+        mCalendar.setTimeInMillis(time);
+        appendPadded(mCalendar.get(Calendar.MONTH) + 1, 2).append('-');
+        appendPadded(mCalendar.get(Calendar.DAY_OF_MONTH), 2).append(' ');
+        appendPadded(mCalendar.get(Calendar.HOUR_OF_DAY), 2).append(':');
+        appendPadded(mCalendar.get(Calendar.MINUTE), 2).append(':');
+        appendPadded(mCalendar.get(Calendar.SECOND), 2).append('.');
+        appendPadded(mCalendar.get(Calendar.MILLISECOND), 3);
+    }
+
+    private StringBuilder appendPadded(final int value, final int length) {
+        for (int limit = 10, i = 1; i < length; i++, limit *= 10)
+            if (value < limit)
+                mBuffer.append('0');
+        return mBuffer.append(value);
+    }
+
+    //
+    // Writing
+    //
+
+    /**
+     * Writes buffered events now, called by scheduled flush and by Log.flush()
+     *
+     * @return false if they could not be written
+     */
+    public boolean flush() {
+        synchronized (mFileLock) {
+            final String batch;
+            final int droppedCount;
+            synchronized (this) {
+                droppedCount = mDroppedCount;
+                if (droppedCount == 0 && mBuffer.length() == 0)
+                    return true;
+                if (droppedCount > 0)
+                    mBuffer.append("--- ").append(droppedCount).append(" log lines dropped ---\n");
+                mDroppedCount = 0;
+                batch = mBuffer.toString();
+                mBuffer = new StringBuilder(batch.length());
+            }
+            if (write(batch))
+                return true;
+            int linesCount = droppedCount;
+            for (int i = 0; i < batch.length(); i++)
+                if (batch.charAt(i) == '\n')
+                    linesCount++;
+            synchronized (this) {
+                // the lost batch is reported by the marker of the next one, the old marker excluded
+                mDroppedCount += droppedCount > 0 ? linesCount - 1 : linesCount;
+            }
+            return false;
+        }
+    }
+
+    // called holding mFileLock
+    private boolean write(final String batch) {
+        final byte[] bytes;
+        try {
+            bytes = batch.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            return false;
+        }
+        try {
+            if (mOutputStream == null)
+                open(bytes.length);
+            else if (mFileSize > 0 && mFileSize + bytes.length > mMaxFileSize) {
+                rotate();
+                open(bytes.length);
+            }
+            // the single write of the batch
+            mOutputStream.write(bytes);
+            mFileSize += bytes.length;
+            return true;
+        } catch (IOException e) {
+            android.util.Log.e(LOG_TAG, "Could not write log file", e);
+            closeStream();
+            return false;
+        }
+    }
+
+    /**
+     * @param batchLength - bytes to be written, a file left by previous process is rotated if
+     *                    they do not fit into it
+     */
+    private void open(final long batchLength) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs())
+            throw new IOException("Could not create " + mDir);
+        final File file = getFile(0);
+        mFileSize = file.length();
+        if (mFileSize > 0 && mFileSize + batchLength > mMaxFileSize)
+            rotate();
+        mOutputStream = new FileOutputStream(file, true);
+    }
+
+    private void rotate() {
+        closeStream();
+        final File oldestFile = getFile(mGenerations - 1);
+        if (oldestFile.exists() && !oldestFile.delete())
+            android.util.Log.w(LOG_TAG, "Could not delete " + oldestFile);
+        for (int generation = mGenerations - 1; generation > 0; generation--) {
+            final File file = getFile(generation - 1);
+            if (file.exists() && !file.renameTo(getFile(generation)))
+                android.util.Log.w(LOG_TAG, "Could not rename " + file);
+        }
+        // with a single generation the current file is deleted above
+        mFileSize = 0;
+    }
+
+    private void closeStream() {
+        if (mOutputStream != null) {
+            try {
+                mOutputStream.close();
+            } catch (IOException ignored) {
+            }
+            mOutputStream = null;
+        }
+    }
+
+    /**
+     * Zips all log files for sending them to support. Events logged meanwhile are kept in the
+     * buffer and written after zipping is done, so logging is never stopped.
+     *
+     * @param zipFile - archive to write, overwritten if exists
+     * @return true if succeed
+     */
+    public boolean zipTo(final File zipFile) {
+        synchronized (mFileLock) {
+            flush();
+            final File[] files = getFiles();
+            if (files.length == 0)
+                return false;
+            return ZipHelper.zip(files, mDir, zipFile);
+        }
+    }
+
+    /**
+     * Writes buffered events and closes the current file, it is opened again by the next write
+     */
+    public void close() {
+        synchronized (mFileLock) {
+            flush();
+            closeStream();
+        }
+    }
+
+    /**
+     * Deletes all log files and buffered events
+     */
+    public void clear() {
+        synchronized (mFileLock) {
+            synchronized (this) {
+                mBuffer.setLength(0);
+                mDroppedCount = 0;
+            }
+            closeStream();
+            for (File file : getFiles())
+                if (!file.delete())
+                    android.util.Log.w(LOG_TAG, "Could not delete " + file);
+        }
+    }
+}
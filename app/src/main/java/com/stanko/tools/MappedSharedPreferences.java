@@ -0,0 +1,569 @@
+package com.stanko.tools;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * SharedPreferences kept in an append-only binary log mapped into memory, an alternative
+ * SharedPrefsHelper storage for preferences with many keys or big values:
+ * <p>
+ * SharedPrefsHelper.setStorage(MappedSharedPreferences.STORAGE);
+ * <p>
+ * Every Editor.commit() appends a single typed record with all its changes, so writing a key
+ * costs the size of the record rather than rewriting the whole file like platform XML
+ * preferences do. Each record has its length and CRC32, so after a crash the log is read up to
+ * the last complete record. When the log is full it is compacted: a snapshot of current values
+ * is written to a temp file which replaces the log, growing it if needed.
+ * <p>
+ * Values are stored with their types so getters behave like platform ones: missing key returns
+ * default value and a key of another type throws ClassCastException.
+ */
+public class MappedSharedPreferences implements SharedPreferences {
+
+    private static final String LOG_TAG = MappedSharedPreferences.class.getSimpleName();
+
+    public static final String FILE_EXTENSION = ".kvlog";
+    public static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private static final int LOG_MAGIC = 0x4B564C47; // "KVLG"
+    private static final int LOG_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // record length and CRC32
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte TYPE_REMOVED = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    // marks removed keys in editor changes
+    private static final Object REMOVED = new Object();
+
+    /**
+     * SharedPrefsHelper storage keeping preferences in application files directory
+     */
+    public static final SharedPrefsHelper.IStorage STORAGE = new SharedPrefsHelper.IStorage() {
+        @Override
+        public SharedPreferences getSharedPreferences(final Context appContext, final String sharedPrefsName) {
+            return getInstance(new File(appContext.getFilesDir(), sharedPrefsName + FILE_EXTENSION));
+        }
+    };
+
+    private final static HashMap<String, MappedSharedPreferences> sInstances = new HashMap<>();
+
+    private final File mFile;
+    // current values, read lock-free
+    private final ConcurrentHashMap<String, Object> mValues = new ConcurrentHashMap<>();
+    // guards the log
+    private final Object mLock = new Object();
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+    private int mPosition;
+
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> mListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param file - log file, created if does not exist
+     * @return the only instance for given file since two instances could not share a log
+     */
+    public static MappedSharedPreferences getInstance(final File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        synchronized (sInstances) {
+            MappedSharedPreferences instance = sInstances.get(path);
+            if (instance == null) {
+                instance = new MappedSharedPreferences(file);
+                sInstances.put(path, instance);
+            }
+            return instance;
+        }
+    }
+
+    private MappedSharedPreferences(final File file) {
+        mFile = file;
+        synchronized (mLock) {
+            try {
+                load();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e);
+            }
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    //
+    // Log
+    //
+
+    private void map(final int capacity) throws IOException {
+        if (mRandomAccessFile != null)
+            mRandomAccessFile.close();
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        final long length = Math.max(capacity, mRandomAccessFile.length());
+        mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    /**
+     * Maps the log and replays it into memory stopping at first incomplete or damaged record
+     */
+    private void load() throws IOException {
+        final File parentDir = mFile.getAbsoluteFile().getParentFile();
+        if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs())
+            throw new IOException("Could not create dir: " + parentDir);
+        final boolean isNew = !mFile.exists() || mFile.length() < HEADER_SIZE;
+        map(INITIAL_CAPACITY);
+        if (isNew || mBuffer.getInt(0) != LOG_MAGIC || mBuffer.getInt(4) != LOG_VERSION) {
+            if (!isNew)
+                Log.w(LOG_TAG, "Unknown log format, starting empty: " + mFile);
+            writeSnapshot(new HashMap<String, Object>(), INITIAL_CAPACITY);
+            return;
+        }
+
+        final CRC32 crc = new CRC32();
+        int position = HEADER_SIZE;
+        final int capacity = mBuffer.capacity();
+        while (position + RECORD_HEADER_SIZE <= capacity) {
+            final int length = mBuffer.getInt(position);
+            final int checksum = mBuffer.getInt(position + 4);
+            if (length <= 0 || length > capacity - position - RECORD_HEADER_SIZE)
+                break;
+            final byte[] record = new byte[length];
+            mBuffer.position(position + RECORD_HEADER_SIZE);
+            mBuffer.get(record);
+            crc.reset();
+            crc.update(record, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                Log.w(LOG_TAG, "Damaged record at " + position + ", dropping the rest of log: " + mFile);
+                break;
+            }
+            try {
+                readRecord(record, mValues);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e);
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        mPosition = position;
+
+        // wipe a torn tail so it could never be taken for a record after next appends
+        for (int i = position; i < capacity && i < position + RECORD_HEADER_SIZE; i++)
+            mBuffer.put(i, (byte) 0);
+        boolean isDirty = false;
+        for (int i = position + RECORD_HEADER_SIZE; i < capacity; i++)
+            if (mBuffer.get(i) != 0) {
+                mBuffer.put(i, (byte) 0);
+                isDirty = true;
+            }
+        if (isDirty)
+            mBuffer.force();
+    }
+
+    /**
+     * Writes given values as the only record of a new log which replaces current one
+     */
+    private void writeSnapshot(final Map<String, Object> values, final int minCapacity) throws IOException {
+        final byte[] record = writeRecord(true, values);
+        int capacity = Math.max(INITIAL_CAPACITY, minCapacity);
+        // leave at least the same space for appends
+        while (capacity < (HEADER_SIZE + RECORD_HEADER_SIZE + record.length) * 2)
+            capacity *= 2;
+
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile tempRandomAccessFile = null;
+        try {
+            tempRandomAccessFile = new RandomAccessFile(tempFile, "rw");
+            tempRandomAccessFile.setLength(0);
+            tempRandomAccessFile.writeInt(LOG_MAGIC);
+            tempRandomAccessFile.writeInt(LOG_VERSION);
+            tempRandomAccessFile.writeInt(record.length);
+            tempRandomAccessFile.writeInt(getChecksum(record));
+            tempRandomAccessFile.write(record);
+            tempRandomAccessFile.setLength(capacity);
+            tempRandomAccessFile.getFD().sync();
+        } finally {
+            if (tempRandomAccessFile != null)
+                try {
+                    tempRandomAccessFile.close();
+                } catch (IOException ignored) {
+                }
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Could not replace log: " + mFile);
+        }
+        map(capacity);
+        mPosition = HEADER_SIZE + RECORD_HEADER_SIZE + record.length;
+    }
+
+    /**
+     * Appends a record of given changes compacting the log if it does not fit
+     */
+    private void append(final boolean isCleared, final HashMap<String, Object> changes, final boolean isForced) throws IOException {
+        if (mBuffer == null)
+            load();
+        final byte[] record = writeRecord(isCleared, changes);
+        if (mPosition + RECORD_HEADER_SIZE + record.length > mBuffer.capacity()) {
+            final HashMap<String, Object> values = isCleared ? new HashMap<String, Object>() : new HashMap<String, Object>(mValues);
+            applyChanges(changes, values);
+            writeSnapshot(values, mBuffer.capacity());
+            return;
+        }
+        // record body first, so its header never points to missing data
+        mBuffer.position(mPosition + RECORD_HEADER_SIZE);
+        mBuffer.put(record);
+        mBuffer.putInt(mPosition + 4, getChecksum(record));
+        mBuffer.putInt(mPosition, record.length);
+        mPosition += RECORD_HEADER_SIZE + record.length;
+        if (isForced)
+            mBuffer.force();
+    }
+
+    private static int getChecksum(final byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] writeRecord(final boolean isCleared, final Map<String, Object> changes) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeBoolean(isCleared);
+        dos.writeInt(changes.size());
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            final Object value = entry.getValue();
+            if (value == REMOVED || value == null) {
+                dos.writeByte(TYPE_REMOVED);
+                dos.writeUTF(entry.getKey());
+            } else if (value instanceof String) {
+                dos.writeByte(TYPE_STRING);
+                dos.writeUTF(entry.getKey());
+                writeString(dos, (String) value);
+            } else if (value instanceof Integer) {
+                dos.writeByte(TYPE_INT);
+                dos.writeUTF(entry.getKey());
+                dos.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                dos.writeByte(TYPE_LONG);
+                dos.writeUTF(entry.getKey());
+                dos.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                dos.writeByte(TYPE_FLOAT);
+                dos.writeUTF(entry.getKey());
+                dos.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                dos.writeByte(TYPE_BOOLEAN);
+                dos.writeUTF(entry.getKey());
+                dos.writeBoolean((Boolean) value);
+            } else if (value instanceof Set) {
+                final Set<String> strings = (Set<String>) value;
+                dos.writeByte(TYPE_STRING_SET);
+                dos.writeUTF(entry.getKey());
+                dos.writeInt(strings.size());
+                for (String string : strings)
+                    writeString(dos, string);
+            }
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    private static void readRecord(final byte[] record, final Map<String, Object> values) throws IOException {
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record));
+        if (dis.readBoolean())
+            values.clear();
+        final int count = dis.readInt();
+        for (int i = 0; i < count; i++) {
+            final byte type = dis.readByte();
+            final String key = dis.readUTF();
+            switch (type) {
+                case TYPE_REMOVED:
+                    values.remove(key);
+                    break;
+                case TYPE_STRING:
+                    values.put(key, readString(dis));
+                    break;
+                case TYPE_INT:
+                    values.put(key, dis.readInt());
+                    break;
+                case TYPE_LONG:
+                    values.put(key, dis.readLong());
+                    break;
+                case TYPE_FLOAT:
+                    values.put(key, dis.readFloat());
+                    break;
+                case TYPE_BOOLEAN:
+                    values.put(key, dis.readBoolean());
+                    break;
+                case TYPE_STRING_SET:
+                    final int size = dis.readInt();
+                    final HashSet<String> strings = new HashSet<>(size);
+                    for (int j = 0; j < size; j++)
+                        strings.add(readString(dis));
+                    values.put(key, strings);
+                    break;
+                default:
+                    throw new IOException("Unknown record type: " + type);
+            }
+        }
+    }
+
+    // writeUTF() is limited by 64K while serialized objects could be bigger
+    private static void writeString(final DataOutputStream dos, final String string) throws IOException {
+        final byte[] bytes = string.getBytes("UTF-8");
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(final DataInputStream dis) throws IOException {
+        final byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void applyChanges(final Map<String, Object> changes, final Map<String, Object> values) {
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            if (entry.getValue() == REMOVED)
+                values.remove(entry.getKey());
+            else
+                values.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Rewrites the log keeping only current values
+     *
+     * @return false if log could not be written
+     */
+    public boolean compact() {
+        synchronized (mLock) {
+            try {
+                writeSnapshot(new HashMap<String, Object>(mValues), INITIAL_CAPACITY);
+                return true;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Commits changes writing them to the log first
+     *
+     * @param isForced - flush mapped log to storage before return
+     */
+    private boolean commit(final boolean isCleared, final HashMap<String, Object> changes, final boolean isForced) {
+        if (!isCleared && changes.isEmpty())
+            return true;
+        synchronized (mLock) {
+            try {
+                append(isCleared, changes, isForced);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e);
+                return false;
+            }
+            if (isCleared)
+                mValues.clear();
+            applyChanges(changes, mValues);
+        }
+        if (!mListeners.isEmpty())
+            notifyListeners(changes.keySet());
+        return true;
+    }
+
+    private void notifyListeners(final Set<String> keys) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnSharedPreferenceChangeListener listener : mListeners)
+                    for (String key : keys)
+                        listener.onSharedPreferenceChanged(MappedSharedPreferences.this, key);
+            }
+        });
+    }
+
+    //
+    // Reading
+    //
+
+    @Override
+    public Map<String, ?> getAll() {
+        return new HashMap<>(mValues);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        final Object value = mValues.get(key);
+        return value == null ? defValue : (String) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        final Object value = mValues.get(key);
+        return value == null ? defValues : (Set<String>) value;
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        final Object value = mValues.get(key);
+        return value == null ? defValue : (Integer) value;
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        final Object value = mValues.get(key);
+        return value == null ? defValue : (Long) value;
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        final Object value = mValues.get(key);
+        return value == null ? defValue : (Float) value;
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        final Object value = mValues.get(key);
+        return value == null ? defValue : (Boolean) value;
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return mValues.containsKey(key);
+    }
+
+    //
+    // Writing
+    //
+
+    @Override
+    public Editor edit() {
+        return new MappedEditor();
+    }
+
+    /**
+     * Editor collecting changes the same way platform one does: clear() is applied first
+     * and puts of null values are removals. commit() forces the log to storage while apply()
+     * leaves it to the OS which still keeps it if the application process dies.
+     */
+    private class MappedEditor implements Editor {
+
+        private final HashMap<String, Object> mChanges = new HashMap<>();
+        private boolean mIsCleared;
+
+        private synchronized Editor put(final String key, final Object value) {
+            mChanges.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(final String key, final String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(final String key, final Set<String> values) {
+            return put(key, values == null ? null : new HashSet<>(values));
+        }
+
+        @Override
+        public Editor putInt(final String key, final int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(final String key, final long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(final String key, final float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(final String key, final boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(final String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mIsCleared = true;
+            return this;
+        }
+
+        private boolean commit(final boolean isForced) {
+            final HashMap<String, Object> changes;
+            final boolean isCleared;
+            synchronized (this) {
+                changes = new HashMap<>(mChanges);
+                isCleared = mIsCleared;
+                mChanges.clear();
+                mIsCleared = false;
+            }
+            return MappedSharedPreferences.this.commit(isCleared, changes, isForced);
+        }
+
+        @Override
+        public boolean commit() {
+            return commit(true);
+        }
+
+        @Override
+        public void apply() {
+            commit(false);
+        }
+    }
+
+    //
+    // Listeners
+    //
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        if (listener != null)
+            mListeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+}
@@ -671,6 +671,24 @@ public class SDCardHelper {
 		return null;
 	}
 
+	/**
+	 * Opens the expansion file of given mainVersion for random access reading of its entries
+	 *
+	 * @param mainVersion target Main version
+	 * @return ZipReader which must be closed or null if there is no such file or it is not a ZIP archive
+	 */
+	public static ZipReader openAPKExpansionFile(int mainVersion) {
+		final File expansionFile = getAPKExpansionFile(mainVersion);
+		if (expansionFile == null)
+			return null;
+		try {
+			return new ZipReader(expansionFile);
+		} catch (IOException e) {
+			Log.e(e);
+		}
+		return null;
+	}
+
 	/**
 	 * Returns a set of found external paths
 	 *
@@ -5,25 +5,24 @@ import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.text.TextUtils;
-import android.util.Base64;
+import android.util.LruCache;
+
+import com.stanko.image.AvatarStore;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * Created by Stan Koshutsky <Stan.Koshutsky@gmail.com>
@@ -32,13 +31,37 @@ public class SharedPrefsHelper {
 
     private static final String SHARED_PREFS_AVATAR_FILE_NAME = "avatar.jpg";
 
-    private static String sLastUsedSharedPrefsName = "SharedPrefsHelper";
+    private static volatile String sLastUsedSharedPrefsName = "SharedPrefsHelper";
 
-    private static Context sAppContext; // Application context is singleton and could be kept static
+    private static volatile Context sAppContext; // Application context is singleton and could be kept static
 
 //    private static boolean sIsSecuredMode;
 
-    private final static HashMap<String, SharedPreferences> sSharedPreferencesInstances = new HashMap<String, SharedPreferences>();
+    // lookups are lock-free, instances are created under class lock
+    private final static ConcurrentHashMap<String, SharedPreferences> sSharedPreferencesInstances = new ConcurrentHashMap<String, SharedPreferences>();
+    private final static ConcurrentHashMap<String, Handle> sHandles = new ConcurrentHashMap<String, Handle>();
+
+    /**
+     * Storage SharedPreferences instances are taken from, i.e. MappedSharedPreferences.STORAGE
+     */
+    public interface IStorage {
+        SharedPreferences getSharedPreferences(Context appContext, String sharedPrefsName);
+    }
+
+    // platform XML files
+    public static final IStorage DEFAULT_STORAGE = new IStorage() {
+        @Override
+        public SharedPreferences getSharedPreferences(final Context appContext, final String sharedPrefsName) {
+            return appContext.getSharedPreferences(sharedPrefsName, Context.MODE_PRIVATE);
+        }
+    };
+
+    private static IStorage sStorage = DEFAULT_STORAGE;
+
+    // write-behind mode: debounce time in ms or -1 if commits go directly to SharedPreferences
+    private static long sWriteBehindTime = -1;
+    // survive init() so pending changes are never lost or hidden by a new instance
+    private final static HashMap<String, WriteBehindSharedPreferences> sWriteBehindInstances = new HashMap<String, WriteBehindSharedPreferences>();
 
     // context NPE not safe
     public static void init(final Context context) {
@@ -53,7 +76,6 @@ public class SharedPrefsHelper {
 //        }
 //        sIsSecuredMode = false;
         SharedPrefsHelper.sAppContext = context.getApplicationContext();
-        sSharedPreferencesInstances.clear();
         getSharedPreferences(sAppContext, sharedPrefsName);
     }
 
@@ -109,7 +131,6 @@ public class SharedPrefsHelper {
 //        }
 //        sIsSecuredMode = true;
         SharedPrefsHelper.sAppContext = context.getApplicationContext();
-        sSharedPreferencesInstances.clear();
         getSharedPreferences(sAppContext, sharedPrefsName);
     }
 
@@ -117,16 +138,18 @@ public class SharedPrefsHelper {
         initOnDemand();
         if (sAppContext == null && sSharedPreferencesInstances.size() == 0)
             return null;
-        if (!sSharedPreferencesInstances.containsKey(sLastUsedSharedPrefsName))
-            init(sAppContext, sLastUsedSharedPrefsName);
-        return sSharedPreferencesInstances.get(sLastUsedSharedPrefsName);
+        return getInstance(sLastUsedSharedPrefsName);
     }
 
     public static SharedPreferences getSharedPreferences(final String sharedPrefsName) {
         initOnDemand();
-        if (!TextUtils.isEmpty(sharedPrefsName) && !sLastUsedSharedPrefsName.equalsIgnoreCase(sharedPrefsName) && !sSharedPreferencesInstances.containsKey(sharedPrefsName))
+        if (TextUtils.isEmpty(sharedPrefsName))
+            return null;
+        // a single lookup, setStorage() could clear the registry between two of them
+        final SharedPreferences sharedPreferences = sSharedPreferencesInstances.get(sharedPrefsName);
+        if (sharedPreferences == null)
             return getSharedPreferences(sAppContext, sharedPrefsName);
-        return sSharedPreferencesInstances.get(sharedPrefsName);
+        return sharedPreferences;
     }
 
     public static SharedPreferences getSharedPreferences(final Context context) {
@@ -137,22 +160,271 @@ public class SharedPrefsHelper {
     }
 
     public static SharedPreferences getSharedPreferences(final Context context, final String sharedPrefsName) {
-        if (!TextUtils.isEmpty(sharedPrefsName) && !sSharedPreferencesInstances.containsKey(sharedPrefsName)) {
-            if (sAppContext == null && context != null) // if init called from this method
-                sAppContext = context.getApplicationContext();
-            if (sAppContext != null) {
-                sLastUsedSharedPrefsName = sharedPrefsName;
-//                if (sIsSecuredMode)
-//                    sSharedPreferencesInstances.put(sLastUsedSharedPrefsName, new SecurePreferences(
-//                            sAppContext,
-//                            Hash.getMD5(sharedPrefsName),
-//                            sharedPrefsName));
-//                else
-                    sSharedPreferencesInstances.put(sLastUsedSharedPrefsName,
-                            sAppContext.getSharedPreferences(sharedPrefsName, Context.MODE_PRIVATE));
-            }
+        if (sAppContext == null && context != null) // if init called from this method
+            sAppContext = context.getApplicationContext();
+        if (TextUtils.isEmpty(sharedPrefsName))
+            return getInstance(sLastUsedSharedPrefsName);
+        final SharedPreferences sharedPreferences = getInstance(sharedPrefsName);
+        if (sharedPreferences != null)
+            sLastUsedSharedPrefsName = sharedPrefsName;
+        return sharedPreferences;
+    }
+
+    /**
+     * @return registered instance of given preferences creating it if needed, null if there
+     * is no context to create it
+     */
+    private static SharedPreferences getInstance(final String sharedPrefsName) {
+        final SharedPreferences sharedPreferences = sSharedPreferencesInstances.get(sharedPrefsName);
+        if (sharedPreferences != null)
+            return sharedPreferences;
+        return createInstance(sharedPrefsName);
+    }
+
+    private static synchronized SharedPreferences createInstance(final String sharedPrefsName) {
+        SharedPreferences sharedPreferences = sSharedPreferencesInstances.get(sharedPrefsName);
+        if (sharedPreferences != null || sAppContext == null)
+            return sharedPreferences;
+//        if (sIsSecuredMode)
+//            sharedPreferences = new SecurePreferences(
+//                    sAppContext,
+//                    Hash.getMD5(sharedPrefsName),
+//                    sharedPrefsName);
+//        else
+        sharedPreferences = wrapIfWriteBehind(sharedPrefsName, sStorage.getSharedPreferences(sAppContext, sharedPrefsName));
+        if (sharedPreferences != null)
+            sSharedPreferencesInstances.put(sharedPrefsName, sharedPreferences);
+        return sharedPreferences;
+    }
+
+    /*
+     * NAMED HANDLES
+     */
+
+    /**
+     * Returns a handle of given preferences which never depends on last used preferences name,
+     * so it is safe to use from any thread while others call init() or work with other files.
+     * Handles are immutable and cached, lookups of both handles and preferences are lock-free.
+     *
+     * @param sharedPrefsName - name of preferences
+     * @return handle of given preferences
+     */
+    public static Handle of(final String sharedPrefsName) {
+        if (TextUtils.isEmpty(sharedPrefsName))
+            throw new IllegalArgumentException("Preferences name must not be empty");
+        Handle handle = sHandles.get(sharedPrefsName);
+        if (handle == null) {
+            final Handle newHandle = new Handle(sharedPrefsName);
+            handle = sHandles.putIfAbsent(sharedPrefsName, newHandle);
+            if (handle == null)
+                handle = newHandle;
+        }
+        return handle;
+    }
+
+    /**
+     * Starts a transaction which changes last used preferences until SharedPrefsTransaction.in()
+     * switches it to another file
+     */
+    public static SharedPrefsTransaction transaction() {
+        initOnDemand();
+        return new SharedPrefsTransaction(sLastUsedSharedPrefsName);
+    }
+
+    /**
+     * Named preferences, obtained by SharedPrefsHelper.of(name)
+     */
+    public static final class Handle {
+
+        private final String mName;
+
+        private Handle(final String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return preferences of this handle or null if SharedPrefsHelper is not initialized
+         */
+        public SharedPreferences getSharedPreferences() {
+            initOnDemand();
+            return getInstance(mName);
+        }
+
+        public SharedPreferences.Editor edit() {
+            final SharedPreferences sharedPreferences = getSharedPreferences();
+            return sharedPreferences == null ? null : sharedPreferences.edit();
+        }
+
+        public String getString(final String theKey) {
+            return SharedPrefsHelper.getString(getSharedPreferences(), theKey, null);
+        }
+
+        public String getString(final String theKey, final String defaultValue) {
+            return SharedPrefsHelper.getString(getSharedPreferences(), theKey, defaultValue);
+        }
+
+        public int getInt(final String theKey, final int defaultValue) {
+            final Integer value = SharedPrefsHelper.getInteger(getSharedPreferences(), theKey, defaultValue);
+            return value == null ? defaultValue : value;
+        }
+
+        public Long getLong(final String theKey, final Long defaultValue) {
+            return SharedPrefsHelper.getLong(getSharedPreferences(), theKey, defaultValue);
+        }
+
+        public Double getDouble(final String theKey, final Double defaultValue) {
+            return SharedPrefsHelper.getDouble(getSharedPreferences(), theKey, defaultValue);
+        }
+
+        public Float getFloat(final String theKey, final Float defaultValue) {
+            return SharedPrefsHelper.getFloat(getSharedPreferences(), theKey, defaultValue);
+        }
+
+        public Boolean getBoolean(final String theKey, final Boolean defaultValue) {
+            return SharedPrefsHelper.getBoolean(getSharedPreferences(), theKey, defaultValue);
+        }
+
+        public Object getObject(final String theKey) {
+            return SharedPrefsHelper.getObject(getSharedPreferences(), theKey, null);
+        }
+
+        public Object getObject(final String theKey, final Object defaultValue) {
+            return SharedPrefsHelper.getObject(getSharedPreferences(), theKey, defaultValue);
+        }
+
+        public boolean contains(final String theKey) {
+            return has(getSharedPreferences(), theKey);
+        }
+
+        public boolean put(final String theKey, final Object value) {
+            return save(edit(), theKey, value);
+        }
+
+        public boolean put(final Map<String, Object> keysAndValues) {
+            return save(edit(), keysAndValues);
+        }
+
+        public boolean remove(final String theKey) {
+            return SharedPrefsHelper.remove(edit(), theKey);
+        }
+
+        /**
+         * Starts a transaction which changes this preferences until SharedPrefsTransaction.in()
+         * switches it to another file
+         */
+        public SharedPrefsTransaction transaction() {
+            return new SharedPrefsTransaction(mName);
+        }
+
+        /**
+         * Removes all values of this preferences, avatar is kept
+         */
+        public boolean clear() {
+            final SharedPreferences.Editor editor = edit();
+            return editor != null && editor.clear().commit();
+        }
+
+        @Override
+        public String toString() {
+            return "SharedPrefsHelper.Handle: " + mName;
         }
-        return sSharedPreferencesInstances.get(sLastUsedSharedPrefsName);
+    }
+
+    /*
+     * STORAGE
+     */
+
+    /**
+     * Sets storage used for preferences opened after this call, already opened ones are dropped
+     * so they are reopened from new storage on next access. Values are not migrated.
+     *
+     * @param storage - storage to use, DEFAULT_STORAGE if null
+     */
+    public static synchronized void setStorage(final IStorage storage) {
+        final IStorage newStorage = storage == null ? DEFAULT_STORAGE : storage;
+        if (newStorage == sStorage)
+            return;
+        flush();
+        sWriteBehindInstances.clear();
+        sSharedPreferencesInstances.clear();
+        sStorage = newStorage;
+    }
+
+    public static IStorage getStorage() {
+        return sStorage;
+    }
+
+    /*
+     * WRITE-BEHIND MODE
+     */
+
+    /**
+     * Enables or disables write-behind mode with default debounce time
+     *
+     * @see #setWriteBehindMode(boolean, long)
+     */
+    public static void setWriteBehindMode(final boolean isEnabled) {
+        setWriteBehindMode(isEnabled, WriteBehindSharedPreferences.DEFAULT_DEBOUNCE_TIME);
+    }
+
+    /**
+     * In write-behind mode save/put/remove methods update an in-memory map and return at once
+     * while changes are written by a single commit per debounce time on a background thread,
+     * and reads look into the in-memory map first. Call flush() where changes must be on disk
+     * (i.e. in Activity.onPause()).
+     *
+     * @param isEnabled    - true to enable write-behind mode, false to flush pending changes
+     *                     and write directly again
+     * @param debounceTime - time in milliseconds changes are collected before being written,
+     *                     applied to preferences already in write-behind mode too
+     */
+    public static synchronized void setWriteBehindMode(final boolean isEnabled, final long debounceTime) {
+        if (!isEnabled) {
+            flush();
+            sWriteBehindInstances.clear();
+        }
+        sWriteBehindTime = isEnabled ? Math.max(0, debounceTime) : -1;
+        for (WriteBehindSharedPreferences writeBehindPrefs : sWriteBehindInstances.values())
+            writeBehindPrefs.setDebounceTime(sWriteBehindTime);
+        for (Map.Entry<String, SharedPreferences> entry : sSharedPreferencesInstances.entrySet()) {
+            SharedPreferences prefs = entry.getValue();
+            if (prefs instanceof WriteBehindSharedPreferences)
+                prefs = ((WriteBehindSharedPreferences) prefs).getWrappedPreferences();
+            entry.setValue(wrapIfWriteBehind(entry.getKey(), prefs));
+        }
+    }
+
+    public static boolean isWriteBehindMode() {
+        return sWriteBehindTime >= 0;
+    }
+
+    /**
+     * Writes changes pending in write-behind mode blocking until they are committed
+     *
+     * @return false if any preferences failed to commit
+     */
+    public static synchronized boolean flush() {
+        boolean result = true;
+        for (WriteBehindSharedPreferences prefs : sWriteBehindInstances.values())
+            result &= prefs.flush();
+        return result;
+    }
+
+    private static synchronized SharedPreferences wrapIfWriteBehind(final String sharedPrefsName, final SharedPreferences prefs) {
+        if (sWriteBehindTime < 0 || prefs == null)
+            return prefs;
+        WriteBehindSharedPreferences writeBehindPrefs = sWriteBehindInstances.get(sharedPrefsName);
+        if (writeBehindPrefs == null || writeBehindPrefs.getWrappedPreferences() != prefs) {
+            if (writeBehindPrefs != null)
+                writeBehindPrefs.flush();
+            writeBehindPrefs = new WriteBehindSharedPreferences(prefs, sWriteBehindTime);
+            sWriteBehindInstances.put(sharedPrefsName, writeBehindPrefs);
+        }
+        return writeBehindPrefs;
     }
 
     //private static SharedPreferences.Editor sharedPreferencesEditorInstance; // not a thread safe
@@ -189,14 +461,14 @@ public class SharedPrefsHelper {
         if (context == null && sAppContext == null && sSharedPreferencesInstances.size() == 0)
             return null;
 
+        // use the instance got for this name, last used name could be changed by another thread meanwhile
+        final SharedPreferences sharedPreferences;
         if (!TextUtils.isEmpty(sharedPrefsName)) {
             if (context != null)
-                init(context, sharedPrefsName);
-            else if (!TextUtils.equals(sLastUsedSharedPrefsName, sharedPrefsName) && !sSharedPreferencesInstances.containsKey(sharedPrefsName))
-                init(sAppContext, sharedPrefsName);
-        }
-
-        final SharedPreferences sharedPreferences = getSharedPreferences();
+                sAppContext = context.getApplicationContext();
+            sharedPreferences = getSharedPreferences(sAppContext, sharedPrefsName);
+        } else
+            sharedPreferences = getSharedPreferences();
         if (sharedPreferences != null)
             return sharedPreferences.edit();//sharedPreferencesEditorInstance;
         else
@@ -238,7 +510,23 @@ public class SharedPrefsHelper {
             return false;
         }
 
-        if (value instanceof String)
+        if (!putValue(prefsEditor, theKey, value))
+            return false;
+
+        return prefsEditor.commit();
+    }
+
+    /**
+     * Puts a value of any supported type to editor the same way save() does: Double as its long
+     * bits, JSONObject and JSONArray as strings, other Serializable values encoded by object codec
+     * and null as removal
+     *
+     * @return false if value type is not supported or value could not be encoded
+     */
+    static boolean putValue(final SharedPreferences.Editor prefsEditor, final String theKey, final Object value) {
+        if (value == null)
+            prefsEditor.putString(theKey, null);
+        else if (value instanceof String)
             prefsEditor.putString(theKey, (String) value);
         else if (value instanceof Integer)
             prefsEditor.putInt(theKey, (Integer) value);
@@ -252,14 +540,16 @@ public class SharedPrefsHelper {
             prefsEditor.putBoolean(theKey, (Boolean) value);
         else if (value instanceof JSONObject || value instanceof JSONArray)
             prefsEditor.putString(theKey, value.toString());
-        else //if (value instanceof Serializable)
+        else if (value instanceof Serializable)
             try {
-                prefsEditor.putString(theKey, getStringFromObject((Serializable) value));
-            } catch (Exception ignored) {
+                prefsEditor.putString(theKey, sObjectCodec.encode(value));
+            } catch (Exception e) {
+                Log.e(e);
                 return false;
             }
-
-        return prefsEditor.commit();
+        else
+            return false;
+        return true;
     }
 
 
@@ -304,18 +594,8 @@ public class SharedPrefsHelper {
                 prefsEditor.putString(theKey, null);
             else {
                 value = values[index];
-                if (value instanceof String)
-                    prefsEditor.putString(theKey, (String) value);
-                else if (value instanceof Integer)
-                    prefsEditor.putInt(theKey, (Integer) value);
-                else if (value instanceof Float)
-                    prefsEditor.putFloat(theKey, (float) value);
-                else if (value instanceof Double)
-                    prefsEditor.putLong(theKey, Double.doubleToRawLongBits((double) value));
-                else if (value instanceof Long)
-                    prefsEditor.putLong(theKey, (Long) value);
-                else if (value instanceof Boolean)
-                    prefsEditor.putBoolean(theKey, (Boolean) value);
+                if (!putValue(prefsEditor, theKey, value))
+                    Log.e(new IllegalArgumentException("save(): incompatible type, skipped. Key: " + theKey + " Value: " + value));
             }
         }
 
@@ -360,22 +640,8 @@ public class SharedPrefsHelper {
         Object value;
         for (String theKey : keys) {
             value = keysAndValues.get(theKey);
-            if (value == null)
-                prefsEditor.putString(theKey, null);
-            else {
-                if (value instanceof String)
-                    prefsEditor.putString(theKey, (String) value);
-                else if (value instanceof Integer)
-                    prefsEditor.putInt(theKey, (Integer) value);
-                else if (value instanceof Float)
-                    prefsEditor.putFloat(theKey, (float) value);
-                else if (value instanceof Double)
-                    prefsEditor.putLong(theKey, Double.doubleToRawLongBits((double) value));
-                else if (value instanceof Long)
-                    prefsEditor.putLong(theKey, (Long) value);
-                else if (value instanceof Boolean)
-                    prefsEditor.putBoolean(theKey, (Boolean) value);
-            }
+            if (!putValue(prefsEditor, theKey, value))
+                Log.e(new IllegalArgumentException("save(): incompatible type, skipped. Key: " + theKey + " Value: " + value));
         }
 
         return prefsEditor.commit();
@@ -734,7 +1000,7 @@ public class SharedPrefsHelper {
         final String objectInString = getString(prefs, theKey, null);
         if (!TextUtils.isEmpty(objectInString))
             try {
-                objectToReturn = getObjectFromString(objectInString);
+                objectToReturn = decodeObject(prefs, theKey, objectInString);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -742,22 +1008,82 @@ public class SharedPrefsHelper {
         return objectToReturn;
     }
 
-    private static String getStringFromObject(Serializable object) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(object);
-        oos.close();
-        return Base64.encodeToString(baos.toByteArray(), Base64.DEFAULT);
+    /*
+     * OBJECT CODEC
+     */
+
+    /**
+     * Codec converting objects saved by save(key, Serializable) to strings stored in preferences
+     */
+    public interface IObjectCodec {
+        String encode(Object value) throws IOException;
+
+        Object decode(String encoded) throws IOException;
     }
 
-    private static Object getObjectFromString(String string) throws IOException, ClassNotFoundException {
-        if (TextUtils.isEmpty(string))
-            return null;
-        byte[] data = Base64.decode(string, Base64.DEFAULT);
-        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-        Object o = ois.readObject();
-        ois.close();
-        return o;
+    /**
+     * Value decoded by getObject() along with the string it was decoded from
+     */
+    private static class DecodedObject {
+        final String encoded;
+        final Object decoded;
+
+        DecodedObject(final String encoded, final Object decoded) {
+            this.encoded = encoded;
+            this.decoded = decoded;
+        }
+    }
+
+    // decoded objects are mutable and shared, so the cache is opt-in
+    public static final int DEFAULT_OBJECT_CACHE_SIZE = 0;
+
+    private static volatile IObjectCodec sObjectCodec = new CompactObjectCodec();
+    // preferences identity and key -> last decoded value, null while cache is off
+    private static volatile LruCache<String, DecodedObject> sDecodedObjects;
+
+    /**
+     * Sets codec used to save and restore objects, CompactObjectCodec by default which also
+     * restores values saved by plain Java serialization
+     */
+    public static void setObjectCodec(final IObjectCodec codec) {
+        if (codec == null)
+            throw new IllegalArgumentException("Codec must not be null");
+        sObjectCodec = codec;
+        final LruCache<String, DecodedObject> decodedObjects = sDecodedObjects;
+        if (decodedObjects != null)
+            decodedObjects.evictAll();
+    }
+
+    public static IObjectCodec getObjectCodec() {
+        return sObjectCodec;
+    }
+
+    /**
+     * Sets count of objects getObject() keeps decoded, 0 by default. Cached objects are returned
+     * while their stored values are not changed so they are shared by callers and must not be
+     * modified, use 0 to decode a new object for each call.
+     */
+    public static synchronized void setObjectCacheSize(final int size) {
+        // LruCache.resize() is API 21+ so the cache is recreated
+        sDecodedObjects = size > 0 ? new LruCache<String, DecodedObject>(size) : null;
+    }
+
+    /**
+     * Decodes stored string only if it differs from the one decoded for this key last time.
+     * Objects are decoded on demand only, so reading other keys never pays for them.
+     */
+    private static Object decodeObject(final SharedPreferences prefs, final String theKey, final String encoded) throws IOException {
+        final LruCache<String, DecodedObject> decodedObjects = sDecodedObjects;
+        if (decodedObjects == null)
+            return sObjectCodec.decode(encoded);
+        final String cacheKey = System.identityHashCode(prefs) + ":" + theKey;
+        final DecodedObject cached = decodedObjects.get(cacheKey);
+        // the same String instance is returned by preferences until value is changed so equals() is instant
+        if (cached != null && cached.encoded.equals(encoded))
+            return cached.decoded;
+        final Object decoded = sObjectCodec.decode(encoded);
+        decodedObjects.put(cacheKey, new DecodedObject(encoded, decoded));
+        return decoded;
     }
 
     /*
@@ -891,6 +1217,7 @@ public class SharedPrefsHelper {
                 } catch (IOException ignored) {
                 }
         }
+        onAvatarChanged();
         return result;
     }
 
@@ -923,6 +1250,7 @@ public class SharedPrefsHelper {
                 } catch (IOException ignored) {
                 }
         }
+        onAvatarChanged();
         return result;
     }
 
@@ -950,6 +1278,25 @@ public class SharedPrefsHelper {
         return avatar;
     }
 
+    /**
+     * Returns avatar pre-scaled to the smallest of AvatarStore.DEFAULT_SIZES not smaller than
+     * given size, kept in memory after first call so it is cheap enough for lists. Returned
+     * bitmap is shared and must not be recycled or modified.
+     *
+     * @param size - size in px the avatar is shown at
+     * @return Bitmap or null if there is no avatar or its variants are still written in background
+     */
+    public static Bitmap getAvatarBitmap(final int size) {
+        final AvatarStore avatarStore = AvatarStore.getInstance();
+        return avatarStore == null ? null : avatarStore.getBitmap(size);
+    }
+
+    private static void onAvatarChanged() {
+        final AvatarStore avatarStore = AvatarStore.getInstance();
+        if (avatarStore != null)
+            avatarStore.update();
+    }
+
     public static byte[] getAvatarBytes() {
         final File avatarFile = getAvatarFile();
         if (avatarFile == null)
@@ -985,7 +1332,11 @@ public class SharedPrefsHelper {
 
     public static boolean removeAvatar() {
         initOnDemand();
-        return sAppContext.deleteFile(SHARED_PREFS_AVATAR_FILE_NAME);
+        final boolean isDeleted = sAppContext.deleteFile(SHARED_PREFS_AVATAR_FILE_NAME);
+        final AvatarStore avatarStore = AvatarStore.getInstance();
+        if (avatarStore != null)
+            avatarStore.remove();
+        return isDeleted;
     }
 
     private static void initOnDemand() {
@@ -0,0 +1,272 @@
+package com.stanko.tools;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Typed changes of one or more preferences files committed at once:
+ * <p>
+ * SharedPrefsHelper.of("settings").transaction()
+ * .putInt("launches", launches)
+ * .putObject("profile", profile)
+ * .in("cache")
+ * .remove("token")
+ * .commit();
+ * <p>
+ * Changes are staged in memory and written by a single Editor.commit() per file. Values take
+ * the same types SharedPrefsHelper.save() does. Transaction listeners are notified once per
+ * committed transaction on main thread with all changed keys, unlike preferences listeners
+ * which are called for each key.
+ * <p>
+ * Transactions are not thread-safe and could be committed only once.
+ */
+public class SharedPrefsTransaction {
+
+    private static final String LOG_TAG = SharedPrefsTransaction.class.getSimpleName();
+
+    // marks removed keys since LinkedHashMap values are passed to putValue() as is
+    private static final Object REMOVED = new Object();
+
+    /**
+     * Interface to get notified once per committed transaction, its method is called on main thread
+     */
+    public interface ITransactionListener {
+        /**
+         * @param changedKeys - preferences names mapped to keys changed in them,
+         *                    a cleared file has all its previous keys included
+         */
+        void onTransactionCommitted(Map<String, Set<String>> changedKeys);
+    }
+
+    private static final CopyOnWriteArrayList<ITransactionListener> sListeners = new CopyOnWriteArrayList<>();
+    private static Handler sMainHandler;
+
+    /**
+     * Changes of a single file
+     */
+    private static class FileChanges {
+        boolean isCleared;
+        final LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+    }
+
+    // preferences name -> staged changes in order files were touched
+    private final LinkedHashMap<String, FileChanges> mChanges = new LinkedHashMap<>();
+    private FileChanges mCurrentChanges;
+    private String mCurrentName;
+    private boolean mIsFailed;
+    private boolean mIsCommitted;
+
+    SharedPrefsTransaction(final String sharedPrefsName) {
+        in(sharedPrefsName);
+    }
+
+    public static void addTransactionListener(final ITransactionListener listener) {
+        if (listener != null)
+            sListeners.addIfAbsent(listener);
+    }
+
+    public static void removeTransactionListener(final ITransactionListener listener) {
+        sListeners.remove(listener);
+    }
+
+    //
+    // Staging
+    //
+
+    /**
+     * Switches following changes to given preferences file
+     */
+    public SharedPrefsTransaction in(final String sharedPrefsName) {
+        if (TextUtils.isEmpty(sharedPrefsName))
+            throw new IllegalArgumentException("Preferences name must not be empty");
+        mCurrentName = sharedPrefsName;
+        mCurrentChanges = mChanges.get(sharedPrefsName);
+        if (mCurrentChanges == null) {
+            mCurrentChanges = new FileChanges();
+            mChanges.put(sharedPrefsName, mCurrentChanges);
+        }
+        return this;
+    }
+
+    public SharedPrefsTransaction in(final SharedPrefsHelper.Handle handle) {
+        return in(handle.getName());
+    }
+
+    /**
+     * Stages a value of any type SharedPrefsHelper.save() takes, null removes the key.
+     * A value of unsupported type fails the whole transaction.
+     */
+    public SharedPrefsTransaction put(final String theKey, final Object value) {
+        if (TextUtils.isEmpty(theKey)) {
+            Log.e(LOG_TAG, "put(): empty key, transaction failed");
+            mIsFailed = true;
+        } else if (value != null
+                && !(value instanceof String)
+                && !(value instanceof Integer)
+                && !(value instanceof Long)
+                && !(value instanceof Float)
+                && !(value instanceof Double)
+                && !(value instanceof Boolean)
+                && !(value instanceof JSONObject || value instanceof JSONArray)
+                && !(value instanceof Serializable)) {
+            Log.e(LOG_TAG, "put(): incompatible type, transaction failed. Key: " + theKey + " Value: " + value);
+            mIsFailed = true;
+        } else {
+            mCurrentChanges.values.put(theKey, value == null ? REMOVED : value);
+        }
+        return this;
+    }
+
+    public SharedPrefsTransaction putString(final String theKey, final String value) {
+        return put(theKey, value);
+    }
+
+    public SharedPrefsTransaction putInt(final String theKey, final int value) {
+        return put(theKey, value);
+    }
+
+    public SharedPrefsTransaction putLong(final String theKey, final long value) {
+        return put(theKey, value);
+    }
+
+    public SharedPrefsTransaction putFloat(final String theKey, final float value) {
+        return put(theKey, value);
+    }
+
+    public SharedPrefsTransaction putDouble(final String theKey, final double value) {
+        return put(theKey, value);
+    }
+
+    public SharedPrefsTransaction putBoolean(final String theKey, final boolean value) {
+        return put(theKey, value);
+    }
+
+    public SharedPrefsTransaction putJSON(final String theKey, final JSONObject value) {
+        return put(theKey, value);
+    }
+
+    public SharedPrefsTransaction putJSON(final String theKey, final JSONArray value) {
+        return put(theKey, value);
+    }
+
+    public SharedPrefsTransaction putObject(final String theKey, final Serializable value) {
+        return put(theKey, value);
+    }
+
+    public SharedPrefsTransaction putAll(final Map<String, ?> keysAndValues) {
+        if (keysAndValues != null)
+            for (Map.Entry<String, ?> entry : keysAndValues.entrySet())
+                put(entry.getKey(), entry.getValue());
+        return this;
+    }
+
+    public SharedPrefsTransaction remove(final String theKey) {
+        return put(theKey, null);
+    }
+
+    /**
+     * Removes all values of current file before any other changes of it are written,
+     * the same way Editor.clear() does
+     */
+    public SharedPrefsTransaction clear() {
+        mCurrentChanges.isCleared = true;
+        return this;
+    }
+
+    public String getCurrentName() {
+        return mCurrentName;
+    }
+
+    //
+    // Committing
+    //
+
+    /**
+     * Writes staged changes, one Editor.commit() per file
+     *
+     * @return false if transaction was failed by an invalid put, was committed already,
+     * any preferences could not be opened or committed
+     */
+    public boolean commit() {
+        if (mIsCommitted) {
+            Log.e(LOG_TAG, "commit(): transaction is committed already");
+            return false;
+        }
+        mIsCommitted = true;
+        if (mIsFailed)
+            return false;
+
+        // open and fill all editors first so nothing is written if any file could not be opened
+        final LinkedHashMap<String, SharedPreferences.Editor> editors = new LinkedHashMap<>();
+        final HashMap<String, Set<String>> changedKeys = new HashMap<>();
+        for (Map.Entry<String, FileChanges> entry : mChanges.entrySet()) {
+            final FileChanges fileChanges = entry.getValue();
+            if (!fileChanges.isCleared && fileChanges.values.isEmpty())
+                continue;
+            final SharedPreferences sharedPreferences = SharedPrefsHelper.of(entry.getKey()).getSharedPreferences();
+            if (sharedPreferences == null) {
+                Log.e(LOG_TAG, "commit(): could not open preferences: " + entry.getKey());
+                return false;
+            }
+            final LinkedHashSet<String> keys = new LinkedHashSet<>();
+            final SharedPreferences.Editor editor = sharedPreferences.edit();
+            if (fileChanges.isCleared) {
+                keys.addAll(sharedPreferences.getAll().keySet());
+                editor.clear();
+            }
+            for (Map.Entry<String, Object> change : fileChanges.values.entrySet()) {
+                final Object value = change.getValue() == REMOVED ? null : change.getValue();
+                if (!SharedPrefsHelper.putValue(editor, change.getKey(), value)) {
+                    Log.e(LOG_TAG, "commit(): could not put value of key: " + change.getKey());
+                    return false;
+                }
+                keys.add(change.getKey());
+            }
+            editors.put(entry.getKey(), editor);
+            changedKeys.put(entry.getKey(), Collections.unmodifiableSet(keys));
+        }
+
+        boolean result = true;
+        for (Map.Entry<String, SharedPreferences.Editor> entry : editors.entrySet()) {
+            if (!entry.getValue().commit()) {
+                Log.e(LOG_TAG, "commit(): could not commit preferences: " + entry.getKey());
+                changedKeys.remove(entry.getKey());
+                result = false;
+            }
+        }
+
+        if (!changedKeys.isEmpty() && !sListeners.isEmpty())
+            notifyListeners(Collections.unmodifiableMap(changedKeys));
+        return result;
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (sMainHandler == null)
+            sMainHandler = new Handler(Looper.getMainLooper());
+        return sMainHandler;
+    }
+
+    private static void notifyListeners(final Map<String, Set<String>> changedKeys) {
+        getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                for (ITransactionListener listener : sListeners)
+                    listener.onTransactionCommitted(changedKeys);
+            }
+        });
+    }
+}
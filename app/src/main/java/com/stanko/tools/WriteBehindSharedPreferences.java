@@ -0,0 +1,413 @@
+package com.stanko.tools;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind SharedPreferences in front of regular ones used by SharedPrefsHelper in
+ * write-behind mode.
+ * <p>
+ * Editor.commit() and Editor.apply() put changes to a concurrent in-memory map and return at once,
+ * changes made during debounce time are written to wrapped preferences by a single commit on
+ * a background thread. Reads look into the in-memory map first. flush() is a barrier for callers
+ * which need durability: when it returns everything committed before the call is written.
+ * <p>
+ * Change listeners are notified on main thread right after in-memory commit.
+ */
+public class WriteBehindSharedPreferences implements SharedPreferences {
+
+    private static final String LOG_TAG = WriteBehindSharedPreferences.class.getSimpleName();
+
+    public static final long DEFAULT_DEBOUNCE_TIME = 200; // ms
+    // failed flushes are retried after debounce time doubled for each failure up to this
+    public static final long MAX_RETRY_DELAY = 30 * 1000; // ms
+
+    // marks removed keys in the pending map since ConcurrentHashMap does not take nulls
+    private static final Object REMOVED = new Object();
+
+    private static ScheduledThreadPoolExecutor sExecutor;
+
+    private final SharedPreferences mPrefs;
+    private volatile long mDebounceTime;
+
+    // changes which are not written yet, guarded by mLock for writes, read lock-free
+    private final ConcurrentHashMap<String, Object> mPending = new ConcurrentHashMap<>();
+    // clear() was committed but not written yet, so wrapped preferences must not be read
+    private volatile boolean mIsClearPending;
+    private int mClearsCount;
+    private boolean mIsFlushScheduled;
+    private int mFailedFlushesCount;
+    private final Object mLock = new Object();
+    // serializes writes to wrapped preferences
+    private final Object mFlushLock = new Object();
+
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> mListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mIsFlushScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ScheduledThreadPoolExecutor(1, new BackgroundThreadFactory());
+            sExecutor.setKeepAliveTime(10, TimeUnit.SECONDS);
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    public WriteBehindSharedPreferences(final SharedPreferences prefs) {
+        this(prefs, DEFAULT_DEBOUNCE_TIME);
+    }
+
+    /**
+     * @param prefs        - SharedPreferences to write changes to
+     * @param debounceTime - time in milliseconds changes are collected before being written
+     */
+    public WriteBehindSharedPreferences(final SharedPreferences prefs, final long debounceTime) {
+        if (prefs == null)
+            throw new IllegalArgumentException("SharedPreferences must not be null");
+        mPrefs = prefs;
+        mDebounceTime = Math.max(0, debounceTime);
+    }
+
+    /**
+     * Changes debounce time of flushes scheduled after the call
+     *
+     * @param debounceTime - time in milliseconds changes are collected before being written
+     */
+    public void setDebounceTime(final long debounceTime) {
+        mDebounceTime = Math.max(0, debounceTime);
+    }
+
+    public long getDebounceTime() {
+        return mDebounceTime;
+    }
+
+    /**
+     * @return SharedPreferences changes are written to
+     */
+    public SharedPreferences getWrappedPreferences() {
+        return mPrefs;
+    }
+
+    public boolean hasPendingChanges() {
+        return mIsClearPending || !mPending.isEmpty();
+    }
+
+    //
+    // Reading
+    //
+
+    /**
+     * @return pending value of given key, REMOVED if it is removed or null if wrapped
+     * preferences must be read
+     */
+    private Object getPending(final String key) {
+        final Object value = mPending.get(key);
+        if (value != null)
+            return value;
+        return mIsClearPending ? REMOVED : null;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        final HashMap<String, Object> all = new HashMap<>();
+        synchronized (mLock) {
+            if (!mIsClearPending)
+                all.putAll(mPrefs.getAll());
+            for (Map.Entry<String, Object> entry : mPending.entrySet()) {
+                if (entry.getValue() == REMOVED)
+                    all.remove(entry.getKey());
+                else
+                    all.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        final Object value = getPending(key);
+        if (value == null)
+            return mPrefs.getString(key, defValue);
+        return value == REMOVED ? defValue : (String) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        final Object value = getPending(key);
+        if (value == null)
+            return mPrefs.getStringSet(key, defValues);
+        return value == REMOVED ? defValues : (Set<String>) value;
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        final Object value = getPending(key);
+        if (value == null)
+            return mPrefs.getInt(key, defValue);
+        return value == REMOVED ? defValue : (Integer) value;
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        final Object value = getPending(key);
+        if (value == null)
+            return mPrefs.getLong(key, defValue);
+        return value == REMOVED ? defValue : (Long) value;
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        final Object value = getPending(key);
+        if (value == null)
+            return mPrefs.getFloat(key, defValue);
+        return value == REMOVED ? defValue : (Float) value;
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        final Object value = getPending(key);
+        if (value == null)
+            return mPrefs.getBoolean(key, defValue);
+        return value == REMOVED ? defValue : (Boolean) value;
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        final Object value = getPending(key);
+        if (value == null)
+            return mPrefs.contains(key);
+        return value != REMOVED;
+    }
+
+    //
+    // Writing
+    //
+
+    @Override
+    public Editor edit() {
+        return new WriteBehindEditor();
+    }
+
+    /**
+     * Puts editor changes to the pending map and schedules writing them
+     */
+    private void commitToMemory(final boolean isCleared, final HashMap<String, Object> changes) {
+        if (!isCleared && changes.isEmpty())
+            return;
+        synchronized (mLock) {
+            if (isCleared) {
+                mIsClearPending = true;
+                mClearsCount++;
+                mPending.clear();
+            }
+            mPending.putAll(changes);
+            if (!mIsFlushScheduled) {
+                mIsFlushScheduled = true;
+                getExecutor().schedule(mFlushRunnable, mDebounceTime, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (!mListeners.isEmpty())
+            notifyListeners(changes.keySet());
+    }
+
+    private void notifyListeners(final Set<String> keys) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnSharedPreferenceChangeListener listener : mListeners)
+                    for (String key : keys)
+                        listener.onSharedPreferenceChanged(WriteBehindSharedPreferences.this, key);
+            }
+        });
+    }
+
+    /**
+     * Writes all pending changes to wrapped preferences blocking until they are committed
+     *
+     * @return false if wrapped preferences failed to commit, pending changes are kept then
+     * and retried in background with growing delay
+     */
+    public boolean flush() {
+        synchronized (mFlushLock) {
+            final HashMap<String, Object> changes;
+            final boolean isCleared;
+            final int clearsCount;
+            synchronized (mLock) {
+                if (!mIsClearPending && mPending.isEmpty())
+                    return true;
+                changes = new HashMap<>(mPending);
+                isCleared = mIsClearPending;
+                clearsCount = mClearsCount;
+            }
+
+            final Editor editor = mPrefs.edit();
+            if (isCleared)
+                editor.clear();
+            for (Map.Entry<String, Object> entry : changes.entrySet())
+                putValue(editor, entry.getKey(), entry.getValue());
+            if (!editor.commit()) {
+                Log.e(LOG_TAG, "flush(): commit failed, " + changes.size() + " changes are kept pending");
+                scheduleRetry();
+                return false;
+            }
+
+            synchronized (mLock) {
+                mFailedFlushesCount = 0;
+                // changes made during commit stay pending
+                for (Map.Entry<String, Object> entry : changes.entrySet())
+                    mPending.remove(entry.getKey(), entry.getValue());
+                if (isCleared && clearsCount == mClearsCount)
+                    mIsClearPending = false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Pending changes live in memory only, so a failed flush is retried without waiting for
+     * the next edit
+     */
+    private void scheduleRetry() {
+        synchronized (mLock) {
+            if (mIsFlushScheduled)
+                return;
+            mIsFlushScheduled = true;
+            final int shift = Math.min(mFailedFlushesCount++, 16);
+            final long delay = Math.min(Math.max(mDebounceTime, 1) << shift, MAX_RETRY_DELAY);
+            getExecutor().schedule(mFlushRunnable, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putValue(final Editor editor, final String key, final Object value) {
+        if (value == REMOVED)
+            editor.remove(key);
+        else if (value instanceof String)
+            editor.putString(key, (String) value);
+        else if (value instanceof Integer)
+            editor.putInt(key, (Integer) value);
+        else if (value instanceof Long)
+            editor.putLong(key, (Long) value);
+        else if (value instanceof Float)
+            editor.putFloat(key, (Float) value);
+        else if (value instanceof Boolean)
+            editor.putBoolean(key, (Boolean) value);
+        else if (value instanceof Set)
+            editor.putStringSet(key, (Set<String>) value);
+    }
+
+    /**
+     * Editor collecting changes the same way platform one does: clear() is applied first
+     * and puts of null values are removals
+     */
+    private class WriteBehindEditor implements Editor {
+
+        private final HashMap<String, Object> mChanges = new HashMap<>();
+        private boolean mIsCleared;
+
+        private Editor put(final String key, final Object value) {
+            synchronized (this) {
+                mChanges.put(key, value == null ? REMOVED : value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putString(final String key, final String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(final String key, final Set<String> values) {
+            return put(key, values);
+        }
+
+        @Override
+        public Editor putInt(final String key, final int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(final String key, final long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(final String key, final float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(final String key, final boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(final String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mIsCleared = true;
+            return this;
+        }
+
+        /**
+         * @return always true since changes are written later, use flush() to know if they were
+         */
+        @Override
+        public boolean commit() {
+            final HashMap<String, Object> changes;
+            final boolean isCleared;
+            synchronized (this) {
+                changes = new HashMap<>(mChanges);
+                isCleared = mIsCleared;
+                mChanges.clear();
+                mIsCleared = false;
+            }
+            commitToMemory(isCleared, changes);
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+
+    //
+    // Listeners
+    //
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        if (listener != null)
+            mListeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+}
@@ -3,15 +3,14 @@ package com.stanko.tools;
 import android.text.TextUtils;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Created by Stan
@@ -20,207 +19,201 @@ public class ZipHelper {
 
     private final static String LOG_TAG = ZipHelper.class.getSimpleName();
 
-    public static final int BUFFER = 1024;
-
-    public static void zip(File[] files, File zipFileName) {
-        FileOutputStream dest = null;
-        ZipOutputStream zipOutputStream = null;
-        try {
-            dest = new FileOutputStream(zipFileName);
-            zipOutputStream = new ZipOutputStream(new BufferedOutputStream(dest));
-            final byte data[] = new byte[BUFFER];
-            for (File file : files) {
-                add(file, zipOutputStream, data);
-            }
-            FileUtils.sync(dest);
-            dest.flush();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (zipOutputStream != null)
-                try {
-                    zipOutputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            if (dest != null)
-                try {
-                    dest.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-        }
+    public static final int BUFFER = 64 * 1024;
+
+    /**
+     * Zips given files and directories (with their structure) into given archive, entries are
+     * compressed in parallel. See ZipWriter.
+     *
+     * @param files       - files and directories to add under their own names
+     * @param zipFileName - archive to write, overwritten if exists
+     * @return true if succeed
+     */
+    public static boolean zip(File[] files, File zipFileName) {
+        if (files == null)
+            return false;
+        final ZipWriter zipWriter = new ZipWriter();
+        for (File file : files)
+            zipWriter.add(file);
+        return zipWriter.writeTo(zipFileName);
     }
 
-    public static void zip(String[] files, String zipFileName) {
-        FileOutputStream dest = null;
-        ZipOutputStream zipOutputStream = null;
-        try {
-            dest = new FileOutputStream(zipFileName);
-            zipOutputStream = new ZipOutputStream(new BufferedOutputStream(dest));
-            final byte data[] = new byte[BUFFER];
-            for (String file : files) {
-                Log.d(LOG_TAG, "Adding: " + file);
-                add(new File(file), zipOutputStream, data);
-            }
-
-            FileUtils.sync(dest);
-            dest.flush();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (zipOutputStream != null)
-                try {
-                    zipOutputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            if (dest != null)
-                try {
-                    dest.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    public static boolean zip(String[] files, String zipFileName) {
+        if (files == null || TextUtils.isEmpty(zipFileName))
+            return false;
+        final ZipWriter zipWriter = new ZipWriter();
+        for (String file : files) {
+            Log.d(LOG_TAG, "Adding: %s", file);
+            zipWriter.add(new File(file));
         }
+        return zipWriter.writeTo(new File(zipFileName));
     }
 
-    private static void add(final File file, final ZipOutputStream zipOutputStream, final byte[] data) {
-        Log.d(LOG_TAG, "Adding: " + file);
-        BufferedInputStream origin = null;
-        try {
-            FileInputStream fi = new FileInputStream(file);
-            origin = new BufferedInputStream(fi, BUFFER);
-
-            ZipEntry zipEntry = new ZipEntry(file.getName());
-            zipOutputStream.putNextEntry(zipEntry);
-            int count;
-
-            while ((count = origin.read(data, 0, BUFFER)) != -1) {
-                zipOutputStream.write(data, 0, count);
-            }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (origin != null)
-                try {
-                    origin.close();
-                } catch (IOException ignored) {
-                }
-
+    /**
+     * Zips given files and directories naming entries by their paths relative to baseDir, so
+     * directory structure is preserved in the archive
+     *
+     * @param files       - files and directories inside of baseDir
+     * @param baseDir     - directory entry names are relative to
+     * @param zipFileName - archive to write, overwritten if exists
+     * @return true if succeed
+     */
+    public static boolean zip(File[] files, File baseDir, File zipFileName) {
+        if (files == null || baseDir == null)
+            return false;
+        final String basePath = baseDir.getAbsolutePath() + File.separator;
+        final ZipWriter zipWriter = new ZipWriter();
+        for (File file : files) {
+            final String path = file.getAbsolutePath();
+            zipWriter.add(file, path.startsWith(basePath) ? path.substring(basePath.length()) : null);
         }
+        return zipWriter.writeTo(zipFileName);
     }
 
-    public static void zip(final String fileToAddToZip, String targetZipFile) {
-        zip(new File(fileToAddToZip), new File(targetZipFile));
+    public static boolean zip(final String fileToAddToZip, String targetZipFile) {
+        return zip(new File(fileToAddToZip), new File(targetZipFile));
     }
 
-    public static void zip(final File fileToAddToZip, File targetZipFile) {
-        try {
-            Log.d(LOG_TAG, "Adding: " + fileToAddToZip);
-            final FileOutputStream dest = new FileOutputStream(targetZipFile);
-            final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
-            final byte data[] = new byte[BUFFER];
-            final FileInputStream fi = new FileInputStream(fileToAddToZip);
-            final BufferedInputStream origin = new BufferedInputStream(fi, BUFFER);
-
-            final ZipEntry entry = new ZipEntry(fileToAddToZip.getName());
-            out.putNextEntry(entry);
-            int count;
-
-            while ((count = origin.read(data, 0, BUFFER)) != -1) {
-                out.write(data, 0, count);
-            }
-            origin.close();
-            FileUtils.sync(dest);
-            out.close();
-            dest.flush();
-            dest.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    public static boolean zip(final File fileToAddToZip, File targetZipFile) {
+        Log.d(LOG_TAG, "Adding: %s", fileToAddToZip);
+        return new ZipWriter().add(fileToAddToZip).writeTo(targetZipFile);
     }
 
 
-    public void unzip(final String zipFile, final String targetLocation) {
-        unzip(new File(zipFile), new File(targetLocation));
+    public boolean unzip(final String zipFile, final String targetLocation) {
+        return unzip(new File(zipFile), new File(targetLocation));
+    }
+
+    public boolean unzip(final File zipFile, final File targetLocation) {
+        return unzip(zipFile, null, targetLocation);
     }
 
-    public void unzip(final File zipFile, final File targetLocation) {
+    /**
+     * Extracts given entry (or all entries if targetFile is null) of the archive into given dir.
+     * Entries are looked up in the central directory and extracted in parallel with CRC check
+     * (see ZipReader), archives without valid central directory are extracted sequentially.
+     *
+     * @param zipFile        - archive to extract
+     * @param targetFile     - name of the entry to extract, null to extract all
+     * @param targetLocation - directory to extract to, entries keep their paths inside of it
+     * @return true if succeed
+     */
+    public boolean unzip(final File zipFile, final String targetFile, final File targetLocation) {
         if (!FileUtils.isReadable(zipFile)) {
             new Exception("unzip(): Invalid zipFile: " + zipFile).printStackTrace();
-            return;
+            return false;
         }
         //create target location folder if not exist
         targetLocation.mkdirs();
         if (!targetLocation.exists()) {
             new Exception("unzip(): Can't create path (targetLocation): " + targetLocation).printStackTrace();
-            return;
+            return false;
         }
+        ZipReader zipReader = null;
         try {
-            final FileInputStream fileInputStream = new FileInputStream(zipFile);
-            final ZipInputStream zipInputStream = new ZipInputStream(fileInputStream);
-            ZipEntry zipEntry;
-            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                //create dir if required while unzipping
-                if (zipEntry.isDirectory()) {
-                    new File(targetLocation, zipEntry.getName()).mkdirs();
-                } else {
-                    final FileOutputStream fileOutputStream = new FileOutputStream(targetLocation + zipEntry.getName());
-                    for (int c = zipInputStream.read(); c != -1; c = zipInputStream.read()) {
-                        fileOutputStream.write(c);
-                    }
-                    FileUtils.sync(fileOutputStream);
-                    zipInputStream.closeEntry();
-                    fileOutputStream.close();
-                }
+            zipReader = new ZipReader(zipFile);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "unzip(): central directory is not readable, extracting sequentially: " + e.getMessage());
+        }
+        if (zipReader != null) {
+            try {
+                if (targetFile == null)
+                    return zipReader.extractAll(targetLocation);
+                zipReader.extract(targetFile, targetLocation);
+                return true;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e);
+                return false;
+            } finally {
+                zipReader.close();
             }
-            zipInputStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        return unzipSequentially(zipFile, targetFile, targetLocation);
     }
 
-    public void unzip(final File zipFile, final String targetFile, final File targetLocation) {
-        if (!FileUtils.isReadable(zipFile)) {
-            new Exception("unzip(): Invalid zipFile: " + zipFile).printStackTrace();
-            return;
-        }
-        //create target location folder if not exist
-        targetLocation.mkdirs();
-        if (!targetLocation.exists()) {
-            new Exception("unzip(): Can't create path (targetLocation): " + targetLocation).printStackTrace();
-            return;
-        }
+    /**
+     * Extracts entries reading the archive from its beginning, works for archives with damaged
+     * or missing central directory
+     */
+    private static boolean unzipSequentially(final File zipFile, final String targetFile, final File targetLocation) {
+        ZipInputStream zipInputStream = null;
         try {
-            final FileInputStream fileInputStream = new FileInputStream(zipFile);
-            final ZipInputStream zipInputStream = new ZipInputStream(fileInputStream);
+            final String targetPath = targetLocation.getCanonicalPath() + File.separator;
+            zipInputStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(zipFile), BUFFER));
+            final byte[] buffer = new byte[BUFFER];
             ZipEntry zipEntry;
             String zipEntryName;
             while ((zipEntry = zipInputStream.getNextEntry()) != null) {
                 zipEntryName = zipEntry.getName();
+                if (targetFile != null && !TextUtils.equals(targetFile, zipEntryName)) {
+                    zipInputStream.closeEntry();
+                    continue;
+                }
+                final File entryFile = new File(targetLocation, zipEntryName);
+                // do not let entries like "../../file" escape the target location
+                if (!entryFile.getCanonicalPath().startsWith(targetPath)) {
+                    Log.w(LOG_TAG, "unzip(): skipping entry outside of target location: " + zipEntryName);
+                    zipInputStream.closeEntry();
+                    continue;
+                }
                 //create dir if required while unzipping
                 if (zipEntry.isDirectory()) {
-                    new File(targetLocation, zipEntryName).mkdirs();
+                    entryFile.mkdirs();
                 } else {
-                    if (TextUtils.equals(targetFile, zipEntryName)) {
-                        final FileOutputStream fileOutputStream = new FileOutputStream(targetLocation + zipEntryName);
-                        for (int c = zipInputStream.read(); c != -1; c = zipInputStream.read()) {
-                            fileOutputStream.write(c);
-                        }
-                        FileUtils.sync(fileOutputStream);
-                        zipInputStream.closeEntry();
-                        fileOutputStream.close();
-                    } else {
-                        zipInputStream.closeEntry();
-                    }
+                    extract(zipInputStream, entryFile, buffer);
+                    zipInputStream.closeEntry();
                 }
             }
-            zipInputStream.close();
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            if (zipInputStream != null)
+                try {
+                    zipInputStream.close();
+                } catch (IOException ignored) {
+                }
         }
+        return false;
+    }
+
+    /**
+     * Writes current entry of given stream into given file through its channel
+     */
+    private static void extract(final ZipInputStream zipInputStream, final File entryFile, final byte[] buffer) throws IOException {
+        final File entryDir = entryFile.getParentFile();
+        if (entryDir != null && !entryDir.exists() && !entryDir.mkdirs())
+            throw new IOException("unzip(): Can't create dirs for " + entryFile);
+        final FileOutputStream fileOutputStream = new FileOutputStream(entryFile);
+        try {
+            final FileChannel channel = fileOutputStream.getChannel();
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            int count = 0;
+            int read;
+            // fill the whole buffer before writing, inflater returns small portions
+            while ((read = zipInputStream.read(buffer, count, buffer.length - count)) != -1) {
+                count += read;
+                if (count == buffer.length) {
+                    writeFully(channel, byteBuffer, count);
+                    count = 0;
+                }
+            }
+            if (count > 0)
+                writeFully(channel, byteBuffer, count);
+            FileUtils.sync(fileOutputStream);
+        } finally {
+            try {
+                fileOutputStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer byteBuffer, final int count) throws IOException {
+        byteBuffer.clear();
+        byteBuffer.limit(count);
+        while (byteBuffer.hasRemaining())
+            channel.write(byteBuffer);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,416 @@
+package com.stanko.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Random access reader of ZIP archives (including APK expansion .obb files, see
+ * SDCardHelper.getAPKExpansionFile()) based on ZipFile central directory: an entry is found
+ * without reading entries before it and several entries could be extracted concurrently.
+ * <p>
+ * Every byte read is checked against CRC of its entry: streams returned by openEntry() throw
+ * ZipException at the end of a corrupted entry, extracted files are written to a temp file which
+ * is renamed only if CRC matches, so a corrupted entry never leaves a broken file.
+ * <p>
+ * Reader holds the archive open so close() must be called when it is not needed anymore.
+ */
+public class ZipReader {
+
+    private static final String LOG_TAG = ZipReader.class.getSimpleName();
+
+    public static final int DEFAULT_THREADS_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String TEMP_FILE_SUFFIX = ".part";
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final File mZipFile;
+    private final ZipFile mArchive;
+
+    /**
+     * Interface to process an entry without writing it to disk
+     */
+    public interface IZipEntryConsumer {
+        /**
+         * @param zipEntry    - entry being read
+         * @param inputStream - entry content, checks CRC at its end, closed after this call
+         * @throws IOException to stop reading
+         */
+        void onZipEntry(ZipEntry zipEntry, InputStream inputStream) throws IOException;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(DEFAULT_THREADS_COUNT, DEFAULT_THREADS_COUNT, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Opens given archive reading its central directory
+     *
+     * @param zipFile - archive to read
+     * @throws IOException if the file is not readable or is not a ZIP archive
+     */
+    public ZipReader(final File zipFile) throws IOException {
+        if (!FileUtils.isReadable(zipFile))
+            throw new IOException("ZipReader: Invalid zipFile: " + zipFile);
+        mZipFile = zipFile;
+        mArchive = new ZipFile(zipFile);
+    }
+
+    public File getZipFile() {
+        return mZipFile;
+    }
+
+    //
+    // Entries
+    //
+
+    /**
+     * @param name - entry name like "dir/file.txt"
+     * @return ZipEntry or null if there is no such entry
+     */
+    public ZipEntry getEntry(final String name) {
+        return name == null ? null : mArchive.getEntry(name);
+    }
+
+    /**
+     * @return all entries in the central directory order
+     */
+    public List<ZipEntry> getEntries() {
+        final ArrayList<ZipEntry> entries = new ArrayList<>(mArchive.size());
+        final Enumeration<? extends ZipEntry> enumeration = mArchive.entries();
+        while (enumeration.hasMoreElements())
+            entries.add(enumeration.nextElement());
+        return entries;
+    }
+
+    public int size() {
+        return mArchive.size();
+    }
+
+    /**
+     * Opens content of given entry, ZipException is thrown by the stream at the end of entry
+     * if CRC does not match
+     *
+     * @param name - entry name
+     * @return InputStream which must be closed or null if there is no such entry
+     * @throws IOException
+     */
+    public InputStream openEntry(final String name) throws IOException {
+        final ZipEntry zipEntry = getEntry(name);
+        if (zipEntry == null || zipEntry.isDirectory())
+            return null;
+        return new CrcCheckingInputStream(mArchive.getInputStream(zipEntry), zipEntry);
+    }
+
+    /**
+     * Passes content of given entry to the consumer without writing it to disk
+     *
+     * @param name     - entry name
+     * @param consumer - entry processor
+     * @return true if entry exists and was read completely without errors
+     */
+    public boolean readEntry(final String name, final IZipEntryConsumer consumer) {
+        InputStream inputStream = null;
+        try {
+            inputStream = openEntry(name);
+            if (inputStream == null)
+                return false;
+            consumer.onZipEntry(getEntry(name), inputStream);
+            // make sure the rest of entry is checked too
+            final byte[] buffer = sBuffer.get();
+            while (inputStream.read(buffer) != -1) ;
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            if (inputStream != null)
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+        }
+        return false;
+    }
+
+    //
+    // Extraction
+    //
+
+    /**
+     * Extracts a single entry into given directory keeping its path
+     *
+     * @param name           - entry name
+     * @param targetLocation - directory to extract to
+     * @return extracted File (or directory)
+     * @throws IOException if there is no such entry, CRC does not match or writing failed
+     */
+    public File extract(final String name, final File targetLocation) throws IOException {
+        final ZipEntry zipEntry = getEntry(name);
+        if (zipEntry == null)
+            throw new ZipException("No entry " + name + " in " + mZipFile);
+        return extract(zipEntry, targetLocation.getCanonicalPath() + File.separator, targetLocation);
+    }
+
+    /**
+     * Extracts all entries into given directory keeping their paths, several entries at once
+     *
+     * @param targetLocation - directory to extract to
+     * @return true if all entries are extracted
+     */
+    public boolean extractAll(final File targetLocation) {
+        return extractAll(targetLocation, null);
+    }
+
+    /**
+     * Extracts given entries into given directory keeping their paths, several entries at once.
+     * Extraction stops at the first failed entry.
+     *
+     * @param targetLocation - directory to extract to
+     * @param names          - entry names to extract, all entries if null
+     * @return true if all requested entries are extracted
+     */
+    public boolean extractAll(final File targetLocation, final List<String> names) {
+        targetLocation.mkdirs();
+        if (!targetLocation.isDirectory()) {
+            Log.e(LOG_TAG, "extractAll(): Can't create path (targetLocation): " + targetLocation);
+            return false;
+        }
+
+        final List<ZipEntry> zipEntries;
+        if (names == null)
+            zipEntries = getEntries();
+        else {
+            zipEntries = new ArrayList<>(names.size());
+            for (String name : names) {
+                final ZipEntry zipEntry = getEntry(name);
+                if (zipEntry == null) {
+                    Log.e(LOG_TAG, "extractAll(): No entry " + name + " in " + mZipFile);
+                    return false;
+                }
+                zipEntries.add(zipEntry);
+            }
+        }
+
+        final String targetPath;
+        try {
+            targetPath = targetLocation.getCanonicalPath() + File.separator;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return false;
+        }
+        final ThreadPoolExecutor executor = getExecutor();
+        final ArrayList<Future<File>> futures = new ArrayList<>(zipEntries.size());
+        for (final ZipEntry zipEntry : zipEntries)
+            futures.add(executor.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    return extract(zipEntry, targetPath, targetLocation);
+                }
+            }));
+
+        boolean isSucceed = true;
+        boolean isInterrupted = false;
+        for (Future<File> future : futures) {
+            if (!isSucceed) {
+                future.cancel(false);
+                continue;
+            }
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, e.getCause());
+                    isSucceed = false;
+                    break;
+                }
+            }
+        }
+        if (isInterrupted)
+            Thread.currentThread().interrupt();
+        return isSucceed;
+    }
+
+    private File extract(final ZipEntry zipEntry, final String targetPath, final File targetLocation) throws IOException {
+        final File entryFile = new File(targetLocation, zipEntry.getName());
+        // do not let entries like "../../file" escape the target location
+        if (!entryFile.getCanonicalPath().startsWith(targetPath))
+            throw new ZipException("Entry is outside of target location: " + zipEntry.getName());
+        if (zipEntry.isDirectory()) {
+            makeDirs(entryFile);
+            return entryFile;
+        }
+        final File entryDir = entryFile.getParentFile();
+        if (entryDir != null)
+            makeDirs(entryDir);
+
+        final File tempFile = new File(entryFile.getPath() + TEMP_FILE_SUFFIX);
+        final InputStream inputStream = mArchive.getInputStream(zipEntry);
+        final FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        boolean isSucceed = false;
+        try {
+            final FileChannel channel = fileOutputStream.getChannel();
+            final byte[] buffer = sBuffer.get();
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            final CRC32 crc = new CRC32();
+            int count = 0;
+            int read;
+            // fill the whole buffer before writing, inflater returns small portions
+            while ((read = inputStream.read(buffer, count, buffer.length - count)) != -1) {
+                crc.update(buffer, count, read);
+                count += read;
+                if (count == buffer.length) {
+                    writeFully(channel, byteBuffer, count);
+                    count = 0;
+                }
+            }
+            if (count > 0)
+                writeFully(channel, byteBuffer, count);
+            if (zipEntry.getCrc() != -1 && crc.getValue() != zipEntry.getCrc())
+                throw new ZipException("CRC mismatch of " + zipEntry.getName() + " in " + mZipFile);
+            FileUtils.sync(fileOutputStream);
+            isSucceed = true;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                fileOutputStream.close();
+            } catch (IOException e) {
+                isSucceed = false;
+            }
+            if (isSucceed && entryFile.exists() && !entryFile.delete())
+                isSucceed = false;
+            if (isSucceed && !tempFile.renameTo(entryFile))
+                isSucceed = false;
+            if (!isSucceed && tempFile.exists() && !tempFile.delete())
+                Log.w(LOG_TAG, "Could not delete " + tempFile);
+        }
+        if (!isSucceed)
+            throw new IOException("Could not write " + entryFile);
+        return entryFile;
+    }
+
+    /**
+     * Entries are extracted in parallel, so mkdirs() could fail because another entry created
+     * the same directory first
+     */
+    private static void makeDirs(final File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Can't create dir " + dir);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer byteBuffer, final int count) throws IOException {
+        byteBuffer.clear();
+        byteBuffer.limit(count);
+        while (byteBuffer.hasRemaining())
+            channel.write(byteBuffer);
+    }
+
+    /**
+     * Closes the archive, entries streams opened before become unusable
+     */
+    public void close() {
+        try {
+            mArchive.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        }
+    }
+
+    /**
+     * Counts CRC of everything read and compares it with entry CRC at the end of stream
+     */
+    private static class CrcCheckingInputStream extends FilterInputStream {
+
+        private final ZipEntry zipEntry;
+        private final CRC32 crc = new CRC32();
+        private boolean isChecked;
+
+        CrcCheckingInputStream(final InputStream inputStream, final ZipEntry zipEntry) {
+            super(inputStream);
+            this.zipEntry = zipEntry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b == -1)
+                check();
+            else
+                crc.update(b);
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            if (read == -1)
+                check();
+            else
+                crc.update(buffer, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(final long count) throws IOException {
+            // skipped bytes must be counted too
+            final byte[] buffer = sBuffer.get();
+            long skipped = 0;
+            while (skipped < count) {
+                final int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                if (read == -1)
+                    break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void check() throws ZipException {
+            if (isChecked)
+                return;
+            isChecked = true;
+            if (zipEntry.getCrc() != -1 && crc.getValue() != zipEntry.getCrc())
+                throw new ZipException("CRC mismatch of " + zipEntry.getName());
+        }
+    }
+}
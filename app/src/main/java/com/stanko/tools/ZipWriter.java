@@ -0,0 +1,565 @@
+package com.stanko.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes ZIP archives compressing entries in parallel.
+ * <p>
+ * Every file is deflated by a worker thread into a memory buffer (small files) or a spill file
+ * next to the archive (big ones), then compressed entries are appended to the archive by the
+ * calling thread in the order they were added. ZipOutputStream could not take already deflated
+ * data so local headers, central directory and its end record are written here (plain ZIP,
+ * no ZIP64: up to 65535 entries and 4Gb).
+ * <p>
+ * Already compressed media (see STORED_EXTENSIONS) and files deflate could not shrink are STORED
+ * and copied into the archive straight from the source by FileChannel.transferTo().
+ * Entries written are readable by ZipInputStream and ZipFile.
+ */
+public class ZipWriter {
+
+    private static final String LOG_TAG = ZipWriter.class.getSimpleName();
+
+    public static final int DEFAULT_THREADS_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // compressed entries up to this size are kept in memory, bigger ones are spilled to disk
+    public static final int MAX_MEMORY_ENTRY_SIZE = 1024 * 1024;
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    // extensions of files which are compressed already, lowercase
+    public static final String[] STORED_EXTENSIONS = {
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "m4a", "aac", "ogg", "opus", "amr",
+            "mp4", "3gp", "mkv", "webm",
+            "zip", "gz", "7z", "rar", "apk", "jar"
+    };
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    // general purpose flag: names are UTF-8
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int VERSION_NEEDED = 20;
+    private static final long MAX_ZIP32_VALUE = 0xFFFFFFFFL;
+    private static final int MAX_ZIP32_ENTRIES = 0xFFFF;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private static final ThreadLocal<byte[][]> sBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][]{new byte[BUFFER_SIZE], new byte[BUFFER_SIZE]};
+        }
+    };
+
+    private final int mCompressionLevel;
+    private final ArrayList<Source> mSources = new ArrayList<>();
+    private final HashSet<String> mNames = new HashSet<>();
+
+    /**
+     * An entry to be written: a file or a directory
+     */
+    private static class Source {
+        final File file;
+        final String name;
+        final boolean isDirectory;
+
+        Source(final File file, final String name, final boolean isDirectory) {
+            this.file = file;
+            this.name = name;
+            this.isDirectory = isDirectory;
+        }
+    }
+
+    /**
+     * Result of a worker: entry metadata and where its compressed data is
+     */
+    private static class CompressedEntry {
+        final Source source;
+        long time;
+        int method;
+        long crc;
+        long size;
+        long compressedSize;
+        ByteArrayOutputStream data;
+        File spillFile;
+        // offset of the local header in the archive
+        long offset;
+
+        CompressedEntry(final Source source) {
+            this.source = source;
+        }
+
+        void release() {
+            data = null;
+            if (spillFile != null && spillFile.exists() && !spillFile.delete())
+                Log.w(LOG_TAG, "Could not delete " + spillFile);
+            spillFile = null;
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(DEFAULT_THREADS_COUNT, DEFAULT_THREADS_COUNT, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    public ZipWriter() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param compressionLevel - Deflater.BEST_SPEED..Deflater.BEST_COMPRESSION or Deflater.DEFAULT_COMPRESSION
+     */
+    public ZipWriter(final int compressionLevel) {
+        mCompressionLevel = compressionLevel;
+    }
+
+    //
+    // Entries
+    //
+
+    /**
+     * Adds given file or directory (with all its content) to the archive under its own name
+     *
+     * @param file - file or directory to add
+     * @return this ZipWriter
+     */
+    public ZipWriter add(final File file) {
+        return add(file, null);
+    }
+
+    /**
+     * Adds given file or directory (with all its content) to the archive. Entries of directory
+     * content are named by their path relative to the directory prefixed by given name.
+     *
+     * @param file      - file or directory to add
+     * @param entryName - name of the entry like "logs/app.log", file name if null
+     * @return this ZipWriter
+     */
+    public ZipWriter add(final File file, final String entryName) {
+        if (file == null)
+            return this;
+        String name = entryName == null ? file.getName() : entryName.replace('\\', '/');
+        while (name.startsWith("/"))
+            name = name.substring(1);
+        if (file.isDirectory()) {
+            if (name.length() > 0 && !name.endsWith("/"))
+                name += "/";
+            addDirectory(file, name);
+        } else if (name.length() > 0 && mNames.add(name))
+            mSources.add(new Source(file, name, false));
+        else
+            Log.w(LOG_TAG, "Skipping duplicate or empty entry name: " + file);
+        return this;
+    }
+
+    private void addDirectory(final File directory, final String name) {
+        if (name.length() > 0 && mNames.add(name))
+            mSources.add(new Source(directory, name, true));
+        final File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files)
+            add(file, name + file.getName());
+    }
+
+    public int getEntriesCount() {
+        return mSources.size();
+    }
+
+    /**
+     * @param name - entry name
+     * @return true if an entry of given name should be STORED without compression
+     */
+    public static boolean isStoredByDefault(final String name) {
+        final int dotIndex = name.lastIndexOf('.');
+        if (dotIndex < 0 || dotIndex == name.length() - 1)
+            return false;
+        final String extension = name.substring(dotIndex + 1).toLowerCase(Locale.US);
+        for (String storedExtension : STORED_EXTENSIONS)
+            if (storedExtension.equals(extension))
+                return true;
+        return false;
+    }
+
+    //
+    // Writing
+    //
+
+    /**
+     * Compresses added entries and writes the archive overwriting given file. Partially written
+     * archive is deleted on failure. Files which disappeared since being added are skipped.
+     *
+     * @param zipFile - target archive
+     * @return true if succeed
+     */
+    public boolean writeTo(final File zipFile) {
+        if (zipFile == null || !FileUtils.isWritable(zipFile, true))
+            return false;
+        if (mSources.size() > MAX_ZIP32_ENTRIES) {
+            Log.e(LOG_TAG, "Too many entries: " + mSources.size());
+            return false;
+        }
+
+        final File spillDir = zipFile.getAbsoluteFile().getParentFile();
+        final ThreadPoolExecutor executor = getExecutor();
+        // compress a few entries ahead of the writer only, so spilled data is bounded
+        final int window = DEFAULT_THREADS_COUNT * 2;
+        final ArrayDeque<Future<CompressedEntry>> futures = new ArrayDeque<>();
+        final ArrayList<CompressedEntry> writtenEntries = new ArrayList<>(mSources.size());
+        int nextSource = 0;
+
+        boolean isSucceed = false;
+        FileOutputStream fileOutputStream = null;
+        try {
+            fileOutputStream = new FileOutputStream(zipFile);
+            final FileChannel channel = fileOutputStream.getChannel();
+            long offset = 0;
+            while (nextSource < mSources.size() || !futures.isEmpty()) {
+                while (nextSource < mSources.size() && futures.size() < window)
+                    futures.add(executor.submit(new CompressTask(mSources.get(nextSource++), spillDir, mCompressionLevel)));
+
+                final CompressedEntry entry = getResult(futures.poll());
+                if (entry == null)
+                    continue;
+                try {
+                    entry.offset = offset;
+                    offset += writeEntry(channel, fileOutputStream, entry);
+                    if (offset > MAX_ZIP32_VALUE)
+                        throw new IOException("Archive is bigger than 4Gb, ZIP64 is not supported");
+                    writtenEntries.add(entry);
+                } finally {
+                    entry.release();
+                }
+            }
+            writeCentralDirectory(channel, writtenEntries, offset);
+            channel.force(true);
+            isSucceed = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            // wait for entries compressed ahead to drop their spill files
+            for (Future<CompressedEntry> future : futures) {
+                try {
+                    final CompressedEntry entry = getResult(future);
+                    if (entry != null)
+                        entry.release();
+                } catch (IOException ignored) {
+                }
+            }
+            if (fileOutputStream != null)
+                try {
+                    fileOutputStream.close();
+                } catch (IOException e) {
+                    isSucceed = false;
+                }
+        }
+        if (!isSucceed && zipFile.exists() && !zipFile.delete())
+            Log.e(LOG_TAG, "Could not delete partially written " + zipFile);
+        return isSucceed;
+    }
+
+    /**
+     * @return compressed entry or null if its source should be skipped
+     */
+    private static CompressedEntry getResult(final Future<CompressedEntry> future) throws IOException {
+        boolean isInterrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof FileNotFoundException) {
+                Log.w(LOG_TAG, "Skipping: " + cause.getMessage());
+                return null;
+            }
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        } finally {
+            if (isInterrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes local header and data of given entry
+     *
+     * @return count of written bytes
+     */
+    private static long writeEntry(final FileChannel channel,
+                                   final OutputStream outputStream,
+                                   final CompressedEntry entry) throws IOException {
+        final byte[] name = entry.source.name.getBytes("UTF-8");
+        final ByteBuffer header = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) VERSION_NEEDED);
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) entry.method);
+        header.putInt(getDosTime(entry.time));
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) name.length);
+        header.putShort((short) 0);
+        header.put(name);
+        header.flip();
+        writeFully(channel, header);
+
+        if (entry.data != null)
+            entry.data.writeTo(outputStream);
+        else if (entry.spillFile != null)
+            transferFully(entry.spillFile, entry.compressedSize, channel);
+        else if (entry.method == METHOD_DEFLATED)
+            // source bytes under a deflated header would make a corrupt archive
+            throw new IOException("Deflated data is lost: " + entry.source.file);
+        else if (entry.compressedSize > 0)
+            transferFully(entry.source.file, entry.compressedSize, channel);
+        return 30 + name.length + entry.compressedSize;
+    }
+
+    private static void writeCentralDirectory(final FileChannel channel,
+                                              final ArrayList<CompressedEntry> entries,
+                                              final long centralDirectoryOffset) throws IOException {
+        long centralDirectorySize = 0;
+        for (CompressedEntry entry : entries) {
+            final byte[] name = entry.source.name.getBytes("UTF-8");
+            final ByteBuffer header = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) VERSION_NEEDED);
+            header.putShort((short) VERSION_NEEDED);
+            header.putShort((short) FLAG_UTF8);
+            header.putShort((short) entry.method);
+            header.putInt(getDosTime(entry.time));
+            header.putInt((int) entry.crc);
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+            header.putShort((short) name.length);
+            // extra field, comment, disk number, internal attributes
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            // external attributes: MS-DOS directory flag
+            header.putInt(entry.source.isDirectory ? 0x10 : 0);
+            header.putInt((int) entry.offset);
+            header.put(name);
+            header.flip();
+            centralDirectorySize += header.remaining();
+            writeFully(channel, header);
+        }
+        if (centralDirectoryOffset + centralDirectorySize > MAX_ZIP32_VALUE)
+            throw new IOException("Archive is bigger than 4Gb, ZIP64 is not supported");
+
+        final ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_OF_CENTRAL_DIR_SIGNATURE);
+        // disk numbers
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) entries.size());
+        end.putShort((short) entries.size());
+        end.putInt((int) centralDirectorySize);
+        end.putInt((int) centralDirectoryOffset);
+        // comment length
+        end.putShort((short) 0);
+        end.flip();
+        writeFully(channel, end);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void transferFully(final File file, final long size, final FileChannel channel) throws IOException {
+        final FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            final FileChannel inChannel = fileInputStream.getChannel();
+            long position = 0;
+            while (position < size) {
+                final long transferred = inChannel.transferTo(position, size - position, channel);
+                if (transferred <= 0)
+                    break;
+                position += transferred;
+            }
+            if (position < size) {
+                // channel refused to transfer, copy the rest through a buffer
+                inChannel.position(position);
+                final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (position < size) {
+                    buffer.clear();
+                    if (buffer.remaining() > size - position)
+                        buffer.limit((int) (size - position));
+                    final int read = inChannel.read(buffer);
+                    if (read < 0)
+                        throw new IOException("File changed while being archived: " + file);
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    position += read;
+                }
+            }
+        } finally {
+            try {
+                fileInputStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static int getDosTime(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    //
+    // Compression
+    //
+
+    /**
+     * Computes CRC of a single entry and deflates it unless it should be STORED
+     */
+    private static class CompressTask implements Callable<CompressedEntry> {
+
+        private final Source source;
+        private final File spillDir;
+        private final int compressionLevel;
+
+        CompressTask(final Source source, final File spillDir, final int compressionLevel) {
+            this.source = source;
+            this.spillDir = spillDir;
+            this.compressionLevel = compressionLevel;
+        }
+
+        @Override
+        public CompressedEntry call() throws IOException {
+            final CompressedEntry entry = new CompressedEntry(source);
+            entry.time = source.file.lastModified();
+            entry.method = METHOD_STORED;
+            if (source.isDirectory)
+                return entry;
+
+            final boolean isStored = isStoredByDefault(source.name);
+            final long fileSize = source.file.length();
+            OutputStream outputStream = null;
+            if (!isStored) {
+                if (fileSize <= MAX_MEMORY_ENTRY_SIZE)
+                    outputStream = entry.data = new ByteArrayOutputStream((int) Math.max(32, fileSize / 2));
+                else {
+                    entry.spillFile = File.createTempFile("zip", ".part", spillDir);
+                    outputStream = new FileOutputStream(entry.spillFile);
+                }
+            }
+
+            final byte[][] buffers = sBuffers.get();
+            final byte[] input = buffers[0];
+            final byte[] output = buffers[1];
+            final CRC32 crc = new CRC32();
+            final Deflater deflater = isStored ? null : new Deflater(compressionLevel, true);
+            FileInputStream fileInputStream = null;
+            boolean isSucceed = false;
+            try {
+                fileInputStream = new FileInputStream(source.file);
+                long size = 0;
+                long compressedSize = 0;
+                int read;
+                while ((read = fileInputStream.read(input)) > 0) {
+                    crc.update(input, 0, read);
+                    size += read;
+                    if (deflater == null)
+                        continue;
+                    deflater.setInput(input, 0, read);
+                    while (!deflater.needsInput()) {
+                        final int deflated = deflater.deflate(output);
+                        outputStream.write(output, 0, deflated);
+                        compressedSize += deflated;
+                    }
+                }
+                if (deflater != null) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        final int deflated = deflater.deflate(output);
+                        outputStream.write(output, 0, deflated);
+                        compressedSize += deflated;
+                    }
+                }
+                if (size > MAX_ZIP32_VALUE)
+                    throw new IOException("File is bigger than 4Gb, ZIP64 is not supported: " + source.file);
+
+                entry.crc = crc.getValue();
+                entry.size = size;
+                if (deflater != null && compressedSize < size) {
+                    entry.method = METHOD_DEFLATED;
+                    entry.compressedSize = compressedSize;
+                } else {
+                    // deflate did not help, copy source as is
+                    entry.method = METHOD_STORED;
+                    entry.compressedSize = size;
+                }
+                if (entry.spillFile != null) {
+                    // a failed close could lose deflated bytes, so it must fail the archive
+                    outputStream.close();
+                    outputStream = null;
+                }
+                isSucceed = true;
+            } finally {
+                if (deflater != null)
+                    deflater.end();
+                if (fileInputStream != null)
+                    try {
+                        fileInputStream.close();
+                    } catch (IOException ignored) {
+                    }
+                if (outputStream != null && entry.spillFile != null)
+                    try {
+                        outputStream.close();
+                    } catch (IOException ignored) {
+                    }
+                if (!isSucceed || entry.method == METHOD_STORED)
+                    entry.release();
+            }
+            return entry;
+        }
+    }
+}